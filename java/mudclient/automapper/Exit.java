@@ -1,8 +1,10 @@
 package mudclient.automapper;
 import java.io.*;
-import tools.persistence.Streamable;
+import java.nio.ByteBuffer;
+import tools.persistence.BufferStreamable;
+import tools.persistence.BufferStreams;
 
-public class Exit implements Streamable{
+public class Exit implements BufferStreamable{
   // Denotes a destination has not been set for this exit yeh
   // (haven't been there yet.)
   public static final int UNASSIGNED_DESTINATION = -999999999;
@@ -34,16 +36,21 @@ public class Exit implements Streamable{
     return stl;
   }
   public void setState( DataInputStream is ) throws IOException{
-    stl = is.readInt();
-    destination = is.readInt();
+    BufferStreams.setState( this, is );
+  }
+  public void getState( DataOutputStream os ) throws IOException{
+    BufferStreams.getState( this, os );
+  }
+  public void setState( ByteBuffer bb ){
+    stl = bb.getInt();
+    destination = bb.getInt();
     byte[] bs = new byte[ stl-8 ];
-    is.readFully( bs );
+    bb.get( bs );
     command = new String( bs );
   }
-  public void getState( DataOutputStream os ) throws IOException{
-    os.writeInt( stl );
-    os.writeInt( destination );
-    byte[] bs = command.getBytes();
-    os.write( bs, 0, bs.length );
+  public void getState( ByteBuffer bb ){
+    bb.putInt( stl );
+    bb.putInt( destination );
+    bb.put( command.getBytes() );
   }
 }
@@ -1,11 +1,15 @@
 package mudclient.automapper;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Observable;
 
 import tools.IntSet;
 import tools.Utils;
+import tools.persistence.BufferStreamable;
+import tools.persistence.BufferStreams;
 
-public class Region extends Observable implements tools.persistence.Storable{
+public class Region extends Observable 
+  implements tools.persistence.Storable, BufferStreamable{
   public static final Object EXIT_REMOVED = new Object();
   public static final Object EXIT_ADDED = new Object();
   public static final Object ENTRANCE_REMOVED = new Object();
@@ -227,61 +231,53 @@ public class Region extends Observable implements tools.persistence.Storable{
     notifyObservers( PATH_LENGTHS_UPDATED );
   }
   public void setState( DataInputStream is ) throws IOException{
-    stl = is.readInt();
-    id = is.readInt();
-    int len = is.readInt();
-    byte[] bs;
-    if( len > 0 ){
-      bs = new byte[ len ];
-      is.readFully( bs );
-      name = new String( bs );
-    }else{
-      name = null;
-    }
-    len = is.readInt();
+    BufferStreams.setState( this, is );
+  }
+  public void getState( DataOutputStream os ) throws IOException{
+    BufferStreams.getState( this, os );
+  }
+  public void setState( ByteBuffer bb ){
+    stl = bb.getInt();
+    id = bb.getInt();
+    name = BufferStreams.getString( bb );
+    int len = bb.getInt();
     entrances = new int[ len ];
     int i, j, len2;
     for( i = 0; i < len; i++ )
-      entrances[ i ] = is.readInt();
-    len2 = is.readInt();
+      entrances[ i ] = bb.getInt();
+    len2 = bb.getInt();
     exits = new int[ len2 ];
     for( i = 0; i < len2; i++ )
-      exits[i] = is.readInt();
+      exits[i] = bb.getInt();
     cachedExitLengths = new int[ len ][ len2 ];
     for( i = 0; i < len; i++ )
       for( j = 0; j < len2; j++ )
-        cachedExitLengths[ i ][ j ] = is.readInt();
+        cachedExitLengths[ i ][ j ] = bb.getInt();
   }
-  public void getState( DataOutputStream os ) throws IOException{
-    os.writeInt( stl );
-    os.writeInt( id );
-    if( name == null ){
-      os.writeInt( 0 );
-    }else{
-      byte[] bs = name.getBytes();
-      os.writeInt( bs.length );
-      os.write( bs, 0, bs.length );
-    }
+  public void getState( ByteBuffer bb ){
+    bb.putInt( stl );
+    bb.putInt( id );
+    BufferStreams.putString( bb, name );
     int i, j;
     if( entrances == null ){
-      os.writeInt( 0 );
+      bb.putInt( 0 );
     }else{
-      os.writeInt( entrances.length );
+      bb.putInt( entrances.length );
       for( i = 0; i < entrances.length; i++ )
-        os.writeInt( entrances[i] );
+        bb.putInt( entrances[i] );
     }
     if( exits == null ){
-      os.writeInt( 0 );
+      bb.putInt( 0 );
     }else{
-      os.writeInt( exits.length );
+      bb.putInt( exits.length );
       for( i = 0; i < exits.length; i++ )
-        os.writeInt( exits[i] );
+        bb.putInt( exits[i] );
     }
     if( entrances != null && entrances.length > 0 
         && exits != null && exits.length > 0){
       for( i = 0; i < entrances.length; i++ )
         for( j = 0; j < exits.length; j++ )
-          os.writeInt( cachedExitLengths[ i ][ j ] );
+          bb.putInt( cachedExitLengths[ i ][ j ] );
     }
   }
   public int getStreamedLength(){
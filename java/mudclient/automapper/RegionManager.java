@@ -9,6 +9,7 @@ import tools.persistence.*;
 // this should be the only way to get a Region object.
 // Other objects should only keep transiet references 
 // to regions.
+// Like RoomManager, it can be used from several threads at once.
 public class RegionManager implements Observer{
   private static HashSet names = new HashSet();
 
@@ -18,7 +19,7 @@ public class RegionManager implements Observer{
 
   private SoftIntMap regions;
   private IntMap changedRegions;
-  private boolean needToRecalcEntrances = false;
+  private volatile boolean needToRecalcEntrances = false;
 
   private File myFileName;
   private PersistentStore myPS;
@@ -33,7 +34,7 @@ public class RegionManager implements Observer{
       e.printStackTrace( System.err );
     }
   }
-  public int getCurrentRegionIndex(){
+  public synchronized int getCurrentRegionIndex(){
     return currentRegionIndex;
   }
   public int[] getIDs( ){
@@ -46,14 +47,23 @@ public class RegionManager implements Observer{
     Region r;
     if( (r = getFromCache(regionID)) == null ){
       r = loadFromPS( regionID );
-      if( r != null ){
-        regions.put( r.getID(), r );
-        r.addObserver( this );
-      }
+      if( r != null )
+        r = cache( r );
     }
     return r;
   }
-  public int createNewRegion( ){
+  // whichever of two racing loads of an id gets here first is the one
+  // both get, so there is only ever one Region per id.
+  private synchronized Region cache( Region r ){
+    Region cached = getFromCache( r.getID() );
+    if( cached != null )
+      return cached;
+    regions.put( r.getID(), r );
+    r.addObserver( this );
+    return r;
+  }
+  // synchronized, so ids are handed out one at a time
+  public synchronized int createNewRegion( ){
     Region r = new Region( ++currentRegionIndex );
     regions.put( r.getID(), r );
     try{
@@ -66,10 +76,10 @@ public class RegionManager implements Observer{
     return r.getID();
   }
 
-  private void unmarkChanged( int i ){
+  private synchronized void unmarkChanged( int i ){
     changedRegions.remove( i );
   }
-  private void markChanged( Region r ){
+  private synchronized void markChanged( Region r ){
     changedRegions.put( r.getID(), r );
   }
   private void initializePS() throws IOException {
@@ -90,14 +100,37 @@ public class RegionManager implements Observer{
   }
   private void updatePS( RoomManager rmMgr, SpecialExitManager seMgr ) 
     throws IOException {
-    int i;
     if( needToRecalcEntrances )
       recalcEntrances( rmMgr, seMgr );
+    ArrayList changed = takeChanged();
+    // one batch, so they all land together in one write
+    try{
+      myPS.storeAll( changed );
+    }catch( IOException e ){
+      remarkChanged( changed );
+      throw e;
+    }
+    myPS.flush();
+  }
+  // the changed regions that are in memory, unmarked all at once, as
+  // RoomManager does.
+  private synchronized ArrayList takeChanged(){
+    int i;
     int[] is = getChangedRegions();
+    ArrayList changed = new ArrayList( is.length );
+    Region r;
     for( i = 0; i < is.length; i++ ){
-      updateRegion( is[ i ] );
+      r = getFromCache( is[ i ] );
+      if( r != null )
+        changed.add( r );
+      unmarkChanged( is[ i ] );
     }
-    myPS.flush();
+    return changed;
+  }
+  private synchronized void remarkChanged( ArrayList changed ){
+    int i;
+    for( i = 0; i < changed.size(); i++ )
+      markChanged( (Region)changed.get( i ) );
   }
   private void recalcEntrances( RoomManager rmMgr, SpecialExitManager seMgr ) 
     throws IOException {
@@ -156,14 +189,14 @@ public class RegionManager implements Observer{
     }
     unmarkChanged( i );
   }
-  private boolean isMarkedChanged( int id ){
+  private synchronized boolean isMarkedChanged( int id ){
     return changedRegions.contains( id );
   }
-  private int[] getChangedRegions(){
+  private synchronized int[] getChangedRegions(){
     return changedRegions.keys();
   }
 
-  private Region getFromCache( int id ){
+  private synchronized Region getFromCache( int id ){
     return (Region)regions.get(id);
   }
   private Region loadFromPS( int id ){
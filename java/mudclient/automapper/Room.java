@@ -1,11 +1,15 @@
 package mudclient.automapper;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import tools.persistence.BufferStreamable;
+import tools.persistence.BufferStreams;
 import tools.persistence.Storable;
 import tools.IntSet;
 
-public class Room extends Observable implements Storable, Observer{
+public class Room extends Observable 
+  implements Storable, BufferStreamable, Observer{
   // These are used for type on getNotes and getExits,
   // and also as the messages (what type of changes) for
   // notify observers
@@ -204,77 +208,62 @@ public class Room extends Observable implements Storable, Observer{
     // otherwise, we don't care.
   }
   public void setState( DataInputStream is ) throws IOException{
-    stl = is.readInt();
-    id = is.readInt();
-    region = is.readInt();
-    longDesc = getStringFromIS( is );
-    shortDesc = getStringFromIS( is );
-    int len = is.readInt();
+    BufferStreams.setState( this, is );
+  }
+  public void getState( DataOutputStream os ) throws IOException{
+    BufferStreams.getState( this, os );
+  }
+  public void setState( ByteBuffer bb ){
+    stl = bb.getInt();
+    id = bb.getInt();
+    region = bb.getInt();
+    longDesc = BufferStreams.getString( bb );
+    shortDesc = BufferStreams.getString( bb );
+    int len = bb.getInt();
     int i;
     if(len > 0)
       notes = new ArrayList();
     else
       notes = null;
     for( i = 0; i < len; i++ )
-      notes.add( getStringFromIS( is ) );
-    len = is.readInt();
+      notes.add( BufferStreams.getString( bb ) );
+    len = bb.getInt();
     exits = new HashMap( len );
     obviousExits = new HashMap( len );
+    cachedExits = null;
+    cachedObviousExits = null;
     for( i = 0; i < len; i++ ){
       Exit x = new Exit();
-      x.setState( is );
+      x.setState( bb );
       exits.put( x.getCommand(), x );
-      if( is.readBoolean() );
+      if( bb.get() != 0 )
         obviousExits.put( x.getCommand(), x );
     }
   }
-  private String getStringFromIS( DataInputStream is ) throws IOException{
-    int i;
-    byte[] bs;
-    i = is.readInt();
-    if( i > 0 ){
-      bs = new byte[ i ];
-      is.readFully( bs );
-      return new String( bs );
-    }
-    return null;
-  }
-  public void getState( DataOutputStream os ) throws IOException{
-    os.writeInt( stl );
-    os.writeInt( id );
-    os.writeInt( region );
-    writeToOS( longDesc, os );
-    writeToOS( shortDesc, os );
+  public void getState( ByteBuffer bb ){
+    bb.putInt( stl );
+    bb.putInt( id );
+    bb.putInt( region );
+    BufferStreams.putString( bb, longDesc );
+    BufferStreams.putString( bb, shortDesc );
     int len;
     int i;
     if (notes == null ){
-      os.writeInt( 0 );
+      bb.putInt( 0 );
     }else{
       len = notes.size();
-      os.writeInt( len );
+      bb.putInt( len );
       for( i = 0; i < len; i++ )
-        writeToOS( (String)notes.get( i ), os );
+        BufferStreams.putString( bb, (String)notes.get( i ) );
     }
     len = exits.size();
-    os.writeInt( len );
+    bb.putInt( len );
     Iterator it = exits.values().iterator();
     Exit x;
     while( it.hasNext() ){
       x = (Exit)it.next();
-      x.getState( os );
-      if( isObviousExit( x.getCommand() ) )
-        os.writeBoolean( true );
-      else
-        os.writeBoolean( false );
-    }
-  }
-  private void writeToOS( String s, DataOutputStream os ) throws IOException{
-    if( s == null || s.equals( "" ) ){
-      os.writeInt( 0 );
-    } else {
-      byte[] bs = s.getBytes();
-      os.writeInt( bs.length );
-      os.write( bs, 0, bs.length );
+      x.getState( bb );
+      bb.put( (byte)(isObviousExit( x.getCommand() ) ? 1 : 0) );
     }
   }
 }
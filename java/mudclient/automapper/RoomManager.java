@@ -9,8 +9,13 @@ import tools.persistence.*;
 // this should be the only way to get a Room object.
 // Other objects should only keep transiet references 
 // to rooms.
+// It can be used from several threads at once.  The cache and the
+// changed set are guarded by the manager's monitor, but loads happen
+// outside it, so lookups only wait for each other in the store.
 public class RoomManager implements Observer{
   private static HashSet names = new HashSet();
+  private static final java.nio.charset.Charset UTF8 
+    = java.nio.charset.Charset.forName( "UTF-8" );
 
   private static ShortDescIndex shortDescIndex 
     = new ShortDescIndex();
@@ -43,7 +48,7 @@ public class RoomManager implements Observer{
       e.printStackTrace( System.err );
     }
   }
-  public int getCurrentRoomIndex(){
+  public synchronized int getCurrentRoomIndex(){
     return currentRoomIndex;
   }
   public Room get( int roomID ){
@@ -51,13 +56,22 @@ public class RoomManager implements Observer{
     if( r != null )
       return r;
     r = loadFromPS( roomID );
-    if( r != null ){
-      r.addObserver( this );
-      rooms.put( roomID, r );
-    }
+    if( r != null )
+      r = cache( r );
     return r;
   }
-  public int createNewRoom( int region ){
+  // whichever of two racing loads of an id gets here first is the one
+  // both get, so there is only ever one Room per id.
+  private synchronized Room cache( Room r ){
+    Room cached = getFromCache( r.getID() );
+    if( cached != null )
+      return cached;
+    rooms.put( r.getID(), r );
+    r.addObserver( this );
+    return r;
+  }
+  // synchronized, so ids are handed out one at a time
+  public synchronized int createNewRoom( int region ){
     Room r = new Room( ++currentRoomIndex, region );
     rooms.put( r.getID(), r );
     try{
@@ -70,22 +84,28 @@ public class RoomManager implements Observer{
     return r.getID();
   }
 
-  private void unmarkChanged( int i ){
+  private synchronized void unmarkChanged( int i ){
     changedRooms.remove( i );
   }
-  private void markChanged( Room r ){
+  private synchronized void markChanged( Room r ){
     changedRooms.put( r.getID(), r );
   }
   private void initializePS() throws IOException {
     myPS = new PersistentStore( 
         myFileName, 
         new Index[]{
-          shortDescIndex,
-          longDescIndex,
-          obviousExitsIndex,
           regionIDIndex,
           unassignedExitIndex },
-        new Room( -1, -1 ));
+        // exact, so a match is the room, not just one that hashes alike
+        new KeyIndex[]{
+          shortDescIndex,
+          longDescIndex,
+          obviousExitsIndex },
+        new Room( -1, -1 ),
+        PersistentStore.MEMORY_MAPPED );
+    // long descriptions and notes are most of a room, and are text,
+    // which shrinks a lot
+    myPS.setCompression( 256 );
     currentRoomIndex = myPS.getMaxID();
   }
   public boolean save(){
@@ -98,12 +118,36 @@ public class RoomManager implements Observer{
     return true;
   }
   private void updatePS() throws IOException {
+    ArrayList changed = takeChanged();
+    // one batch, so they all land together in one write
+    try{
+      myPS.storeAll( changed );
+    }catch( IOException e ){
+      remarkChanged( changed );
+      throw e;
+    }
+    myPS.flush();
+  }
+  // the changed rooms, unmarked all at once, so that one changed again
+  // while they are written is marked again.  There is no use writing
+  // the ones that aren't in memory.
+  private synchronized ArrayList takeChanged(){
     int i;
     int[] is = getChangedRooms();
+    ArrayList changed = new ArrayList( is.length );
+    Room r;
     for( i = 0; i < is.length; i++ ){
-      updateRoom( is[ i ] );
+      r = getFromCache( is[ i ] );
+      if( r != null )
+        changed.add( r );
+      unmarkChanged( is[ i ] );
     }
-    myPS.flush();
+    return changed;
+  }
+  private synchronized void remarkChanged( ArrayList changed ){
+    int i;
+    for( i = 0; i < changed.size(); i++ )
+      markChanged( (Room)changed.get( i ) );
   }
   private void updateRoom( int i ) throws IOException {
     
@@ -114,11 +158,11 @@ public class RoomManager implements Observer{
     }
     unmarkChanged( i );
   }
-  private int[] getChangedRooms(){
+  private synchronized int[] getChangedRooms(){
     return changedRooms.keys();
   }
 
-  private Room getFromCache( int id ){
+  private synchronized Room getFromCache( int id ){
     return (Room)rooms.get(id);
   }
   private Room loadFromPS( int id ){
@@ -155,23 +199,25 @@ public class RoomManager implements Observer{
       String[] obviousExits,
       int[] region,
       boolean[] hasUnassignedExits ){
-    int[] hashCodes = new int[ 5 ];
-    boolean[] used = new boolean[ 5 ];
-    hashCodes[0] = shortDescIndex.getCode( shortDesc );
-    used[0] = shortDesc != null;
-    hashCodes[1] = longDescIndex.getCode( longDesc );
-    used[1] = longDesc != null;
-    hashCodes[2] = obviousExitsIndex.getCode( obviousExits );
-    used[2] = obviousExits != null;
+    int[] hashCodes = new int[ 2 ];
+    boolean[] used = new boolean[ 2 ];
+    byte[][] keys = new byte[ 3 ][];
+    keys[0] = shortDescIndex.getKey( shortDesc );
+    keys[1] = longDescIndex.getKey( longDesc );
+    keys[2] = obviousExitsIndex.getKey( obviousExits );
     if( region != null && region.length > 0 ){
-      hashCodes[3] = regionIDIndex.getCode( region[0] );
-      used[3] = true;
-    }else used[3] = false;
+      hashCodes[0] = regionIDIndex.getCode( region[0] );
+      used[0] = true;
+    }else used[0] = false;
     if( hasUnassignedExits != null && hasUnassignedExits.length > 0 ){
-      hashCodes[4] = unassignedExitIndex.getCode(hasUnassignedExits[0]);
-      used[4] = true;
-    }else used[4] = false;
-    return myPS.getIDs( hashCodes, used );
+      hashCodes[1] = unassignedExitIndex.getCode(hasUnassignedExits[0]);
+      used[1] = true;
+    }else used[1] = false;
+    return myPS.getIDs( hashCodes, used, keys );
+  }
+  // every room whose short description starts with prefix
+  public int[] getRoomsStartingWith( String prefix ){
+    return myPS.getIDsWithPrefix( 0, shortDescIndex.getKey( prefix ) );
   }
   public void finalize(){
     try{
@@ -181,34 +227,47 @@ public class RoomManager implements Observer{
       ioe.printStackTrace( System.err );
     }
   }
-  static final class ShortDescIndex implements Index{
-    final public int getCode( Object s ){
-      return getCode( ((Room)s).getShortDesc() );
+  // a null description or exit list isn't indexed, and can't be
+  // looked up; null means "any" in getRoomsMatching().
+  // kept in order, for getRoomsStartingWith()
+  static final class ShortDescIndex implements RangeIndex{
+    final public byte[] getKey( Object s ){
+      return getKey( ((Room)s).getShortDesc() );
     }
-    final public int getCode( String shortDesc ){
-      return shortDesc == null ? 0 : shortDesc.hashCode();
+    final public byte[] getKey( String shortDesc ){
+      return shortDesc == null ? null : shortDesc.getBytes( UTF8 );
     }
   }
-  static final class LongDescIndex implements Index{
-    final public int getCode( Object s ){
-      return getCode( ((Room)s).getLongDesc() );
+  static final class LongDescIndex implements KeyIndex{
+    final public byte[] getKey( Object s ){
+      return getKey( ((Room)s).getLongDesc() );
     }
-    final public int getCode( String longDesc ){
-      return longDesc == null ? 0 : longDesc.hashCode();
+    final public byte[] getKey( String longDesc ){
+      return longDesc == null ? null : longDesc.getBytes( UTF8 );
     }
   }
-  static final class ObviousExitsIndex implements Index{
-    final public int getCode( Object s ){
-      return getCode( ((Room)s).getObviousExits() );
+  static final class ObviousExitsIndex implements KeyIndex{
+    final public byte[] getKey( Object s ){
+      return getKey( ((Room)s).getObviousExits() );
     }
-    final public int getCode( String[] obviousExits ){
+    // the exits are a set, so they are sorted first, and then joined
+    // with a character no exit name has.
+    final public byte[] getKey( String[] obviousExits ){
       if( obviousExits == null )
-        return 0;
-      int code = 0;
-      int i;
+        return null;
+      String[] sorted = new String[ obviousExits.length ];
+      int i, n = 0;
       for( i = 0; i < obviousExits.length; i++ )
-        code ^= obviousExits[i] == null? 0 : obviousExits[i].hashCode();
-      return code;
+        if( obviousExits[i] != null )
+          sorted[ n++ ] = obviousExits[i];
+      Arrays.sort( sorted, 0, n );
+      StringBuffer sb = new StringBuffer();
+      for( i = 0; i < n; i++ ){
+        if( i > 0 )
+          sb.append( '\n' );
+        sb.append( sorted[i] );
+      }
+      return sb.toString().getBytes( UTF8 );
     }
   }
   static final class RegionIDIndex implements Index{
@@ -1,7 +1,10 @@
 package mudclient.automapper;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import java.util.Observable;
+import tools.persistence.BufferStreamable;
+import tools.persistence.BufferStreams;
 import tools.persistence.Storable;
 
 /** This is a problematic exit.
@@ -16,7 +19,8 @@ import tools.persistence.Storable;
  * It might be a good idea to attach state machines to rooms as
  * well... Heck, state machine logic could run your bot...
  */
-public class SpecialExit extends Observable implements Storable{
+public class SpecialExit extends Observable 
+  implements Storable, BufferStreamable{
   // indications as to what changed when Observable.notifyObservers
   // is called.
   public static final Object DESTINATIONS_CHANGED = new Object();
@@ -306,142 +310,118 @@ public class SpecialExit extends Observable implements Storable{
   public int getStreamedLength(){
     return stl;
   }
-  private static final String readString( 
-      DataInputStream is ) throws IOException {
-    int len = is.readInt();
-    if( len == 0 )
-      return null;
-    byte[] bs = new byte[ len ];
-    is.readFully( bs );
-    return new String( bs );
-  }
-  private static final SENode[] readNodes( 
-      DataInputStream is ) throws IOException {
-    int len = is.readInt();
+  private final SENode[] readNodes( ByteBuffer bb ){
+    int len = bb.getInt();
     SENode[] a = new SENode[ len ];
     for( int i = 0; i < len; i++ )
-      a[ i ] = readNode( is );
+      a[ i ] = readNode( bb );
     return a;
   }
-  private static final SECommand readCommand(
-      DataInputStream is ) throws IOException {
+  private final SECommand readCommand( ByteBuffer bb ){
     SECommand c = new SECommand();
-    c.node = is.readInt();
-    c.text = readString( is );
+    c.node = bb.getInt();
+    c.text = BufferStreams.getString( bb );
     return c;
   }
-  private static final SECommand[] readCommands(
-      DataInputStream is ) throws IOException {
-    int len = is.readInt();
+  private final SECommand[] readCommands( ByteBuffer bb ){
+    int len = bb.getInt();
     SECommand[] a = new SECommand[ len ];
     for( int i = 0; i < len; i++ )
-      a[ i ] = readCommand( is );
+      a[ i ] = readCommand( bb );
     return a;
   }
-  private static final SETrigger readTrigger(
-      DataInputStream is ) throws IOException {
+  private final SETrigger readTrigger( ByteBuffer bb ){
     SETrigger t = new SETrigger();
-    t.node = is.readInt();
-    t.time = is.readInt();
-    t.text = readString( is );
+    t.node = bb.getInt();
+    t.time = bb.getInt();
+    t.text = BufferStreams.getString( bb );
     return t;
   }
-  private static final SETrigger[] readTriggers(
-      DataInputStream is ) throws IOException {
-    int len = is.readInt();
+  private final SETrigger[] readTriggers( ByteBuffer bb ){
+    int len = bb.getInt();
     SETrigger[] a = new SETrigger[ len ];
     for( int i = 0; i < len; i++ )
-      a[ i ] = readTrigger( is );
+      a[ i ] = readTrigger( bb );
     return a;
   }
-  private static final SENode readNode(
-      DataInputStream is ) throws IOException {
+  private final SENode readNode( ByteBuffer bb ){
     SENode n = new SENode();
-    n.roomID = is.readInt();
-    n.name = readString( is );
-    n.commands = readCommands( is );
-    n.triggers = readTriggers( is );
+    n.roomID = bb.getInt();
+    n.name = BufferStreams.getString( bb );
+    n.commands = readCommands( bb );
+    n.triggers = readTriggers( bb );
+    return n;
   }
 
-
   public void setState( DataInputStream is ) throws IOException {
-    stl = is.readInt();
-    id = is.readInt();
-    roomID = is.readInt();
-    cmd = readString( is );
-    len = is.readInt();
-    nodes = readNodes( is );
-  }
-  private static final void writeString( 
-      DataOutputStream os, String s ) throws IOException {
-    if( s == null || ("").equals( s ) ){
-      os.writeInt( 0 );
-      return;
-    }
-    byte[] bs = s.getBytes();
-    os.writeInt( bs.length );
-    os.write( bs );
+    BufferStreams.setState( this, is );
   }
-  private static final void writeCommand(
-      DataOutputStream os, SECommand c ) throws IOException {
-    os.writeInt( c.node );
-    writeString( os, c.text );
+  public void getState( DataOutputStream os ) throws IOException {
+    BufferStreams.getState( this, os );
+  }
+  // the same layout getState() writes
+  public void setState( ByteBuffer bb ){
+    stl = bb.getInt();
+    id = bb.getInt();
+    roomID = bb.getInt();
+    name = BufferStreams.getString( bb );
+    nodes = readNodes( bb );
+    nodeCosts = null;
+    destinations = null;
+    destinationCosts = null;
+  }
+  private static final void writeCommand( ByteBuffer bb, SECommand c ){
+    bb.putInt( c.node );
+    BufferStreams.putString( bb, c.text );
   }
-  private static final void writeCommands(
-      DataOutputStream os, SECommand[] a ) throws IOException {
+  private static final void writeCommands( ByteBuffer bb, SECommand[] a ){
     if( a == null ){
-      os.writeInd( 0 );
+      bb.putInt( 0 );
       return;
     }
-    os.writeInt( a.length );
+    bb.putInt( a.length );
     for( int i = 0; i < a.length; i++ ){
-      writeCommand( os, a[ i ] );
+      writeCommand( bb, a[ i ] );
     }
   }
-  private static final void writeTrigger(
-      DataOutputStream os, SETrigger t ) throws IOException {
-    os.writeInt( t.node );
-    os.writeInt( t.time );
-    writeString( os, t.text );
+  private static final void writeTrigger( ByteBuffer bb, SETrigger t ){
+    bb.putInt( t.node );
+    bb.putInt( t.time );
+    BufferStreams.putString( bb, t.text );
   }
-  private static final void writeTriggers(
-      DataOutputStream os, SETrigger[] a ) throws IOException {
+  private static final void writeTriggers( ByteBuffer bb, SETrigger[] a ){
     if( a == null ){
-      os.writeInd( 0 );
+      bb.putInt( 0 );
       return;
     }
-    os.writeInt( a.length );
+    bb.putInt( a.length );
     for( int i = 0; i < a.length; i++ ){
-      writeTrigger( os, a[ i ] );
+      writeTrigger( bb, a[ i ] );
     }
   }
-  private static final void writeNode(
-      DataOutputStream os, SENode n ) throws IOException {
-    os.writeInt( n.roomID );
-    writeString( os, n.name );
-    writeCommands( os, n.commands );
-    writeTriggers( os, n.triggers );
+  private static final void writeNode( ByteBuffer bb, SENode n ){
+    bb.putInt( n.roomID );
+    BufferStreams.putString( bb, n.name );
+    writeCommands( bb, n.commands );
+    writeTriggers( bb, n.triggers );
   }
-  private static final void writeNodes(
-      DataOutputStream os, SENode[] a ) throws IOException {
+  private static final void writeNodes( ByteBuffer bb, SENode[] a ){
     if( a == null ){
-      os.writeInd( 0 );
+      bb.putInt( 0 );
       return;
     }
-    os.writeInt( a.length );
+    bb.putInt( a.length );
     for( int i = 0; i < a.length; i++ ){
-      writeNode( os, a[ i ] );
+      writeNode( bb, a[ i ] );
     }
   }
 
-  public void getState( DataOutputStream os ) throws IOException {
-    byte[] bs;
-    int i;
-    os.writeInt( stl );
-    os.writeInt( id );
-    os.writeInt( roomID );
-    writeString( os, name );
-    writeNodes( os, nodes );
+  public void getState( ByteBuffer bb ){
+    bb.putInt( stl );
+    bb.putInt( id );
+    bb.putInt( roomID );
+    BufferStreams.putString( bb, name );
+    writeNodes( bb, nodes );
   }
   public String getDisplayString(){
     StringBuffer sb = new StringBuffer( "Special Exit - id:" + id +
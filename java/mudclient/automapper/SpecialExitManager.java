@@ -9,6 +9,7 @@ import tools.persistence.*;
 // this should be the only way to get a SpecialExit object.
 // Other objects should only keep transiet references 
 // to specialExits.
+// Like RoomManager, it can be used from several threads at once.
 public class SpecialExitManager implements Observer{
   private static HashSet names = new HashSet();
 
@@ -32,7 +33,7 @@ public class SpecialExitManager implements Observer{
       e.printStackTrace( System.err );
     }
   }
-  public int getCurrentSpecialExitIndex(){
+  public synchronized int getCurrentSpecialExitIndex(){
     return currentSpecialExitIndex;
   }
   public int[] getAllIDs(){
@@ -59,13 +60,23 @@ public class SpecialExitManager implements Observer{
     if( se != null )
       return se;
     se = loadFromPS( id );
-    if( se != null ){
-      specialExits.put( id, se );
-      se.addObserver( this );
-    }
+    if( se != null )
+      se = cache( se );
+    return se;
+  }
+  // whichever of two racing loads of an id gets here first is the one
+  // both get, so there is only ever one SpecialExit per id.
+  private synchronized SpecialExit cache( SpecialExit se ){
+    SpecialExit cached = getFromCache( se.getID() );
+    if( cached != null )
+      return cached;
+    specialExits.put( se.getID(), se );
+    se.addObserver( this );
     return se;
   }
-  public int createNewSpecialExit( int roomID, String cmd ){
+  // synchronized, so ids are handed out one at a time, and two threads
+  // can't both make the exit for one room and command
+  public synchronized int createNewSpecialExit( int roomID, String cmd ){
     SpecialExit se;
     if( (se = get( roomID, cmd )) != null ) return se.getID();
     se = new SpecialExit( ++currentSpecialExitIndex, roomID, cmd );
@@ -80,16 +91,19 @@ public class SpecialExitManager implements Observer{
     return se.getID();
   }
 
-  private void unmarkChanged( int i ){
+  private synchronized void unmarkChanged( int i ){
     changedSpecialExits.remove( i );
   }
-  private void markChanged( SpecialExit r ){
+  private synchronized void markChanged( SpecialExit r ){
     changedSpecialExits.put( r.getID(), r );
   }
   private void initializePS() throws IOException {
     myPS = new PersistentStore( myFileName, 
         new Index[]{roomCmdSEIndex},
         new SpecialExit(-1, -1, "") );
+    // a special exit is mostly the command and trigger text of its
+    // nodes, which shrinks a lot once there are a few of them
+    myPS.setCompression( 256 );
     currentSpecialExitIndex = myPS.getMaxID();
   }
   public boolean save(){
@@ -102,12 +116,35 @@ public class SpecialExitManager implements Observer{
     return true;
   }
   private void updatePS() throws IOException {
+    ArrayList changed = takeChanged();
+    // one batch, so they all land together in one write
+    try{
+      myPS.storeAll( changed );
+    }catch( IOException e ){
+      remarkChanged( changed );
+      throw e;
+    }
+    myPS.flush();
+  }
+  // the changed exits that are in memory, unmarked all at once, as
+  // RoomManager does.
+  private synchronized ArrayList takeChanged(){
     int i;
     int[] is = getChangedSpecialExits();
+    ArrayList changed = new ArrayList( is.length );
+    SpecialExit se;
     for( i = 0; i < is.length; i++ ){
-      updateSpecialExit( is[ i ] );
+      se = getFromCache( is[ i ] );
+      if( se != null )
+        changed.add( se );
+      unmarkChanged( is[ i ] );
     }
-    myPS.flush();
+    return changed;
+  }
+  private synchronized void remarkChanged( ArrayList changed ){
+    int i;
+    for( i = 0; i < changed.size(); i++ )
+      markChanged( (SpecialExit)changed.get( i ) );
   }
   private void updateSpecialExit( int i ) throws IOException {
     
@@ -118,11 +155,11 @@ public class SpecialExitManager implements Observer{
     }
     unmarkChanged( i );
   }
-  private int[] getChangedSpecialExits(){
+  private synchronized int[] getChangedSpecialExits(){
     return changedSpecialExits.keys();
   }
 
-  private SpecialExit getFromCache( int id ){
+  private synchronized SpecialExit getFromCache( int id ){
     return (SpecialExit)specialExits.get(id);
   }
   private SpecialExit loadFromPS( int id ) {
@@ -0,0 +1,192 @@
+package test;
+
+import java.io.*;
+import java.util.Random;
+import tools.persistence.*;
+
+/** checks group commit under SYNC_PERIODIC, with the flusher forcing
+ * every millisecond.  Some threads store, delete and commit records of
+ * their own, checking each one they touch, while another packs,
+ * compacts, checkpoints and opens snapshots under them.  Every so often
+ * it stops them all, and reopens the store to check every record
+ * against what the threads last did.  It prints OK, or what went wrong.
+ */
+public class GroupCommitTest{
+  private static final int THREADS = 3;
+  private static final int IDS = 100;
+  private static volatile Throwable failure;
+
+  public static void main( String[] args ){
+    File f = new File( args.length > 0 ? args[0]
+        : System.getProperty( "java.io.tmpdir" ) + "/GroupCommitTest.dat" );
+    try{
+      int seed;
+      for( seed = 1; seed <= 30; seed++ ){
+        delete( f );
+        run( f, seed, 4, 1000 );
+      }
+      delete( f );
+      System.out.println( "OK" );
+    }catch( Throwable e ){
+      e.printStackTrace( System.out );
+    }
+  }
+  private static void delete( File f ){
+    File[] fs = f.getAbsoluteFile().getParentFile().listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      if( fs[i].getName().startsWith( f.getName() ) )
+        fs[i].delete();
+  }
+  private static PersistentStore open( File f ) throws IOException{
+    PersistentStore ps =
+      new PersistentStore( f, new Index[0], new TestStorable( -1, 0 ) );
+    ps.setDurability( PersistentStore.SYNC_PERIODIC, 1, 0 );
+    return ps;
+  }
+  // runs rounds rounds on each thread, reopens times times
+  private static void run( File f, long seed, int times, int rounds )
+    throws Throwable{
+    Random r = new Random( seed );
+    // the version each id was last stored with, or -1 if it is deleted
+    int[] versions = new int[ THREADS * IDS ];
+    java.util.Arrays.fill( versions, -1 );
+    int i, j, id;
+    for( i = 0; i < times; i++ ){
+      PersistentStore ps = open( f );
+      for( id = 0; id < versions.length; id++ )
+        check( ps, id, versions[ id ] );
+      Worker[] ws = new Worker[ THREADS ];
+      for( j = 0; j < THREADS; j++ ){
+        ws[j] = new Worker( ps, versions, j * IDS, r.nextLong(), rounds );
+        ws[j].start();
+      }
+      PersistentStore.Snapshot s = null;
+      while( alive( ws ) && failure == null ){
+        switch( r.nextInt( 4 ) ){
+          case 0:
+            if( s != null ){
+              s.close();
+              s = null;
+            }
+            ps.pack();
+            break;
+          case 1:
+            ps.compactStep( 20 );
+            break;
+          case 2:
+            ps.checkpoint();
+            break;
+          default:
+            if( s == null ){
+              s = ps.openSnapshot();
+            }else{
+              s.close();
+              s = null;
+            }
+        }
+        Thread.sleep( r.nextInt( 2 ) );
+      }
+      for( j = 0; j < THREADS; j++ )
+        ws[j].join();
+      if( s != null )
+        s.close();
+      if( failure != null )
+        throw failure;
+      ps.commit();
+      ps.close();
+    }
+    PersistentStore ps = open( f );
+    for( id = 0; id < versions.length; id++ )
+      check( ps, id, versions[ id ] );
+    ps.close();
+  }
+  private static boolean alive( Thread[] ts ){
+    int i;
+    for( i = 0; i < ts.length; i++ )
+      if( ts[i].isAlive() )
+        return true;
+    return false;
+  }
+  private static void check( PersistentStore ps, int id, int version )
+    throws IOException{
+    TestStorable t = new TestStorable( -1, -1 );
+    ps.loadStorable( id, t );
+    if( version < 0 ? t.id != -1 : t.id != id || t.version != version )
+      throw new IOException( "id " + id + " loaded as id " + t.id
+          + " version " + t.version + ", not version " + version );
+  }
+
+  // stores, deletes and commits ids [first, first + IDS), which no
+  // other Worker touches
+  private static class Worker extends Thread{
+    private PersistentStore ps;
+    private int[] versions;
+    private int first;
+    private Random r;
+    private int rounds;
+    Worker( PersistentStore ps, int[] versions, int first, long seed,
+        int rounds ){
+      this.ps = ps;
+      this.versions = versions;
+      this.first = first;
+      this.r = new Random( seed );
+      this.rounds = rounds;
+    }
+    public void run(){
+      int i, id;
+      try{
+        for( i = 0; i < rounds && failure == null; i++ ){
+          id = first + r.nextInt( IDS );
+          switch( r.nextInt( 6 ) ){
+            case 0:
+            case 1:
+            case 2:
+              versions[ id ] = versions[ id ] < 0 ? 0 : versions[ id ] + 1;
+              ps.store( new TestStorable( id, versions[ id ] ) );
+              break;
+            case 3:
+              ps.deleteStorable( id );
+              versions[ id ] = -1;
+              break;
+            default:
+              ps.commit();
+          }
+          check( ps, id, versions[ id ] );
+        }
+      }catch( Throwable e ){
+        failure = e;
+      }
+    }
+  }
+
+  private static class TestStorable implements Storable{
+    int id;
+    int version;
+    TestStorable( int id, int version ){
+      this.id = id;
+      this.version = version;
+    }
+    public int getID(){
+      return id;
+    }
+    // the size varies, so records move around
+    public int getStreamedLength(){
+      return 12 + 4 * ((id + version) % 7);
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( getStreamedLength() );
+      os.writeInt( id );
+      os.writeInt( version );
+      int i;
+      for( i = 0; i < (id + version) % 7; i++ )
+        os.writeInt( i );
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      int stl = is.readInt();
+      id = is.readInt();
+      version = is.readInt();
+      is.skipBytes( stl - 12 );
+    }
+  }
+}
@@ -0,0 +1,362 @@
+package test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import tools.Utils;
+import tools.persistence.*;
+
+/** times PersistentStore's main operations, so that a change can be
+ * shown to make it faster or slower.  JMH would be the usual tool, but
+ * nothing here is built with anything that could fetch it, so this
+ * does the part of its job we need: every measurement is run untimed a
+ * few times first, for the JIT to settle, and then a few times timed,
+ * and we report the median and the best.<br>
+ *
+ * For each number of records and of indexes, it times store() in id
+ * order and in random order, with a commit() every COMMIT_EVERY, into
+ * a new store each time; loadStorable() in id order and in random
+ * order; getIDs() on each index in turn; commit() after a batch of
+ * stores; deleteStorable(); and pack(), after a tenth of the records
+ * are deleted.  Then it churns the store, replacing, deleting and
+ * adding records of varying sizes, and shows how fragmented the file
+ * gets as it goes.  Stores are made in a temporary directory, and
+ * deleted afterwards.<br>
+ *
+ * java test.PersistentStoreBenchmark [-records 1000,100000,1000000]
+ * [-indexes 1,3,5] [-warmups 1] [-iterations 3] [-churn 20]
+ * [-mode 0] [-dir &lt;directory&gt;]
+ */
+public class PersistentStoreBenchmark{
+  private static final int COMMIT_EVERY = 1000;
+  // how many stores each timed commit() has to write
+  private static final int COMMIT_BATCH = 100;
+  // how many distinct codes each index has, from few ids per code to many
+  private static final int[] CARDINALITY = { 10, 1000, 100, 100000, 10000 };
+  private static final int MAX_INDEXES = CARDINALITY.length;
+
+  private int[] recordCounts = { 1000, 100000, 1000000 };
+  private int[] indexCounts = { 1, 3, 5 };
+  private int warmups = 1;
+  private int iterations = 3;
+  private int churnRounds = 20;
+  private int mode;
+  private File dir;
+  private Random random = new Random( 1 );
+  // the store being timed, and where it is
+  private PersistentStore ps;
+  private File file;
+  private Index[] indexes;
+  // bumped whenever records are replaced, so they change
+  private int version;
+
+  public static void main( String[] args ){
+    PersistentStoreBenchmark b = new PersistentStoreBenchmark();
+    int i;
+    try{
+      for( i = 0; i < args.length - 1; i += 2 ){
+        if( args[i].equals( "-records" ) )
+          b.recordCounts = parseInts( args[i+1] );
+        else if( args[i].equals( "-indexes" ) )
+          b.indexCounts = parseInts( args[i+1] );
+        else if( args[i].equals( "-warmups" ) )
+          b.warmups = Integer.parseInt( args[i+1] );
+        else if( args[i].equals( "-iterations" ) )
+          b.iterations = Math.max( 1, Integer.parseInt( args[i+1] ) );
+        else if( args[i].equals( "-churn" ) )
+          b.churnRounds = Integer.parseInt( args[i+1] );
+        else if( args[i].equals( "-mode" ) )
+          b.mode = Integer.parseInt( args[i+1] );
+        else if( args[i].equals( "-dir" ) )
+          b.dir = new File( args[i+1] );
+        else
+          break;
+      }
+      if( i != args.length ){
+        System.out.println( "usage: java test.PersistentStoreBenchmark "
+            + "[-records 1000,100000,1000000] [-indexes 1,3,5] "
+            + "[-warmups 1] [-iterations 3] [-churn 20] [-mode 0] "
+            + "[-dir <directory>]" );
+        return;
+      }
+      b.run();
+    }catch( IOException e ){
+      e.printStackTrace( System.err );
+    }
+  }
+  private static int[] parseInts( String s ){
+    String[] parts = s.split( "," );
+    int[] is = new int[ parts.length ];
+    int i;
+    for( i = 0; i < parts.length; i++ )
+      is[i] = Math.max( 1, Integer.parseInt( parts[i].trim() ) );
+    return is;
+  }
+  private void run() throws IOException{
+    boolean made = dir == null;
+    if( made )
+      dir = java.nio.file.Files.createTempDirectory( "psbench" ).toFile();
+    file = new File( dir, "bench.dat" );
+    System.out.println( "records indexes benchmark          "
+        + "   median       best" );
+    int r, i;
+    try{
+      for( r = 0; r < recordCounts.length; r++ )
+        for( i = 0; i < indexCounts.length; i++ )
+          bench( recordCounts[r], Math.min( indexCounts[i], MAX_INDEXES ) );
+    }finally{
+      if( ps != null )
+        ps.close();
+      deleteStore();
+      if( made )
+        dir.delete();
+    }
+  }
+
+  private void bench( int records, int indexCount ) throws IOException{
+    indexes = new Index[ indexCount ];
+    int i;
+    for( i = 0; i < indexCount; i++ )
+      indexes[i] = new FieldIndex( i );
+    String label = Utils.niceInt( records, 7 ) + Utils.niceInt( indexCount, 8 )
+      + " ";
+    int[] inOrder = new int[ records ];
+    for( i = 0; i < records; i++ )
+      inOrder[i] = i;
+    int[] shuffled = shuffle( inOrder );
+
+    report( label + "store in order   ", "ns/op", timeStores( inOrder ) );
+    // the random one is left open for the rest
+    report( label + "store random     ", "ns/op", timeStores( shuffled ) );
+    report( label + "load in order    ", "ns/op", timeLoads( inOrder ) );
+    report( label + "load random      ", "ns/op", timeLoads( shuffled ) );
+    report( label + "getIDs           ", "ns/op", timeLookups( records ) );
+    report( label + "commit           ", "ns/op", timeCommits( records ) );
+    report( label + "deleteStorable   ", "ns/op", timeDeletes( records, false ) );
+    report( label + "pack             ", "ms/op", timeDeletes( records, true ) );
+    churn( label, records );
+    ps.close();
+    ps = null;
+  }
+  // a new store, with every record in order stored in that order
+  private long[] timeStores( int[] order ) throws IOException{
+    long[] times = new long[ iterations ];
+    long start;
+    int it, i;
+    for( it = -warmups; it < iterations; it++ ){
+      if( ps != null )
+        ps.close();
+      deleteStore();
+      ps = new PersistentStore( file, indexes, new BenchStorable(), mode );
+      start = System.nanoTime();
+      for( i = 0; i < order.length; i++ ){
+        ps.store( make( order[i] ) );
+        if( (i + 1) % COMMIT_EVERY == 0 )
+          ps.commit();
+      }
+      ps.commit();
+      if( it >= 0 )
+        times[ it ] = (System.nanoTime() - start) / order.length;
+    }
+    return times;
+  }
+  private long[] timeLoads( int[] order ) throws IOException{
+    long[] times = new long[ iterations ];
+    BenchStorable b = new BenchStorable();
+    long start;
+    int it, i;
+    for( it = -warmups; it < iterations; it++ ){
+      start = System.nanoTime();
+      for( i = 0; i < order.length; i++ )
+        ps.loadStorable( order[i], b );
+      if( it >= 0 )
+        times[ it ] = (System.nanoTime() - start) / order.length;
+    }
+    return times;
+  }
+  // getIDs() for a random code on each index in turn
+  private long[] timeLookups( int records ){
+    int lookups = Math.max( 100, Math.min( records, 10000 ) );
+    long[] times = new long[ iterations ];
+    int[] codes = new int[ indexes.length ];
+    boolean[] use = new boolean[ indexes.length ];
+    long start, found = 0;
+    int it, i, j;
+    for( it = -warmups; it < iterations; it++ ){
+      start = System.nanoTime();
+      for( i = 0; i < lookups; i++ ){
+        j = i % indexes.length;
+        Arrays.fill( use, false );
+        use[j] = true;
+        codes[j] = random.nextInt( CARDINALITY[j] );
+        found += ps.getIDs( codes, use ).length;
+      }
+      if( it >= 0 )
+        times[ it ] = (System.nanoTime() - start) / lookups;
+    }
+    // so the lookups can't be optimized away
+    if( found < 0 )
+      System.out.println( found );
+    return times;
+  }
+  // commit()s, each after COMMIT_BATCH records are replaced, counting
+  // only the commit itself
+  private long[] timeCommits( int records ) throws IOException{
+    int commits = Math.max( 10, Math.min( records / COMMIT_BATCH, 200 ) );
+    long[] times = new long[ iterations ];
+    long start, total;
+    int it, i, j;
+    for( it = -warmups; it < iterations; it++ ){
+      version++;
+      total = 0;
+      for( i = 0; i < commits; i++ ){
+        for( j = 0; j < COMMIT_BATCH; j++ )
+          ps.store( make( random.nextInt( records ) ) );
+        start = System.nanoTime();
+        ps.commit();
+        total += System.nanoTime() - start;
+      }
+      if( it >= 0 )
+        times[ it ] = total / commits;
+    }
+    return times;
+  }
+  // deletes a tenth of the records, at random, and commits, timing the
+  // deletes, or with pack, the pack() after them.  They are put back,
+  // untimed, afterwards.
+  private long[] timeDeletes( int records, boolean pack ) throws IOException{
+    long[] times = new long[ iterations ];
+    int[] victims = Arrays.copyOf( shuffle( ps.getIDs() ),
+        Math.max( 1, records / 10 ) );
+    long start;
+    int it, i;
+    for( it = -warmups; it < iterations; it++ ){
+      start = System.nanoTime();
+      for( i = 0; i < victims.length; i++ )
+        ps.deleteStorable( victims[i] );
+      ps.commit();
+      if( pack ){
+        start = System.nanoTime();
+        ps.pack();
+      }
+      if( it >= 0 )
+        times[ it ] = pack ? (System.nanoTime() - start) / 1000000
+          : (System.nanoTime() - start) / victims.length;
+      for( i = 0; i < victims.length; i++ )
+        ps.store( make( victims[i] ) );
+      ps.commit();
+    }
+    return times;
+  }
+  // each round replaces a tenth of the records with ones of a new
+  // size, deletes a fiftieth and adds as many new ones, and commits,
+  // the way a store in use changes, and we watch the free space.
+  private void churn( String label, int records ) throws IOException{
+    int next = ps.getMaxID() + 1;
+    int round, i;
+    int[] ids;
+    long start;
+    for( round = 1; round <= churnRounds; round++ ){
+      version++;
+      start = System.nanoTime();
+      ids = ps.getIDs();
+      for( i = 0; i < records / 10; i++ )
+        ps.store( make( ids[ random.nextInt( ids.length ) ] ) );
+      for( i = 0; i < records / 50; i++ ){
+        ps.deleteStorable( ids[ random.nextInt( ids.length ) ] );
+        ps.store( make( next++ ) );
+        if( (i + 1) % COMMIT_EVERY == 0 )
+          ps.commit();
+      }
+      ps.commit();
+      if( round == 1 || round == churnRounds || round % 5 == 0 )
+        System.out.println( label + "churn round " + Utils.niceInt( round, 3 )
+            + "  " + Utils.niceInt( (System.nanoTime() - start) / 1000000, 6 )
+            + " ms, " + Math.round( 1000 * ps.getFragmentation() ) / 10.0
+            + "% free of " + ps.getStats().getFileLength() / 1024 + " KB" );
+    }
+  }
+
+  private void report( String name, String unit, long[] times ){
+    long[] sorted = times.clone();
+    Arrays.sort( sorted );
+    System.out.println( name + Utils.niceInt( sorted[ sorted.length / 2 ], 10 )
+        + Utils.niceInt( sorted[0], 11 ) + " " + unit );
+  }
+  private int[] shuffle( int[] is ){
+    int[] shuffled = is.clone();
+    int i, j, t;
+    for( i = shuffled.length - 1; i > 0; i-- ){
+      j = random.nextInt( i + 1 );
+      t = shuffled[i];
+      shuffled[i] = shuffled[j];
+      shuffled[j] = t;
+    }
+    return shuffled;
+  }
+  private void deleteStore(){
+    File[] fs = dir.listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      if( fs[i].getName().startsWith( file.getName() ) )
+        fs[i].delete();
+  }
+  // the record for id, as of this version.  Its fields and size are
+  // mixed from both, so replacing a record moves it around the indexes
+  // and changes how much space it needs.
+  private BenchStorable make( int id ){
+    int h = (id * 0x9E3779B1) ^ (version * 0x85EBCA6B);
+    h ^= h >>> 15;
+    h *= 0x2C1B3C6D;
+    h ^= h >>> 12;
+    BenchStorable b = new BenchStorable();
+    b.id = id;
+    int i;
+    for( i = 0; i < MAX_INDEXES; i++ )
+      b.fields[i] = ((h >>> (3 * i)) & 0x7FFFFFFF) % CARDINALITY[i];
+    // 20 to 275 bytes, about 150 on average
+    b.payload = new byte[ 20 + (h >>> 24) ];
+    Arrays.fill( b.payload, (byte)('a' + (id % 26)) );
+    b.stl = 8 + 4 * MAX_INDEXES + b.payload.length;
+    return b;
+  }
+
+  private static class BenchStorable implements Storable{
+    int id = -1;
+    int stl;
+    int[] fields = new int[ MAX_INDEXES ];
+    byte[] payload;
+    public int getID(){
+      return id;
+    }
+    public int getStreamedLength(){
+      return stl;
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( stl );
+      os.writeInt( id );
+      int i;
+      for( i = 0; i < fields.length; i++ )
+        os.writeInt( fields[i] );
+      os.write( payload );
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      stl = is.readInt();
+      id = is.readInt();
+      int i;
+      for( i = 0; i < fields.length; i++ )
+        fields[i] = is.readInt();
+      payload = new byte[ stl - 8 - 4 * fields.length ];
+      is.readFully( payload );
+    }
+  }
+  private static class FieldIndex implements Index{
+    private int field;
+    FieldIndex( int field ){
+      this.field = field;
+    }
+    public int getCode( Object o ){
+      return ((BenchStorable)o).fields[ field ];
+    }
+  }
+}
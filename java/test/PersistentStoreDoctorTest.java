@@ -0,0 +1,180 @@
+package test;
+
+import java.io.*;
+import java.util.Random;
+import tools.persistence.*;
+
+/** checks that PersistentStoreDoctor finds a corrupted record and a
+ * corrupted index block, and that -repair leaves a store that passes
+ * the check again and still has every record: the one whose latest
+ * copy was corrupted may come back as an older copy, or not at all,
+ * and once the index block is gone, any record may come back older,
+ * but never as anything else.  It prints OK, or what went wrong.
+ */
+public class PersistentStoreDoctorTest{
+  private static final int IDS = 300;
+  private static Index parityIndex = new Index(){
+    public int getCode( Object o ){
+      return ((TestStorable)o).version % 2;
+    } };
+
+  public static void main( String[] args ){
+    File f = new File( args.length > 0 ? args[0]
+        : System.getProperty( "java.io.tmpdir" ) + "/PersistentStoreDoctorTest.dat" );
+    try{
+      delete( f );
+      run( f );
+      delete( f );
+      System.out.println( "OK" );
+    }catch( Exception e ){
+      e.printStackTrace( System.out );
+    }
+  }
+  private static void delete( File f ){
+    File[] fs = f.getAbsoluteFile().getParentFile().listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      if( fs[i].getName().startsWith( f.getName() ) )
+        fs[i].delete();
+  }
+  private static PersistentStore open( File f ) throws IOException{
+    return new PersistentStore( f, new Index[]{ parityIndex },
+        new TestStorable( -1, 0 ) );
+  }
+  private static void run( File f ) throws IOException{
+    Random r = new Random( 1 );
+    int[] versions = new int[ IDS ];
+    PersistentStore ps = open( f );
+    int i, id;
+    // every id at least once, and then some again, so there are older
+    // copies for a scan to find
+    for( i = 0; i < IDS * 4; i++ ){
+      id = i < IDS ? i : r.nextInt( IDS );
+      versions[ id ] = i;
+      ps.store( new TestStorable( id, i ) );
+      if( i % 50 == 0 )
+        ps.commit();
+      if( i % 400 == 0 )
+        ps.checkpoint();
+    }
+    ps.commit();
+    ps.close();
+    expect( f, false, false, true, "the new store" );
+
+    // one bit of id 7's latest record
+    corrupt( f, find( f, TestStorable.text( 7, versions[7] ) ) + 2 );
+    expect( f, false, false, false, "a corrupted record" );
+    expect( f, false, true, true, "repairing the record" );
+    expect( f, true, false, true, "the repaired store" );
+    check( f, versions, 7 );
+
+    // one bit of the index block, which the header points at
+    RandomAccessFile raf = new RandomAccessFile( f, "r" );
+    raf.seek( 8 );
+    long block = raf.readLong();
+    raf.close();
+    corrupt( f, block + 30 );
+    expect( f, false, false, false, "a corrupted index block" );
+    expect( f, false, true, true, "repairing the index block" );
+    expect( f, true, false, true, "the rebuilt store" );
+    check( f, versions, -1 );
+  }
+  // runs the doctor, and throws if it doesn't say ok
+  private static void expect( File f, boolean scan, boolean repair,
+      boolean ok, String what ) throws IOException{
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream( baos );
+    boolean found = PersistentStoreDoctor.check( f, scan, repair, out );
+    out.flush();
+    if( found != ok )
+      throw new IOException( "the doctor said " + (found ? "ok" : "not ok")
+          + " to " + what + ":\n" + baos );
+  }
+  // every id is there, at its latest version, but lost may be older
+  // or gone, and if lost is -1, any of them may be older
+  private static void check( File f, int[] versions, int lost )
+    throws IOException{
+    PersistentStore ps = open( f );
+    int id, parity;
+    int[] counts = new int[2];
+    for( id = 0; id < versions.length; id++ ){
+      TestStorable t = new TestStorable( -1, -1 );
+      ps.loadStorable( id, t );
+      if( t.id == -1 && id == lost )
+        continue;
+      if( t.id != id || t.version > versions[ id ]
+          || t.version < versions[ id ] && lost != -1 && id != lost )
+        throw new IOException( "id " + id + " loaded as id " + t.id
+            + " version " + t.version + ", not version " + versions[ id ] );
+      counts[ t.version % 2 ]++;
+    }
+    // the hashed index was built again
+    for( parity = 0; parity < 2; parity++ )
+      if( ps.getIDs( new int[]{ parity } ).length != counts[ parity ] )
+        throw new IOException( "the index has "
+            + ps.getIDs( new int[]{ parity } ).length + " ids of parity "
+            + parity + ", not " + counts[ parity ] );
+    ps.close();
+  }
+  // where s's bytes are in f
+  private static long find( File f, String s ) throws IOException{
+    byte[] bs = new byte[ (int)f.length() ];
+    DataInputStream is = new DataInputStream( new FileInputStream( f ) );
+    try{
+      is.readFully( bs );
+    }finally{
+      is.close();
+    }
+    byte[] pattern = s.getBytes();
+    int i, j;
+    for( i = 0; i + pattern.length <= bs.length; i++ ){
+      for( j = 0; j < pattern.length && bs[ i + j ] == pattern[j]; j++ )
+        ;
+      if( j == pattern.length )
+        return i;
+    }
+    throw new IOException( s + " isn't in " + f );
+  }
+  private static void corrupt( File f, long location ) throws IOException{
+    RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+    try{
+      raf.seek( location );
+      int b = raf.read();
+      raf.seek( location );
+      raf.write( b ^ 1 );
+    }finally{
+      raf.close();
+    }
+  }
+
+  private static class TestStorable implements Storable{
+    int id;
+    int version;
+    TestStorable( int id, int version ){
+      this.id = id;
+      this.version = version;
+    }
+    // what the record says, so it can be found in the file
+    static String text( int id, int version ){
+      return "id " + id + " version " + version;
+    }
+    public int getID(){
+      return id;
+    }
+    public int getStreamedLength(){
+      return 14 + text( id, version ).length();
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( getStreamedLength() );
+      os.writeInt( id );
+      os.writeInt( version );
+      os.writeUTF( text( id, version ) );
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      is.readInt();
+      id = is.readInt();
+      version = is.readInt();
+      is.readUTF();
+    }
+  }
+}
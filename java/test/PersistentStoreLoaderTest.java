@@ -0,0 +1,185 @@
+package test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import tools.persistence.*;
+
+/** checks that a store made by PersistentStoreLoader is the same as
+ * one made by store() from the same records: the same ids, records,
+ * codes, keys and key prefixes.  Some ids are added twice, out of
+ * order, and some records are long enough to be compressed.  Then it
+ * checks that the loaded store carries on like any other.  It prints
+ * OK, or what went wrong.
+ */
+public class PersistentStoreLoaderTest{
+  private static final int RECORDS = 5000;
+  private static Index otherIndex = new Index(){
+    public int getCode( Object o ){
+      return ((TestStorable)o).other;
+    } };
+  private static Index lengthIndex = new Index(){
+    public int getCode( Object o ){
+      return ((TestStorable)o).s.length() % 7;
+    } };
+  // the short strings, in order
+  private static RangeIndex sIndex = new RangeIndex(){
+    public byte[] getKey( Object o ){
+      String s = ((TestStorable)o).s;
+      return s.length() > 12 ? null : s.getBytes();
+    } };
+  private static KeyIndex headIndex = new KeyIndex(){
+    public byte[] getKey( Object o ){
+      return ((TestStorable)o).s.substring( 0, 3 ).getBytes();
+    } };
+  private static Index[] hashers = { otherIndex, lengthIndex };
+  private static KeyIndex[] keyIndexes = { sIndex, headIndex };
+
+  public static void main( String[] args ){
+    File dir = new File( args.length > 0 ? args[0]
+        : System.getProperty( "java.io.tmpdir" ) + "/PersistentStoreLoaderTest" );
+    try{
+      clear( dir );
+      run( dir );
+      clear( dir );
+      System.out.println( "OK" );
+    }catch( Exception e ){
+      e.printStackTrace( System.out );
+    }
+  }
+  private static PersistentStore open( File f ) throws IOException{
+    return new PersistentStore( f, hashers, keyIndexes,
+        new TestStorable( -1, null, -1 ), 0 );
+  }
+  private static void run( File dir ) throws IOException{
+    Random r = new Random( 3 );
+    TestStorable[] ts = new TestStorable[ RECORDS ];
+    int i, id, length, k;
+    for( i = 0; i < RECORDS; i++ ){
+      // the last tenth are ids seen already, and a few are negative
+      id = i < RECORDS * 9 / 10 ? i : r.nextInt( RECORDS );
+      if( r.nextInt( 50 ) == 0 )
+        id = -id - 1;
+      StringBuffer sb = new StringBuffer( "r" + r.nextInt( 40 ) + "-" );
+      length = r.nextInt( r.nextInt( 20 ) == 0 ? 600 : 20 );
+      for( k = 0; k < length; k++ )
+        sb.append( (char)('a' + r.nextInt( 4 )) );
+      ts[i] = new TestStorable( id, sb.toString(), r.nextInt( 100 ) );
+    }
+    File lf = new File( dir, "loaded.dat" );
+    PersistentStoreLoader loader =
+      new PersistentStoreLoader( lf, hashers, keyIndexes );
+    loader.setCompression( 128 );
+    for( i = 0; i < RECORDS; i++ )
+      loader.add( ts[i] );
+    loader.finish();
+    PersistentStore loaded = open( lf );
+    PersistentStore stored = open( new File( dir, "stored.dat" ) );
+    stored.setCompression( 128 );
+    for( i = 0; i < RECORDS; i++ )
+      stored.store( ts[i] );
+    stored.commit();
+
+    same( "ids", loaded.getIDs(), stored.getIDs() );
+    int[] ids = stored.getIDs();
+    for( i = 0; i < ids.length; i++ ){
+      TestStorable a = new TestStorable( -1, null, -1 );
+      TestStorable b = new TestStorable( -1, null, -1 );
+      loaded.loadStorable( ids[i], a );
+      stored.loadStorable( ids[i], b );
+      if( a.id != b.id || ! a.s.equals( b.s ) || a.other != b.other )
+        throw new IOException( "id " + ids[i] + " loaded differently" );
+      byte[][] keys = { sIndex.getKey( b ), headIndex.getKey( b ) };
+      same( "the keys of id " + ids[i],
+          loaded.getIDs( new int[2], new boolean[2], keys ),
+          stored.getIDs( new int[2], new boolean[2], keys ) );
+    }
+    for( k = 0; k < 100; k++ )
+      same( "code " + k,
+          loaded.getIDs( new int[]{ k, 0 }, new boolean[]{ true, false } ),
+          stored.getIDs( new int[]{ k, 0 }, new boolean[]{ true, false } ) );
+    for( k = 0; k < 7; k++ )
+      same( "length code " + k,
+          loaded.getIDs( new int[]{ 0, k }, new boolean[]{ false, true } ),
+          stored.getIDs( new int[]{ 0, k }, new boolean[]{ false, true } ) );
+    for( k = 0; k < 40; k++ )
+      same( "prefix r" + k,
+          loaded.getIDsWithPrefix( 0, ("r" + k).getBytes() ),
+          stored.getIDsWithPrefix( 0, ("r" + k).getBytes() ) );
+    if( loaded.getMaxID() != stored.getMaxID() )
+      throw new IOException( "the max ids differ" );
+    stored.close();
+
+    // from here it is a store like any other
+    loaded.store( new TestStorable( 5, "changed", 1 ) );
+    loaded.deleteStorable( 6 );
+    loaded.commit();
+    loaded.pack();
+    loaded.close();
+    loaded = open( lf );
+    TestStorable t = new TestStorable( -1, null, -1 );
+    loaded.loadStorable( 5, t );
+    if( ! "changed".equals( t.s ) )
+      throw new IOException( "the change to id 5 was lost" );
+    t = new TestStorable( -1, null, -1 );
+    loaded.loadStorable( 6, t );
+    if( t.id != -1 )
+      throw new IOException( "id 6 wasn't deleted" );
+    loaded.close();
+    try{
+      new PersistentStoreLoader( lf, hashers, keyIndexes );
+      throw new IllegalStateException( "a loader took an existing file" );
+    }catch( IOException e ){
+      // as it should
+    }
+  }
+  private static void same( String what, int[] a, int[] b )
+    throws IOException{
+    a = a.clone();
+    b = b.clone();
+    Arrays.sort( a );
+    Arrays.sort( b );
+    if( ! Arrays.equals( a, b ) )
+      throw new IOException( what + " differ" );
+  }
+  private static void clear( File dir ){
+    dir.mkdirs();
+    File[] fs = dir.listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      fs[i].delete();
+  }
+
+  private static class TestStorable implements Storable{
+    int id;
+    String s;
+    int other;
+    TestStorable( int id, String s, int other ){
+      this.id = id;
+      this.s = s;
+      this.other = other;
+    }
+    public int getID(){
+      return id;
+    }
+    public int getStreamedLength(){
+      return 16 + (s == null ? 0 : s.getBytes().length);
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( getStreamedLength() );
+      os.writeInt( id );
+      os.writeInt( other );
+      byte[] bs = s == null ? new byte[0] : s.getBytes();
+      os.writeInt( bs.length );
+      os.write( bs );
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      is.readInt();
+      id = is.readInt();
+      other = is.readInt();
+      byte[] bs = new byte[ is.readInt() ];
+      is.readFully( bs );
+      s = new String( bs );
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package test;
+
+import java.io.*;
+import tools.persistence.*;
+
+/** checks that a ShardedPersistentStore commit is all or nothing.  It
+ * copies the files as they are just before a commit that touches both
+ * shards, and the manifest as it is once the commit has logged it, and
+ * puts them together as a crash would leave them: with neither shard
+ * committed, and with only the first.  Opening either must finish the
+ * commit.  Without the manifest, the second must not, or the test
+ * isn't testing anything.  It prints OK, or what went wrong.
+ */
+public class ShardRecoveryTest{
+  private static final int IDS = 50;
+
+  public static void main( String[] args ){
+    File dir = new File( args.length > 0 ? args[0]
+        : System.getProperty( "java.io.tmpdir" ) + "/ShardRecoveryTest" );
+    File pre = new File( dir.getPath() + ".pre" );
+    File crash = new File( dir.getPath() + ".crash" );
+    try{
+      byte[] logged = commit( dir, pre );
+      check( crash( pre, dir, crash, false, logged ), -1 );
+      check( crash( pre, dir, crash, true, logged ), -1 );
+      // without the manifest, the second shard never gets the commit
+      check( crash( pre, dir, crash, true, null ), 1 );
+      clear( dir );
+      clear( pre );
+      clear( crash );
+      System.out.println( "OK" );
+    }catch( Exception e ){
+      e.printStackTrace( System.out );
+    }
+  }
+  private static ShardedPersistentStore open( File dir ) throws IOException{
+    return new ShardedPersistentStore( new File( dir, "store.dat" ), 2,
+        new Index[0], new KeyIndex[0], new TestStorable( -1, 0 ), 0 );
+  }
+  // commits version 0 of every id, then version 1, copying the files
+  // into pre just before that commit.  Returns the manifest as it was
+  // while the second commit was under way.
+  private static byte[] commit( File dir, File pre ) throws IOException{
+    clear( dir );
+    ShardedPersistentStore sps = open( dir );
+    int i;
+    for( i = 0; i < IDS; i++ )
+      sps.store( new TestStorable( i, 0 ) );
+    sps.commit();
+    for( i = 0; i < IDS; i++ )
+      sps.store( new TestStorable( i, 1 ) );
+    // everything but the commit is on disk by now
+    clear( pre );
+    copy( dir, pre, "store.dat" );
+    final File manifest = new File( dir, "store.dat.manifest" );
+    final byte[][] logged = new byte[1][];
+    PersistentStoreListener l = new PersistentStoreListener(){
+      public void completed( PersistentStore ps, int operation,
+          long nanos, long bytes ){
+        // the first shard to commit does so after the manifest is
+        // written, and before it is cleared
+        synchronized( logged ){
+          if( operation == PersistentStoreStats.COMMIT && logged[0] == null )
+            logged[0] = read( manifest );
+        }
+      } };
+    for( i = 0; i < sps.getShardCount(); i++ )
+      sps.getShard( i ).getStats().setListener( l );
+    sps.commit();
+    for( i = 0; i < sps.getShardCount(); i++ )
+      sps.getShard( i ).getStats().setListener( null );
+    sps.close();
+    if( logged[0] == null || logged[0].length == 0 )
+      throw new IOException( "the commit logged nothing" );
+    return logged[0];
+  }
+  // the files as a crash during the commit would leave them: the ones
+  // from before it, with shard 0's from after if firstCommitted, and
+  // the manifest, if there is one.
+  private static File crash( File pre, File dir, File crash,
+      boolean firstCommitted, byte[] manifest ) throws IOException{
+    clear( crash );
+    copy( pre, crash, "store.dat" );
+    if( firstCommitted ){
+      delete( crash, "store.dat.0" );
+      copy( dir, crash, "store.dat.0" );
+    }
+    if( manifest != null )
+      write( new File( crash, "store.dat.manifest" ), manifest );
+    return crash;
+  }
+  // that every id is at version 1, except those in shard stale, which
+  // are at version 0
+  private static void check( File dir, int stale ) throws IOException{
+    ShardedPersistentStore sps = open( dir );
+    int i, v;
+    for( i = 0; i < IDS; i++ ){
+      v = version( sps, i );
+      if( v != (sps.shardOf( i ) == stale ? 0 : 1) )
+        throw new IOException( "id " + i + " in shard " + sps.shardOf( i )
+            + " is at version " + v );
+    }
+    sps.close();
+  }
+  // the version id loads as, or -1 if it isn't there
+  private static int version( ShardedPersistentStore sps, int id )
+    throws IOException{
+    TestStorable t = new TestStorable( -1, -1 );
+    sps.loadStorable( id, t );
+    if( t.id != id && t.id != -1 )
+      throw new IOException( "id " + id + " loaded as id " + t.id );
+    return t.version;
+  }
+  private static byte[] read( File f ){
+    try{
+      DataInputStream is = new DataInputStream( new FileInputStream( f ) );
+      try{
+        byte[] bs = new byte[ (int)f.length() ];
+        is.readFully( bs );
+        return bs;
+      }finally{
+        is.close();
+      }
+    }catch( IOException e ){
+      return null;
+    }
+  }
+  private static void write( File f, byte[] bs ) throws IOException{
+    FileOutputStream os = new FileOutputStream( f );
+    try{
+      os.write( bs );
+    }finally{
+      os.close();
+    }
+  }
+  // copies the files in from whose names start with prefix into to
+  private static void copy( File from, File to, String prefix )
+    throws IOException{
+    to.mkdirs();
+    File[] fs = from.listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      if( fs[i].getName().startsWith( prefix ) )
+        write( new File( to, fs[i].getName() ), read( fs[i] ) );
+  }
+  private static void delete( File dir, String prefix ){
+    File[] fs = dir.listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      if( fs[i].getName().startsWith( prefix ) )
+        fs[i].delete();
+  }
+  private static void clear( File dir ){
+    dir.mkdirs();
+    File[] fs = dir.listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      fs[i].delete();
+  }
+
+  private static class TestStorable implements Storable{
+    int id;
+    int version;
+    TestStorable( int id, int version ){
+      this.id = id;
+      this.version = version;
+    }
+    public int getID(){
+      return id;
+    }
+    public int getStreamedLength(){
+      return 12;
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( getStreamedLength() );
+      os.writeInt( id );
+      os.writeInt( version );
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      is.readInt();
+      id = is.readInt();
+      version = is.readInt();
+    }
+  }
+}
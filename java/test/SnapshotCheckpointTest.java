@@ -0,0 +1,151 @@
+package test;
+
+import java.io.*;
+import java.util.Random;
+import tools.persistence.*;
+
+/** checks that a checkpoint taken while a Snapshot is open doesn't
+ * leave the index block in free space once the Snapshot closes.  With
+ * the block at the front of the file, the checkpoint writes the new
+ * block there too, over the old one, which the Snapshot was pinning;
+ * closing the Snapshot mustn't free it.  Then it does the same at
+ * random, with snapshots opened and closed all along, and reopens the
+ * store to check every record.  It prints OK, or what went wrong.
+ */
+public class SnapshotCheckpointTest{
+  public static void main( String[] args ){
+    File f = new File( args.length > 0 ? args[0]
+        : System.getProperty( "java.io.tmpdir" ) + "/SnapshotCheckpointTest.dat" );
+    try{
+      delete( f );
+      checkpointUnderSnapshot( f );
+      delete( f );
+      random( f, 3, 3000 );
+      delete( f );
+      System.out.println( "OK" );
+    }catch( Exception e ){
+      e.printStackTrace( System.out );
+    }
+  }
+  private static void delete( File f ){
+    File[] fs = f.getAbsoluteFile().getParentFile().listFiles();
+    int i;
+    for( i = 0; fs != null && i < fs.length; i++ )
+      if( fs[i].getName().startsWith( f.getName() ) )
+        fs[i].delete();
+  }
+  private static PersistentStore open( File f ) throws IOException{
+    return new PersistentStore( f, new Index[0], new TestStorable( -1, 0 ) );
+  }
+  private static void checkpointUnderSnapshot( File f ) throws IOException{
+    PersistentStore ps = open( f );
+    int i;
+    for( i = 0; i < 100; i++ )
+      ps.store( new TestStorable( i, 0 ) );
+    ps.checkpoint();
+    PersistentStore.Snapshot s = ps.openSnapshot();
+    // the same ids, so the new block is the size of the one it replaces
+    for( i = 0; i < 100; i++ )
+      ps.store( new TestStorable( i, 1 ) );
+    ps.checkpoint();
+    s.close();
+    for( i = 0; i < 100; i++ )
+      ps.store( new TestStorable( i, 2 ) );
+    ps.commit();
+    ps.close();
+    ps = open( f );
+    for( i = 0; i < 100; i++ )
+      check( ps, i, 2 );
+    ps.close();
+  }
+  private static void random( File f, long seed, int rounds )
+    throws IOException{
+    Random r = new Random( seed );
+    PersistentStore ps = open( f );
+    PersistentStore.Snapshot s = null;
+    int[] versions = new int[ 200 ];
+    java.util.Arrays.fill( versions, -1 );
+    int i, id;
+    for( i = 0; i < rounds; i++ ){
+      id = r.nextInt( versions.length );
+      switch( r.nextInt( 10 ) ){
+        case 0:
+        case 1:
+        case 2:
+        case 3:
+          ps.store( new TestStorable( id, i ) );
+          versions[ id ] = i;
+          break;
+        case 4:
+          ps.deleteStorable( id );
+          versions[ id ] = -1;
+          break;
+        case 5:
+        case 6:
+          ps.commit();
+          break;
+        case 7:
+          ps.checkpoint();
+          break;
+        default:
+          if( s == null ){
+            s = ps.openSnapshot();
+          }else{
+            s.close();
+            s = null;
+          }
+      }
+    }
+    if( s != null )
+      s.close();
+    ps.commit();
+    ps.close();
+    ps = open( f );
+    for( id = 0; id < versions.length; id++ )
+      if( versions[ id ] >= 0 )
+        check( ps, id, versions[ id ] );
+    ps.pack();
+    for( id = 0; id < versions.length; id++ )
+      if( versions[ id ] >= 0 )
+        check( ps, id, versions[ id ] );
+    ps.close();
+  }
+  private static void check( PersistentStore ps, int id, int version )
+    throws IOException{
+    TestStorable t = new TestStorable( -1, -1 );
+    ps.loadStorable( id, t );
+    if( t.id != id || t.version != version )
+      throw new IOException( "id " + id + " loaded as id " + t.id
+          + " version " + t.version + ", not version " + version );
+  }
+
+  private static class TestStorable implements Storable{
+    int id;
+    int version;
+    TestStorable( int id, int version ){
+      this.id = id;
+      this.version = version;
+    }
+    public int getID(){
+      return id;
+    }
+    // the size varies, so records move around
+    public int getStreamedLength(){
+      return 12 + 4 * ((id + version) % 7);
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( getStreamedLength() );
+      os.writeInt( id );
+      os.writeInt( version );
+      int i;
+      for( i = 0; i < (id + version) % 7; i++ )
+        os.writeInt( i );
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      int stl = is.readInt();
+      id = is.readInt();
+      version = is.readInt();
+      is.skipBytes( stl - 12 );
+    }
+  }
+}
@@ -0,0 +1,429 @@
+package tools;
+
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import tools.persistence.Streamable;
+
+/** maintains a map of ints, keyed by ints, just as IntIntMap does, but
+ *  as a hash table rather than a tree, for when the keys needn't be
+ *  kept in order.  get(), put(), remove() and containsKey() take O(1)
+ *  time on average, rather than O(log n), and the largest key is kept
+ *  track of, so getFloorKey( Integer.MAX_VALUE ) is O(1) as well.  Any
+ *  other getCeilKey() or getFloorKey() has to look at every key.  The
+ *  iterators, keys() and values() go in no particular order, and the
+ *  streamed form is IntIntMap's, in that order, so either can read
+ *  what the other wrote.<br>
+ *
+ *  It uses open addressing with linear probing, in one array of key,
+ *  value pairs, and it is never more than half full, which keeps the
+ *  probes short and is still smaller than IntIntMap's five ints a
+ *  node.  0 marks an empty slot, so the key 0 is kept on the side.
+ *  remove() moves back the keys after the one it removes, rather than
+ *  leaving a marker, so lookups never slow down as keys come and go.
+ */
+public final class IntIntHashMap implements Streamable, Cloneable{
+  // (the golden ratio) * 2^32, for spreading the keys over the table
+  private static final int SPREAD = 0x9E3779B9;
+  // key, value, key, value...  A key of 0 is an empty slot.
+  private int[] array;
+  // capacity - 1, and 32 - log2( capacity ), for hashing
+  private int mask;
+  private int shift;
+  private int size; // the number of elements, including the 0 key
+  private boolean hasZeroKey;
+  private int zeroValue;
+  // the largest key, if maxKnown
+  private int max;
+  private boolean maxKnown;
+  private int modifications; // used to make the iterator failfast
+
+  public IntIntHashMap(){
+    this( 100 );
+  }
+  public IntIntHashMap( int size ){
+    allocate( size );
+  }
+  // an empty table with room for at least size elements
+  private void allocate( int size ){
+    int capacity = 4;
+    while( capacity < size * 2 )
+      capacity <<= 1;
+    array = new int[ capacity * 2 ];
+    mask = capacity - 1;
+    shift = 32 - Integer.numberOfTrailingZeros( capacity );
+    this.size = 0;
+    hasZeroKey = false;
+    maxKnown = true;
+    max = Integer.MIN_VALUE;
+    modifications++;
+  }
+
+  public IntIterator keyIterator(){
+    return new HashIterator( 0 );
+  }
+  public IntIterator valueIterator(){
+    return new HashIterator( 1 );
+  }
+  // completes in O(n) time
+  public int[] keys(){
+    int[] r = new int[ size ];
+    IntIterator it = keyIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int[] values(){
+    int[] r = new int[ size ];
+    IntIterator it = valueIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size( ){
+    return size;
+  }
+  public boolean isEmpty(){
+    return size == 0;
+  }
+  public boolean containsKey( int key ){
+    return key == 0 ? hasZeroKey : getIndex( key ) >= 0;
+  }
+  // as IntIntMap's: key if it is in the map, else the next highest
+  // key, or MIN_VALUE if there is none.
+  public int getCeilKey( int key ){
+    if( containsKey( key ) )
+      return key;
+    int ceil = Integer.MIN_VALUE;
+    boolean found = false;
+    IntIterator it = keyIterator();
+    int k;
+    while( it.hasNext() ){
+      k = it.next();
+      if( k > key && (! found || k < ceil) ){
+        ceil = k;
+        found = true;
+      }
+    }
+    return ceil;
+  }
+  // as IntIntMap's: key if it is in the map, else the next lowest
+  // key, or MAX_VALUE if there is none.
+  public int getFloorKey( int key ){
+    if( size == 0 )
+      return Integer.MAX_VALUE;
+    int m = getMaxKey();
+    if( key >= m )
+      return m;
+    if( containsKey( key ) )
+      return key;
+    int floor = Integer.MAX_VALUE;
+    boolean found = false;
+    IntIterator it = keyIterator();
+    int k;
+    while( it.hasNext() ){
+      k = it.next();
+      if( k < key && (! found || k > floor) ){
+        floor = k;
+        found = true;
+      }
+    }
+    return floor;
+  }
+  // the largest key, which is worked out again, in O(n) time, only
+  // after it is removed.
+  private int getMaxKey(){
+    if( ! maxKnown ){
+      max = Integer.MIN_VALUE;
+      IntIterator it = keyIterator();
+      while( it.hasNext() )
+        max = Math.max( max, it.next() );
+      maxKnown = true;
+    }
+    return max;
+  }
+  private int slot( int key ){
+    return (key * SPREAD) >>> shift;
+  }
+  // the slot key is in, or -1.  key mustn't be 0.
+  private int getIndex( int key ){
+    int i = slot( key );
+    int k;
+    while( (k = array[ i << 1 ]) != 0 ){
+      if( k == key )
+        return i;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+  public boolean remove( int key ){
+    if( key == 0 ){
+      if( ! hasZeroKey )
+        return false;
+      hasZeroKey = false;
+    }else{
+      int i = getIndex( key );
+      if( i < 0 )
+        return false;
+      deleteSlot( i );
+    }
+    size--;
+    modifications++;
+    if( key == max )
+      maxKnown = false;
+    return true;
+  }
+  // empties slot i, and moves back any keys after it that can't be
+  // found past the hole any more.
+  private void deleteSlot( int i ){
+    int j = i, k, home;
+    while( true ){
+      j = (j + 1) & mask;
+      k = array[ j << 1 ];
+      if( k == 0 )
+        break;
+      home = slot( k );
+      // k can stay at j if its home is cyclically in (i, j]
+      if( i <= j ? (i < home && home <= j) : (i < home || home <= j) )
+        continue;
+      array[ i << 1 ] = k;
+      array[ (i << 1) + 1 ] = array[ (j << 1) + 1 ];
+      i = j;
+    }
+    array[ i << 1 ] = 0;
+    array[ (i << 1) + 1 ] = 0;
+  }
+  public int get( int key ){
+    if( key == 0 ){
+      if( ! hasZeroKey )
+        throw new NoSuchElementException( "" + key );
+      return zeroValue;
+    }
+    int i = getIndex( key );
+    if( i < 0 )
+      throw new NoSuchElementException( "" + key );
+    return array[ (i << 1) + 1 ];
+  }
+  // as IntIntMap's, it only adds.  If key is already in, it is left
+  // as it is, and we return false.
+  public boolean put( int key, int val ){
+    if( key == 0 ){
+      if( hasZeroKey )
+        return false;
+      hasZeroKey = true;
+      zeroValue = val;
+    }else{
+      int i = slot( key );
+      int k;
+      while( (k = array[ i << 1 ]) != 0 ){
+        if( k == key )
+          return false;
+        i = (i + 1) & mask;
+      }
+      array[ i << 1 ] = key;
+      array[ (i << 1) + 1 ] = val;
+    }
+    size++;
+    modifications++;
+    if( maxKnown && key > max )
+      max = key;
+    if( size * 2 > mask + 1 )
+      grow();
+    return true;
+  }
+  // doubles the table, and puts everything back in it.
+  private void grow(){
+    int[] old = array;
+    boolean zero = hasZeroKey;
+    int zeroVal = zeroValue;
+    int oldSize = size;
+    boolean known = maxKnown;
+    int oldMax = max;
+    allocate( (mask + 1) );
+    int i, k, j;
+    for( i = 0; i < old.length; i += 2 ){
+      if( (k = old[i]) == 0 )
+        continue;
+      j = slot( k );
+      while( array[ j << 1 ] != 0 )
+        j = (j + 1) & mask;
+      array[ j << 1 ] = k;
+      array[ (j << 1) + 1 ] = old[ i + 1 ];
+    }
+    hasZeroKey = zero;
+    zeroValue = zeroVal;
+    size = oldSize;
+    maxKnown = known;
+    max = oldMax;
+  }
+
+  // it starts just after an empty slot, so that no run of keys wraps
+  // around the end of the order it goes in.  Then remove() only ever
+  // moves keys back to slots we haven't gone past, and looking at the
+  // removed slot again catches any that land there.
+  private class HashIterator implements IntIterator{
+    int start;
+    // how many slots from start the next one is, with -1 for the 0 key
+    int next;
+    // the last one returned, as next was then, or -2 if none
+    int prev = -2;
+    int offset;
+    int expectedModifications;
+    private HashIterator( int offset ){
+      expectedModifications = modifications;
+      this.offset = offset;
+      start = 0;
+      while( array[ start << 1 ] != 0 )
+        start++;
+      next = hasZeroKey ? -1 : advance( 1 );
+    }
+    // the first slot from n on, counting from start, that has a key,
+    // or mask + 1 if there are none
+    private int advance( int n ){
+      while( n <= mask && array[ ((start + n) & mask) << 1 ] == 0 )
+        n++;
+      return n;
+    }
+    public boolean hasNext(){
+      if(modifications != expectedModifications)
+        throw new ConcurrentModificationException();
+      return next <= mask;
+    }
+    public int next(){
+      if(modifications != expectedModifications)
+        throw new ConcurrentModificationException();
+      if( next > mask )
+        throw new NoSuchElementException();
+      int i;
+      if( next == -1 )
+        i = offset == 0 ? 0 : zeroValue;
+      else
+        i = array[ (((start + next) & mask) << 1) + offset ];
+      prev = next;
+      next = advance( next + 1 );
+      return i;
+    }
+    public void remove(){
+      if(modifications != expectedModifications)
+        throw new ConcurrentModificationException();
+      if( prev == -2 )
+        throw new NoSuchElementException();
+      if( prev == -1 ){
+        IntIntHashMap.this.remove( 0 );
+      }else{
+        IntIntHashMap.this.remove( array[ ((start + prev) & mask) << 1 ] );
+        // something may have moved back into it
+        next = advance( prev );
+      }
+      expectedModifications = modifications;
+      prev = -2;
+    }
+  }
+  public int getStreamedLength(){
+    return size()*8+4;
+  }
+  public void getState( DataOutputStream os ) throws IOException{
+    int[] keys = keys();
+    int[] values = values();
+    int len = keys.length;
+    if( len != values.length )
+      throw new ConcurrentModificationException();
+    os.writeInt( len * 8 + 4 );
+    int i;
+    for( i = 0; i < len; i++ ){
+      os.writeInt( keys[i] );
+      os.writeInt( values[i] );
+    }
+  }
+  public void setState( DataInputStream is ) throws IOException{
+    int len = (is.readInt() - 4) / 8;
+    allocate( len );
+    int i;
+    for( i = 0; i < len; i++ )
+      put( is.readInt(), is.readInt() );
+  }
+  public Object clone(){
+    try{
+      IntIntHashMap clone = (IntIntHashMap)super.clone();
+      clone.array = array.clone();
+      return clone;
+    }catch( CloneNotSupportedException e ){
+      throw new InternalError( e.toString() );
+    }
+  }
+  public static void main( String[] args ){
+    int rounds = 1000000;
+    int range = 1000;
+    java.util.Random r = null;
+    if( args.length > 0 ){
+      try{
+        rounds = java.lang.Integer.parseInt( args[ 0 ] );
+        if( args.length > 1 )
+          range = java.lang.Integer.parseInt( args[ 1 ] );
+        if( args.length > 2 )
+          r = new java.util.Random( java.lang.Integer.parseInt( args[2] ) );
+      }catch( Exception e ){}
+    }
+    if( r == null ){
+      r = new java.util.Random();
+    }
+    System.out.println("beginning test. " + rounds
+        + " rounds in range -" + range + " to " + range );
+    IntIntHashMap testObj = new IntIntHashMap( 0 );
+    java.util.HashMap model = new java.util.HashMap();
+    int i, j, errors = 0;
+    Integer v;
+    for( i = 0; i < rounds; i++ ){
+      j = r.nextInt( range * 2 ) - range;
+      v = (Integer)model.get( Integer.valueOf( j ) );
+      switch( r.nextInt( 3 ) ){
+        case 0:
+          if( testObj.put( j, i ) != (v == null) )
+            errors++;
+          if( v == null )
+            model.put( Integer.valueOf( j ), Integer.valueOf( i ) );
+          break;
+        case 1:
+          if( testObj.remove( j ) != (v != null) )
+            errors++;
+          model.remove( Integer.valueOf( j ) );
+          break;
+        default:
+          if( testObj.containsKey( j ) != (v != null)
+              || v != null && testObj.get( j ) != v.intValue() )
+            errors++;
+      }
+      if( i % 1000 == 0 ){
+        if( testObj.size() != model.size() )
+          errors++;
+        if( ! model.isEmpty() && testObj.getFloorKey( Integer.MAX_VALUE )
+            != ((Integer)java.util.Collections.max( model.keySet() )).intValue() )
+          errors++;
+      }
+      // iterating while removing about half
+      if( i % 10000 == 0 ){
+        IntIterator it = testObj.keyIterator();
+        java.util.HashSet seen = new java.util.HashSet();
+        while( it.hasNext() ){
+          j = it.next();
+          if( ! seen.add( Integer.valueOf( j ) ) )
+            errors++;
+          if( r.nextBoolean() ){
+            it.remove();
+            model.remove( Integer.valueOf( j ) );
+          }
+        }
+        if( ! seen.containsAll( model.keySet() )
+            || testObj.size() != model.size() )
+          errors++;
+      }
+    }
+    System.out.println("size is " + testObj.size() + ", " + errors
+        + " errors");
+  }
+}
@@ -16,7 +16,8 @@ import tools.persistence.Streamable;
  *  very fast and light.  Occasionally, the array must be resized,
  *  which takes O(n) time, but this occurs with O(log growth)
  *  frequency, so if you know ahead of time how large your array
- *  will need to be, this can be avoided. 
+ *  will need to be, this can be avoided.  IntIntHashMap does the same
+ *  in O(1) time, for maps whose keys needn't be kept in order.
  */
 public final class IntIntMap implements Streamable, Cloneable{
   private static final int NULL_POINTER = 0x7FFFFFFF;
@@ -174,7 +175,7 @@ public final class IntIntMap implements Streamable, Cloneable{
   // makes sure there is room for one more elephant
   private void ensureRoom(){
     // make it bigger if we need to.
-    if( (size * 5) >= array.length ){
+    if( (size + 1) * 5 > array.length ){
       int[] newArray = new int[ array.length << 1 ];
       int i = array.length;
       while( i-- > 0 )
@@ -528,6 +529,9 @@ public final class IntIntMap implements Streamable, Cloneable{
     while( i <= (len*5) )
       i <<= 1;
     array = new int[ i ];
+    size = 0;
+    root = NULL_POINTER;
+    modifications++;
     for( i = 0; i < len; i++){
       key = is.readInt();
       val = is.readInt();
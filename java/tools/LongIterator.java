@@ -0,0 +1,7 @@
+package tools;
+
+public interface LongIterator{
+  public boolean hasNext();
+  public long next();
+  public void remove();
+}
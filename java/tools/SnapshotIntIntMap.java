@@ -0,0 +1,168 @@
+package tools;
+
+import java.util.NoSuchElementException;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import tools.persistence.Streamable;
+
+/** maintains a map of ints, keyed by ints, with the same interface
+ *  as IntIntMap, but clone() completes in O(1) time.
+ *  It is backed by immutable nodes (see SnapshotNode), and each
+ *  change copies only the O(log n) nodes on its path, so a clone and
+ *  the original share everything neither of them has changed since.
+ *  This makes it cheap to keep several versions of a large map.<br>
+ *
+ *  Iterators walk the map as it was when they were created, so they
+ *  never throw ConcurrentModificationException.
+ */
+public final class SnapshotIntIntMap implements Streamable, Cloneable{
+  private SnapshotNode root;
+
+  public SnapshotIntIntMap(){
+    root = null;
+  }
+  // builds the map in O(n) time.  keys must be ascending.
+  public SnapshotIntIntMap( int[] keys, int[] values ){
+    if( keys.length != values.length || ! SnapshotNode.isAscending( keys ) )
+      throw new IllegalArgumentException( "keys must be ascending" );
+    root = build( keys, values );
+  }
+  private static SnapshotNode build( int[] keys, int[] values ){
+    long[] ks = new long[ keys.length ];
+    long[] vs = new long[ keys.length ];
+    int i;
+    for( i = 0; i < keys.length; i++ ){
+      ks[i] = keys[i];
+      vs[i] = values[i];
+    }
+    return SnapshotNode.build( ks, vs, null, 0, ks.length );
+  }
+
+  public IntIterator keyIterator(){
+    return new MapIterator( true );
+  }
+  public IntIterator valueIterator(){
+    return new MapIterator( false );
+  }
+  // completes in O(n) time
+  public int[] keys(){
+    int[] r = new int[ size() ];
+    IntIterator it = keyIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int[] values(){
+    int[] r = new int[ size() ];
+    IntIterator it = valueIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean containsKey( int key ){
+    return SnapshotNode.get( root, key ) != null;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next highest key,
+  // if it is larger than any in the map, returns MIN_VALUE,
+  // just like IntIntMap.
+  public int getCeilKey( int key ){
+    SnapshotNode n = SnapshotNode.ceil( root, key );
+    return n == null ? Integer.MIN_VALUE : (int)n.key;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next lowest key,
+  // if it is smaller than any in the map, returns MAX_VALUE.
+  public int getFloorKey( int key ){
+    SnapshotNode n = SnapshotNode.floor( root, key );
+    return n == null ? Integer.MAX_VALUE : (int)n.key;
+  }
+  public boolean remove( int key ){
+    if( SnapshotNode.get( root, key ) == null )
+      return false;
+    root = SnapshotNode.remove( root, key );
+    return true;
+  }
+  public int get( int key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    if( n == null )
+      throw new NoSuchElementException( "" + key );
+    return (int)n.value;
+  }
+  // like IntIntMap, this does nothing and returns false if key is
+  // already in the map.
+  public boolean put( int key, int val ){
+    if( SnapshotNode.get( root, key ) != null )
+      return false;
+    root = SnapshotNode.put( root, key, val, null );
+    return true;
+  }
+
+  private class MapIterator implements IntIterator{
+    private SnapshotNode.Walker walker;
+    private boolean keys;
+    private SnapshotNode prev;
+    private MapIterator( boolean keys ){
+      walker = new SnapshotNode.Walker( root );
+      this.keys = keys;
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public int next(){
+      prev = walker.next();
+      return (int)(keys ? prev.key : prev.value);
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotIntIntMap.this.remove( (int)prev.key );
+      prev = null;
+    }
+  }
+  public int getStreamedLength(){
+    return size()*8+4;
+  }
+  public void getState( DataOutputStream os ) throws IOException{
+    os.writeInt( getStreamedLength() );
+    SnapshotNode.Walker w = new SnapshotNode.Walker( root );
+    SnapshotNode n;
+    while( w.hasNext() ){
+      n = w.next();
+      os.writeInt( (int)n.key );
+      os.writeInt( (int)n.value );
+    }
+  }
+  public void setState( DataInputStream is ) throws IOException{
+    int len = (is.readInt() - 4) / 8;
+    int[] keys = new int[ len ];
+    int[] values = new int[ len ];
+    int i;
+    for( i = 0; i < len; i++ ){
+      keys[i] = is.readInt();
+      values[i] = is.readInt();
+    }
+    if( SnapshotNode.isAscending( keys ) ){
+      root = build( keys, values );
+    }else{
+      root = null;
+      for( i = 0; i < len; i++ )
+        put( keys[i], values[i] );
+    }
+  }
+  public Object clone(){
+    SnapshotIntIntMap clone = new SnapshotIntIntMap();
+    clone.root = root;
+    return clone;
+  }
+}
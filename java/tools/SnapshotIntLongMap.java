@@ -0,0 +1,175 @@
+package tools;
+
+import java.util.NoSuchElementException;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import tools.persistence.Streamable;
+
+/** maintains a map of longs, keyed by ints.  It is otherwise the same
+ *  as SnapshotIntIntMap, and clone() completes in O(1) time.
+ */
+public final class SnapshotIntLongMap implements Streamable, Cloneable{
+  private SnapshotNode root;
+
+  public SnapshotIntLongMap(){
+    root = null;
+  }
+  // builds the map in O(n) time.  keys must be ascending.
+  public SnapshotIntLongMap( int[] keys, long[] values ){
+    if( keys.length != values.length || ! SnapshotNode.isAscending( keys ) )
+      throw new IllegalArgumentException( "keys must be ascending" );
+    root = build( keys, values );
+  }
+  private static SnapshotNode build( int[] keys, long[] values ){
+    long[] ks = new long[ keys.length ];
+    int i;
+    for( i = 0; i < keys.length; i++ )
+      ks[i] = keys[i];
+    return SnapshotNode.build( ks, values, null, 0, ks.length );
+  }
+
+  public IntIterator keyIterator(){
+    return new KeyIterator();
+  }
+  public LongIterator valueIterator(){
+    return new ValueIterator();
+  }
+  // completes in O(n) time
+  public int[] keys(){
+    int[] r = new int[ size() ];
+    IntIterator it = keyIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public long[] values(){
+    long[] r = new long[ size() ];
+    LongIterator it = valueIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean containsKey( int key ){
+    return SnapshotNode.get( root, key ) != null;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next highest key,
+  // if it is larger than any in the map, returns MIN_VALUE.
+  public int getCeilKey( int key ){
+    SnapshotNode n = SnapshotNode.ceil( root, key );
+    return n == null ? Integer.MIN_VALUE : (int)n.key;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next lowest key,
+  // if it is smaller than any in the map, returns MAX_VALUE.
+  public int getFloorKey( int key ){
+    SnapshotNode n = SnapshotNode.floor( root, key );
+    return n == null ? Integer.MAX_VALUE : (int)n.key;
+  }
+  public boolean remove( int key ){
+    if( SnapshotNode.get( root, key ) == null )
+      return false;
+    root = SnapshotNode.remove( root, key );
+    return true;
+  }
+  public long get( int key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    if( n == null )
+      throw new NoSuchElementException( "" + key );
+    return n.value;
+  }
+  // like IntIntMap, this does nothing and returns false if key is
+  // already in the map.
+  public boolean put( int key, long val ){
+    if( SnapshotNode.get( root, key ) != null )
+      return false;
+    root = SnapshotNode.put( root, key, val, null );
+    return true;
+  }
+
+  private class KeyIterator implements IntIterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private KeyIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public int next(){
+      prev = walker.next();
+      return (int)prev.key;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotIntLongMap.this.remove( (int)prev.key );
+      prev = null;
+    }
+  }
+  private class ValueIterator implements LongIterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private ValueIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public long next(){
+      prev = walker.next();
+      return prev.value;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotIntLongMap.this.remove( (int)prev.key );
+      prev = null;
+    }
+  }
+  public int getStreamedLength(){
+    return size()*12+4;
+  }
+  public void getState( DataOutputStream os ) throws IOException{
+    os.writeInt( getStreamedLength() );
+    SnapshotNode.Walker w = new SnapshotNode.Walker( root );
+    SnapshotNode n;
+    while( w.hasNext() ){
+      n = w.next();
+      os.writeInt( (int)n.key );
+      os.writeLong( n.value );
+    }
+  }
+  public void setState( DataInputStream is ) throws IOException{
+    int len = (is.readInt() - 4) / 12;
+    int[] keys = new int[ len ];
+    long[] values = new long[ len ];
+    int i;
+    for( i = 0; i < len; i++ ){
+      keys[i] = is.readInt();
+      values[i] = is.readLong();
+    }
+    if( SnapshotNode.isAscending( keys ) ){
+      root = build( keys, values );
+    }else{
+      root = null;
+      for( i = 0; i < len; i++ )
+        put( keys[i], values[i] );
+    }
+  }
+  public Object clone(){
+    SnapshotIntLongMap clone = new SnapshotIntLongMap();
+    clone.root = root;
+    return clone;
+  }
+}
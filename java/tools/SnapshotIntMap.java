@@ -0,0 +1,143 @@
+package tools;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** maintains a map of Objects, keyed by ints, with the same interface
+ *  as IntMap, but clone() completes in O(1) time.  See
+ *  SnapshotIntIntMap for how.  Note that a clone shares the values
+ *  themselves, so if the values are mutable, replace them rather
+ *  than changing them, or the change will show up in every clone.<br>
+ *
+ *  Iterators walk the map as it was when they were created, so they
+ *  never throw ConcurrentModificationException.
+ */
+public final class SnapshotIntMap implements Cloneable{
+  private SnapshotNode root;
+
+  public SnapshotIntMap(){
+    root = null;
+  }
+  // builds the map in O(n) time.  keys must be ascending.
+  public SnapshotIntMap( int[] keys, Object[] referents ){
+    if( keys.length != referents.length
+        || ! SnapshotNode.isAscending( keys ) )
+      throw new IllegalArgumentException( "keys must be ascending" );
+    long[] ks = new long[ keys.length ];
+    int i;
+    for( i = 0; i < keys.length; i++ )
+      ks[i] = keys[i];
+    root = SnapshotNode.build( ks, null, referents, 0, ks.length );
+  }
+
+  public Iterator valueIterator(){
+    return new ValueIterator();
+  }
+  public IntIterator keyIterator(){
+    return new KeyIterator();
+  }
+  // completes in O(n) time
+  public Object[] values(){
+    Object[] r = new Object[ size() ];
+    Iterator it = valueIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  // completes in O(n) time
+  public int[] keys(){
+    int[] r = new int[ size() ];
+    IntIterator it = keyIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean contains( int key ){
+    return SnapshotNode.get( root, key ) != null;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next highest key,
+  // if it is larger than any in the map, returns MIN_VALUE,
+  // just like IntMap.
+  public int getCeilKey( int key ){
+    SnapshotNode n = SnapshotNode.ceil( root, key );
+    return n == null ? Integer.MIN_VALUE : (int)n.key;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next lowest key,
+  // if it is smaller than any in the map, returns MAX_VALUE.
+  public int getFloorKey( int key ){
+    SnapshotNode n = SnapshotNode.floor( root, key );
+    return n == null ? Integer.MAX_VALUE : (int)n.key;
+  }
+  public Object get( int key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    return n == null ? null : n.referent;
+  }
+  public Object remove( int key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    if( n == null )
+      return null;
+    root = SnapshotNode.remove( root, key );
+    return n.referent;
+  }
+  public Object put( int key, Object referent ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    root = SnapshotNode.put( root, key, 0, referent );
+    return n == null ? null : n.referent;
+  }
+  public Object clone(){
+    SnapshotIntMap clone = new SnapshotIntMap();
+    clone.root = root;
+    return clone;
+  }
+
+  private class KeyIterator implements IntIterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private KeyIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public int next(){
+      prev = walker.next();
+      return (int)prev.key;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotIntMap.this.remove( (int)prev.key );
+      prev = null;
+    }
+  }
+  private class ValueIterator implements Iterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private ValueIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public Object next(){
+      prev = walker.next();
+      return prev.referent;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotIntMap.this.remove( (int)prev.key );
+      prev = null;
+    }
+  }
+}
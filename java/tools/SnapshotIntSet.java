@@ -0,0 +1,186 @@
+package tools;
+
+import java.util.NoSuchElementException;
+
+/** maintains a set of ints, with the same interface as IntSet,
+ *  but clone() completes in O(1) time.  See SnapshotIntIntMap for
+ *  how.<br>
+ *
+ *  Iterators walk the set as it was when they were created, so they
+ *  never throw ConcurrentModificationException.
+ */
+public final class SnapshotIntSet implements Cloneable{
+  private SnapshotNode root;
+  // the members in order, made the first time retain() wants them, and
+  // dropped by any change.  So a set that is only read, like the ones
+  // in a PersistentStore's indexes, pays for it once.
+  private volatile int[] members;
+
+  public SnapshotIntSet(){
+    root = null;
+  }
+  // builds the set in O(n) time.  vals must be ascending.
+  public SnapshotIntSet( int[] vals ){
+    if( ! SnapshotNode.isAscending( vals ) )
+      throw new IllegalArgumentException( "vals must be ascending" );
+    long[] ks = new long[ vals.length ];
+    int i;
+    for( i = 0; i < vals.length; i++ )
+      ks[i] = vals[i];
+    root = SnapshotNode.build( ks, null, null, 0, ks.length );
+  }
+
+  public IntIterator iterator(){
+    return new SetIterator();
+  }
+  // completes in O(n) time
+  public int[] toArray(){
+    int[] m = members;
+    if( m != null )
+      return m.clone();
+    int[] r = new int[ size() ];
+    IntIterator it = iterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  // like IntSet, returns null rather than an empty set.
+  public SnapshotIntSet intersection( SnapshotIntSet other ){
+    if( other.size() < size() )
+      return other.intersection( this );
+    SnapshotIntSet intersection = new SnapshotIntSet();
+    SnapshotNode.Walker w = new SnapshotNode.Walker( root );
+    long v;
+    while( w.hasNext() ){
+      v = w.next().key;
+      if( SnapshotNode.get( other.root, v ) != null )
+        intersection.root = SnapshotNode.put( intersection.root, v, 0, null );
+    }
+    return intersection.root == null ? null : intersection;
+  }
+  // keeps those of vals[0] to vals[n-1], which must be ascending, that
+  // are in the set, packed at the front of vals, and returns how many
+  // that is.  Each val is galloped to from the last one found, so this
+  // costs about n times the log of the gap between them, and, once the
+  // members are made, allocates nothing.
+  public int retain( int[] vals, int n ){
+    int[] m = members;
+    if( m == null )
+      members = m = toArray();
+    int kept = 0, i, at = 0;
+    for( i = 0; i < n && at < m.length; i++ ){
+      at = gallop( m, at, vals[i] );
+      if( at < m.length && m[at] == vals[i] )
+        vals[ kept++ ] = vals[i];
+    }
+    return kept;
+  }
+  // the first index from from on whose value is >= val, or m.length.
+  // Steps double until they pass val, then we search between.
+  private static int gallop( int[] m, int from, int val ){
+    int step = 1, hi = from, mid;
+    while( hi < m.length && m[hi] < val ){
+      from = hi + 1;
+      hi += step;
+      step <<= 1;
+    }
+    if( hi > m.length )
+      hi = m.length;
+    while( from < hi ){
+      mid = (from + hi) >>> 1;
+      if( m[mid] < val )
+        from = mid + 1;
+      else
+        hi = mid;
+    }
+    return from;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean contains( int val ){
+    return SnapshotNode.get( root, val ) != null;
+  }
+  // returns val if it is in the set.
+  // if it is not in, returns the next highest value,
+  // if it is larger than any in the set, returns MIN_VALUE,
+  // just like IntSet.
+  public int getCeil( int val ){
+    SnapshotNode n = SnapshotNode.ceil( root, val );
+    return n == null ? Integer.MIN_VALUE : (int)n.key;
+  }
+  // returns val if it is in the set.
+  // if it is not in, returns the next lowest value,
+  // if it is smaller than any in the set, returns MAX_VALUE.
+  public int getFloor( int val ){
+    SnapshotNode n = SnapshotNode.floor( root, val );
+    return n == null ? Integer.MAX_VALUE : (int)n.key;
+  }
+  public boolean remove( int val ){
+    if( SnapshotNode.get( root, val ) == null )
+      return false;
+    root = SnapshotNode.remove( root, val );
+    members = null;
+    return true;
+  }
+  public boolean add( int val ){
+    if( SnapshotNode.get( root, val ) != null )
+      return false;
+    root = SnapshotNode.put( root, val, 0, null );
+    members = null;
+    return true;
+  }
+  public boolean equals( Object o ){
+    if( ! (o instanceof SnapshotIntSet) )
+      return false;
+    SnapshotIntSet other = (SnapshotIntSet)o;
+    if( other.root == root )
+      return true;
+    if( other.size() != size() )
+      return false;
+    SnapshotNode.Walker my = new SnapshotNode.Walker( root );
+    SnapshotNode.Walker its = new SnapshotNode.Walker( other.root );
+    while( my.hasNext() )
+      if( my.next().key != its.next().key )
+        return false;
+    return true;
+  }
+  public int hashCode(){
+    int h = 0;
+    SnapshotNode.Walker w = new SnapshotNode.Walker( root );
+    while( w.hasNext() )
+      h = h * 31 + (int)w.next().key;
+    return h;
+  }
+  public Object clone(){
+    SnapshotIntSet clone = new SnapshotIntSet();
+    clone.root = root;
+    clone.members = members;
+    return clone;
+  }
+
+  private class SetIterator implements IntIterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private SetIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public int next(){
+      prev = walker.next();
+      return (int)prev.key;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotIntSet.this.remove( (int)prev.key );
+      prev = null;
+    }
+  }
+}
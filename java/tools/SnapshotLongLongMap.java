@@ -0,0 +1,115 @@
+package tools;
+
+import java.util.NoSuchElementException;
+
+/** maintains a map of longs, keyed by longs.  It is otherwise the same
+ *  as SnapshotIntIntMap, and clone() completes in O(1) time.
+ */
+public final class SnapshotLongLongMap implements Cloneable{
+  private SnapshotNode root;
+
+  public SnapshotLongLongMap(){
+    root = null;
+  }
+  // builds the map in O(n) time.  keys must be ascending.
+  public SnapshotLongLongMap( long[] keys, long[] values ){
+    if( keys.length != values.length || ! SnapshotNode.isAscending( keys ) )
+      throw new IllegalArgumentException( "keys must be ascending" );
+    root = SnapshotNode.build( keys, values, null, 0, keys.length );
+  }
+
+  public LongIterator keyIterator(){
+    return new MapIterator( true );
+  }
+  public LongIterator valueIterator(){
+    return new MapIterator( false );
+  }
+  // completes in O(n) time
+  public long[] keys(){
+    long[] r = new long[ size() ];
+    LongIterator it = keyIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public long[] values(){
+    long[] r = new long[ size() ];
+    LongIterator it = valueIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean containsKey( long key ){
+    return SnapshotNode.get( root, key ) != null;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next highest key,
+  // if it is larger than any in the map, returns MIN_VALUE.
+  public long getCeilKey( long key ){
+    SnapshotNode n = SnapshotNode.ceil( root, key );
+    return n == null ? Long.MIN_VALUE : n.key;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next lowest key,
+  // if it is smaller than any in the map, returns MAX_VALUE.
+  public long getFloorKey( long key ){
+    SnapshotNode n = SnapshotNode.floor( root, key );
+    return n == null ? Long.MAX_VALUE : n.key;
+  }
+  public boolean remove( long key ){
+    if( SnapshotNode.get( root, key ) == null )
+      return false;
+    root = SnapshotNode.remove( root, key );
+    return true;
+  }
+  public long get( long key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    if( n == null )
+      throw new NoSuchElementException( "" + key );
+    return n.value;
+  }
+  // like IntIntMap, this does nothing and returns false if key is
+  // already in the map.
+  public boolean put( long key, long val ){
+    if( SnapshotNode.get( root, key ) != null )
+      return false;
+    root = SnapshotNode.put( root, key, val, null );
+    return true;
+  }
+  public Object clone(){
+    SnapshotLongLongMap clone = new SnapshotLongLongMap();
+    clone.root = root;
+    return clone;
+  }
+
+  private class MapIterator implements LongIterator{
+    private SnapshotNode.Walker walker;
+    private boolean keys;
+    private SnapshotNode prev;
+    private MapIterator( boolean keys ){
+      walker = new SnapshotNode.Walker( root );
+      this.keys = keys;
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public long next(){
+      prev = walker.next();
+      return keys ? prev.key : prev.value;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotLongLongMap.this.remove( prev.key );
+      prev = null;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package tools;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** maintains a map of Objects, keyed by longs.  It is otherwise the
+ *  same as SnapshotIntMap, and clone() completes in O(1) time.
+ */
+public final class SnapshotLongMap implements Cloneable{
+  private SnapshotNode root;
+
+  public SnapshotLongMap(){
+    root = null;
+  }
+
+  public Iterator valueIterator(){
+    return new ValueIterator();
+  }
+  public LongIterator keyIterator(){
+    return new KeyIterator();
+  }
+  // completes in O(n) time
+  public Object[] values(){
+    Object[] r = new Object[ size() ];
+    Iterator it = valueIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  // completes in O(n) time
+  public long[] keys(){
+    long[] r = new long[ size() ];
+    LongIterator it = keyIterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean contains( long key ){
+    return SnapshotNode.get( root, key ) != null;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next highest key,
+  // if it is larger than any in the map, returns MIN_VALUE.
+  public long getCeilKey( long key ){
+    SnapshotNode n = SnapshotNode.ceil( root, key );
+    return n == null ? Long.MIN_VALUE : n.key;
+  }
+  // returns key if it is in the map.
+  // if it is not in, returns the next lowest key,
+  // if it is smaller than any in the map, returns MAX_VALUE.
+  public long getFloorKey( long key ){
+    SnapshotNode n = SnapshotNode.floor( root, key );
+    return n == null ? Long.MAX_VALUE : n.key;
+  }
+  public Object get( long key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    return n == null ? null : n.referent;
+  }
+  public Object remove( long key ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    if( n == null )
+      return null;
+    root = SnapshotNode.remove( root, key );
+    return n.referent;
+  }
+  public Object put( long key, Object referent ){
+    SnapshotNode n = SnapshotNode.get( root, key );
+    root = SnapshotNode.put( root, key, 0, referent );
+    return n == null ? null : n.referent;
+  }
+  public Object clone(){
+    SnapshotLongMap clone = new SnapshotLongMap();
+    clone.root = root;
+    return clone;
+  }
+
+  private class KeyIterator implements LongIterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private KeyIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public long next(){
+      prev = walker.next();
+      return prev.key;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotLongMap.this.remove( prev.key );
+      prev = null;
+    }
+  }
+  private class ValueIterator implements Iterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private ValueIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public Object next(){
+      prev = walker.next();
+      return prev.referent;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotLongMap.this.remove( prev.key );
+      prev = null;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package tools;
+
+import java.util.NoSuchElementException;
+
+/** maintains a set of longs.  It is otherwise the same as
+ *  SnapshotIntSet, and clone() completes in O(1) time.
+ */
+public final class SnapshotLongSet implements Cloneable{
+  private SnapshotNode root;
+
+  public SnapshotLongSet(){
+    root = null;
+  }
+
+  public LongIterator iterator(){
+    return new SetIterator();
+  }
+  // completes in O(n) time
+  public long[] toArray(){
+    long[] r = new long[ size() ];
+    LongIterator it = iterator();
+    int i = 0;
+    while( it.hasNext() )
+      r[ i++ ] = it.next();
+    return r;
+  }
+  public int size(){
+    return SnapshotNode.size( root );
+  }
+  public boolean isEmpty(){
+    return root == null;
+  }
+  public boolean contains( long val ){
+    return SnapshotNode.get( root, val ) != null;
+  }
+  // returns val if it is in the set.
+  // if it is not in, returns the next highest value,
+  // if it is larger than any in the set, returns MIN_VALUE.
+  public long getCeil( long val ){
+    SnapshotNode n = SnapshotNode.ceil( root, val );
+    return n == null ? Long.MIN_VALUE : n.key;
+  }
+  // returns val if it is in the set.
+  // if it is not in, returns the next lowest value,
+  // if it is smaller than any in the set, returns MAX_VALUE.
+  public long getFloor( long val ){
+    SnapshotNode n = SnapshotNode.floor( root, val );
+    return n == null ? Long.MAX_VALUE : n.key;
+  }
+  public boolean remove( long val ){
+    if( SnapshotNode.get( root, val ) == null )
+      return false;
+    root = SnapshotNode.remove( root, val );
+    return true;
+  }
+  public boolean add( long val ){
+    if( SnapshotNode.get( root, val ) != null )
+      return false;
+    root = SnapshotNode.put( root, val, 0, null );
+    return true;
+  }
+  public Object clone(){
+    SnapshotLongSet clone = new SnapshotLongSet();
+    clone.root = root;
+    return clone;
+  }
+
+  private class SetIterator implements LongIterator{
+    private SnapshotNode.Walker walker;
+    private SnapshotNode prev;
+    private SetIterator(){
+      walker = new SnapshotNode.Walker( root );
+    }
+    public boolean hasNext(){
+      return walker.hasNext();
+    }
+    public long next(){
+      prev = walker.next();
+      return prev.key;
+    }
+    public void remove(){
+      if( prev == null )
+        throw new NoSuchElementException();
+      SnapshotLongSet.this.remove( prev.key );
+      prev = null;
+    }
+  }
+}
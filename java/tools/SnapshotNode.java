@@ -0,0 +1,212 @@
+package tools;
+
+import java.util.NoSuchElementException;
+
+/** the nodes behind SnapshotIntIntMap, SnapshotIntMap and
+ *  SnapshotIntSet.  They make up an AVL tree, and are never changed
+ *  once made.  put() and remove() copy the nodes on the path to the
+ *  change and share everything else, so an old root still describes
+ *  the whole tree as it was, and keeping one costs nothing until the
+ *  tree changes underneath it.<br>
+ *
+ *  Keys are longs so that the same nodes serve both the int and the
+ *  long keyed collections, and each node carries both a long value and
+ *  an Object, so that one node type serves maps and sets.
+ */
+final class SnapshotNode{
+  final long key;
+  final long value;
+  final Object referent;
+  final SnapshotNode left;
+  final SnapshotNode right;
+  final int height;
+  final int size;
+
+  SnapshotNode( long key, long value, Object referent,
+      SnapshotNode left, SnapshotNode right ){
+    this.key = key;
+    this.value = value;
+    this.referent = referent;
+    this.left = left;
+    this.right = right;
+    height = 1 + Math.max( height( left ), height( right ) );
+    size = 1 + size( left ) + size( right );
+  }
+  static int height( SnapshotNode n ){
+    return n == null ? 0 : n.height;
+  }
+  static int size( SnapshotNode n ){
+    return n == null ? 0 : n.size;
+  }
+  static SnapshotNode get( SnapshotNode n, long key ){
+    while( n != null && n.key != key )
+      n = key < n.key ? n.left : n.right;
+    return n;
+  }
+  // the node with the smallest key >= key, or null
+  static SnapshotNode ceil( SnapshotNode n, long key ){
+    SnapshotNode best = null;
+    while( n != null ){
+      if( n.key == key )
+        return n;
+      if( n.key > key ){
+        best = n;
+        n = n.left;
+      }else
+        n = n.right;
+    }
+    return best;
+  }
+  // the node with the largest key <= key, or null
+  static SnapshotNode floor( SnapshotNode n, long key ){
+    SnapshotNode best = null;
+    while( n != null ){
+      if( n.key == key )
+        return n;
+      if( n.key < key ){
+        best = n;
+        n = n.right;
+      }else
+        n = n.left;
+    }
+    return best;
+  }
+  static SnapshotNode first( SnapshotNode n ){
+    if( n != null )
+      while( n.left != null )
+        n = n.left;
+    return n;
+  }
+  static SnapshotNode last( SnapshotNode n ){
+    if( n != null )
+      while( n.right != null )
+        n = n.right;
+    return n;
+  }
+  // returns the new root.  An existing key gets the new value.
+  static SnapshotNode put( SnapshotNode n,
+      long key, long value, Object referent ){
+    if( n == null )
+      return new SnapshotNode( key, value, referent, null, null );
+    if( key < n.key )
+      return balance( n.key, n.value, n.referent,
+          put( n.left, key, value, referent ), n.right );
+    if( key > n.key )
+      return balance( n.key, n.value, n.referent,
+          n.left, put( n.right, key, value, referent ) );
+    return new SnapshotNode( key, value, referent, n.left, n.right );
+  }
+  // returns the new root, which is n itself if key wasn't there.
+  static SnapshotNode remove( SnapshotNode n, long key ){
+    if( n == null )
+      return null;
+    SnapshotNode child;
+    if( key < n.key ){
+      child = remove( n.left, key );
+      return child == n.left ? n
+        : balance( n.key, n.value, n.referent, child, n.right );
+    }
+    if( key > n.key ){
+      child = remove( n.right, key );
+      return child == n.right ? n
+        : balance( n.key, n.value, n.referent, n.left, child );
+    }
+    if( n.left == null )
+      return n.right;
+    if( n.right == null )
+      return n.left;
+    SnapshotNode s = first( n.right );
+    return balance( s.key, s.value, s.referent,
+        n.left, removeFirst( n.right ) );
+  }
+  private static SnapshotNode removeFirst( SnapshotNode n ){
+    if( n.left == null )
+      return n.right;
+    return balance( n.key, n.value, n.referent,
+        removeFirst( n.left ), n.right );
+  }
+  // l and r may differ in height by at most 2, which is all an
+  // insert or delete below this point can do.
+  private static SnapshotNode balance( long key, long value,
+      Object referent, SnapshotNode l, SnapshotNode r ){
+    int hl = height( l );
+    int hr = height( r );
+    if( hl > hr + 1 ){
+      if( height( l.left ) >= height( l.right ) )
+        return new SnapshotNode( l.key, l.value, l.referent, l.left,
+            new SnapshotNode( key, value, referent, l.right, r ) );
+      return new SnapshotNode(
+          l.right.key, l.right.value, l.right.referent,
+          new SnapshotNode( l.key, l.value, l.referent,
+            l.left, l.right.left ),
+          new SnapshotNode( key, value, referent, l.right.right, r ) );
+    }
+    if( hr > hl + 1 ){
+      if( height( r.right ) >= height( r.left ) )
+        return new SnapshotNode( r.key, r.value, r.referent,
+            new SnapshotNode( key, value, referent, l, r.left ),
+            r.right );
+      return new SnapshotNode(
+          r.left.key, r.left.value, r.left.referent,
+          new SnapshotNode( key, value, referent, l, r.left.left ),
+          new SnapshotNode( r.key, r.value, r.referent,
+            r.left.right, r.right ) );
+    }
+    return new SnapshotNode( key, value, referent, l, r );
+  }
+  // builds a perfectly balanced tree from keys[from] to keys[to-1],
+  // which must be strictly ascending.  values or referents may be null.
+  static SnapshotNode build( long[] keys, long[] values,
+      Object[] referents, int from, int to ){
+    if( from >= to )
+      return null;
+    int mid = (from + to) >>> 1;
+    return new SnapshotNode( keys[mid],
+        values == null ? 0 : values[mid],
+        referents == null ? null : referents[mid],
+        build( keys, values, referents, from, mid ),
+        build( keys, values, referents, mid + 1, to ) );
+  }
+  static boolean isAscending( int[] keys ){
+    int i;
+    for( i = 1; i < keys.length; i++ )
+      if( keys[i-1] >= keys[i] )
+        return false;
+    return true;
+  }
+  static boolean isAscending( long[] keys ){
+    int i;
+    for( i = 1; i < keys.length; i++ )
+      if( keys[i-1] >= keys[i] )
+        return false;
+    return true;
+  }
+
+  // walks a tree in key order.  The tree can't change underneath it.
+  static final class Walker{
+    private SnapshotNode[] stack;
+    private int depth;
+    Walker( SnapshotNode root ){
+      stack = new SnapshotNode[ height( root ) + 1 ];
+      depth = 0;
+      pushLeft( root );
+    }
+    private void pushLeft( SnapshotNode n ){
+      while( n != null ){
+        stack[ depth++ ] = n;
+        n = n.left;
+      }
+    }
+    boolean hasNext(){
+      return depth > 0;
+    }
+    SnapshotNode next(){
+      if( depth == 0 )
+        throw new NoSuchElementException();
+      SnapshotNode n = stack[ --depth ];
+      stack[ depth ] = null;
+      pushLeft( n.right );
+      return n;
+    }
+  }
+}
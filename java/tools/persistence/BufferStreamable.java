@@ -0,0 +1,25 @@
+package tools.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** A Streamable that can also write itself straight into, and read
+ * itself straight out of, a ByteBuffer, with no streams in between.
+ * PersistentStore uses these for any object that has them, which
+ * saves a copy of every record on the way in, and, when the file is
+ * memory mapped and nothing is cached, on the way out as well, since
+ * the buffer is then a view of the mapping.<br>
+ *
+ * The bytes must be just what getState( DataOutputStream ) writes,
+ * big endian, starting with getStreamedLength(), so records written
+ * either way can be read either way.  BufferStreamables can implement
+ * the stream methods with BufferStreams, rather than twice.
+ */
+public interface BufferStreamable extends Streamable{
+  // reads the object from bb's position on, leaving the position just
+  // past it.  bb may be a view of a mapped file, and is only good until
+  // this returns, so don't keep it.
+  public void setState( ByteBuffer bb ) throws IOException;
+  // writes getStreamedLength() bytes at bb's position.
+  public void getState( ByteBuffer bb ) throws IOException;
+}
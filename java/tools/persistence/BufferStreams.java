@@ -0,0 +1,49 @@
+package tools.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** the stream methods of a BufferStreamable, done with its buffer
+ * methods, so it only has to say how it is laid out once.
+ */
+public final class BufferStreams{
+  private BufferStreams(){
+  }
+  public static void getState( BufferStreamable s, DataOutputStream os )
+    throws IOException{
+    ByteBuffer bb = ByteBuffer.allocate( s.getStreamedLength() );
+    s.getState( bb );
+    os.write( bb.array(), 0, bb.position() );
+  }
+  // the length comes first, so we know how much to read.
+  public static void setState( BufferStreamable s, DataInputStream is )
+    throws IOException{
+    int length = is.readInt();
+    if( length < 4 )
+      throw new IOException( "bad streamed length " + length );
+    ByteBuffer bb = ByteBuffer.allocate( length );
+    bb.putInt( length );
+    is.readFully( bb.array(), 4, length - 4 );
+    bb.position( 0 );
+    s.setState( bb );
+  }
+  // a string as [int length][bytes], with null and "" both as a 0
+  // length, which is how all of the map objects store them.
+  public static void putString( ByteBuffer bb, String s ){
+    if( s == null || s.length() == 0 ){
+      bb.putInt( 0 );
+      return;
+    }
+    byte[] bs = s.getBytes();
+    bb.putInt( bs.length );
+    bb.put( bs );
+  }
+  public static String getString( ByteBuffer bb ){
+    int length = bb.getInt();
+    if( length <= 0 )
+      return null;
+    byte[] bs = new byte[ length ];
+    bb.get( bs );
+    return new String( bs );
+  }
+}
@@ -0,0 +1,115 @@
+package tools.persistence;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** an append-only log of index changes that sits next to a
+ * PersistentStore's file.  Each commit appends one batch, which is
+ * the length of the batch, the batch itself, and a CRC32 of the batch,
+ * and, unless the store has been told not to, forces it to disk.  The
+ * batches themselves are opaque here; PersistentStore writes and
+ * replays them.<br>
+ *
+ * A batch that was only partly written when we crashed fails its
+ * checksum, and it and everything after it is dropped on the next
+ * open.  That is the same as the commit never having happened.
+ */
+class Journal{
+  private RandomAccessFile myRAF;
+
+  Journal( File f ) throws IOException{
+    myRAF = new RandomAccessFile( f, "rw" );
+  }
+  long length() throws IOException{
+    return myRAF.length();
+  }
+  void append( byte[] batch ) throws IOException{
+    ArrayList batches = new ArrayList( 1 );
+    batches.add( batch );
+    append( batches, true );
+  }
+  // appends every batch in one write, so a group commit costs one
+  // force however many commits are in it.
+  void append( List batches, boolean force ) throws IOException{
+    CRC32 crc = new CRC32();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream os = new DataOutputStream( baos );
+    byte[] batch;
+    int i;
+    for( i = 0; i < batches.size(); i++ ){
+      batch = (byte[])batches.get( i );
+      crc.reset();
+      crc.update( batch );
+      os.writeInt( batch.length );
+      os.write( batch );
+      os.writeLong( crc.getValue() );
+    }
+    myRAF.seek( myRAF.length() );
+    myRAF.write( baos.toByteArray() );
+    if( force )
+      force();
+  }
+  void force() throws IOException{
+    myRAF.getChannel().force( false );
+  }
+  // returns every complete batch, oldest first, and cuts off
+  // anything after the last good one.
+  byte[][] readBatches() throws IOException{
+    ArrayList batches = new ArrayList();
+    long good = read( myRAF, batches );
+    if( good != myRAF.length() ){
+      myRAF.setLength( good );
+      myRAF.getChannel().force( false );
+    }
+    return (byte[][])batches.toArray( new byte[ batches.size() ][] );
+  }
+  // the same, but it cuts nothing off, for looking at the journal of a
+  // store that isn't open.
+  static byte[][] peekBatches( File f ) throws IOException{
+    ArrayList batches = new ArrayList();
+    if( f.exists() ){
+      RandomAccessFile raf = new RandomAccessFile( f, "r" );
+      try{
+        read( raf, batches );
+      }finally{
+        raf.close();
+      }
+    }
+    return (byte[][])batches.toArray( new byte[ batches.size() ][] );
+  }
+  // adds the complete batches in raf to batches, and returns how much
+  // of it they take up.
+  private static long read( RandomAccessFile raf, List batches ) 
+    throws IOException{
+    long good = 0;
+    long length = raf.length();
+    int size;
+    byte[] batch;
+    CRC32 crc = new CRC32();
+    raf.seek( 0 );
+    while( good + 12 <= length ){
+      size = raf.readInt();
+      if( size < 0 || good + 12 + size > length )
+        break;
+      batch = new byte[ size ];
+      raf.readFully( batch );
+      crc.reset();
+      crc.update( batch );
+      if( crc.getValue() != raf.readLong() )
+        break;
+      batches.add( batch );
+      good += 12 + size;
+    }
+    return good;
+  }
+  // called once the index block holds everything in here.
+  void clear() throws IOException{
+    myRAF.setLength( 0 );
+    myRAF.getChannel().force( false );
+  }
+  void close() throws IOException{
+    myRAF.close();
+  }
+}
@@ -0,0 +1,16 @@
+package tools.persistence;
+
+/** Like Index, but rather than a hash code it gives the value itself,
+ * as bytes, so a lookup finds only the objects whose key is exactly
+ * the one asked for, and never one that just hashes the same.  The
+ * PersistentStore keeps each distinct key once, and finds it by a 64
+ * bit fingerprint, so long keys cost memory, and short ones that many
+ * objects share, like names, are cheap.<br>
+ *
+ * Return null for an object that shouldn't be in the index at all.
+ * As with Index, it is handy to also provide a method which takes
+ * just the value, and returns the same key for it.
+ */
+public interface KeyIndex{
+  public byte[] getKey( Object o );
+}
@@ -2,11 +2,194 @@ package tools.persistence;
 
 import tools.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
+import javax.management.JMException;
 
+/** The file starts with a 32 byte header:
+ * [int MAGIC][int VERSION][long indexBlockLocation][long indexBlockSpace]
+ * [int indexBlockChecksum] followed by 4 bytes that are reserved, and 0
+ * for now.  The checksum is a CRC32C of the index block, checked as it
+ * is read, or 0 while pack() is changing the block in place.
+ * Everything after the header is records and free space, and all
+ * locations are longs.  Files written before the header had a version
+ * (version 1, with int locations), before records could be compressed
+ * (version 2), before there were key indexes (version 3), or before
+ * there were checksums (version 4), are migrated by
+ * PersistentStoreMigrator when opened.<br>
+ *
+ * A record starts with its length, as the Storable wrote it.  If
+ * setCompression() is on, a record at least that long may be stored
+ * as [int length | COMPRESSED][int raw length][deflated record]
+ * instead, whenever that is smaller.  Either way it is stored in a
+ * frame, [int length | CHECKSUMMED][int id][int CRC32C][record], and
+ * checked and inflated again as it is read, so Storables never see the
+ * difference.  Since a frame says whose record it is, the index can be
+ * rebuilt from the records alone; see PersistentStoreDoctor.  Records
+ * from before version 5 have no frame, and aren't checked.<br>
+ *
+ * Besides the Index hashers, which map a hash code to the ids with it,
+ * a store can have KeyIndexes, which map the exact key to the ids with
+ * it, so their lookups need no checking against the records.  If a file
+ * was indexed with a different number of either than it is opened
+ * with, every record is read and the indexes are built again.  A
+ * RangeIndex is a KeyIndex kept in order, for range and prefix
+ * lookups.<br>
+ *
+ * close() leaves the committed used-space map next to the file, in
+ * &lt;file&gt;.space, with a checksum, and the index block location,
+ * journal length and file length it goes with.  The next open uses it,
+ * if all of those still match, rather than reading the length of every
+ * record, and deletes it either way.  So after a crash there is none,
+ * and we read the lengths.<br>
+ *
+ * Storables that are BufferStreamables are written and read through
+ * ByteBuffers, with no streams or extra copies.<br>
+ *
+ * It is safe to use from several threads.  Any number of them can
+ * load and look things up at once, while store(), deleteStorable(),
+ * commit() and the rest take turns, one at a time, with no readers.
+ * Reads use positional FileChannel reads, which don't share a file
+ * pointer, rather than seek() and read().  loadAsync(), storeAsync()
+ * and commitAsync() do the same work on the store's own I/O threads,
+ * for callers that mustn't wait on the disk, and storeAsync()s that
+ * queue up together are committed as a group.<br>
+ *
+ * A commit is on disk once its batch is in the journal, and the
+ * records it points at were forced before it.  setDurability() says
+ * when that happens: as each commit() returns, with commits from
+ * several threads sharing the force, every so often from a background
+ * thread, or only on flush() and close().<br>
+ *
+ * Readers see what has been stored, committed or not.  openSnapshot()
+ * gives a view of the last commit instead, which stays the same while
+ * the store changes, for long scans that need to see one state.<br>
+ *
+ * getStats() counts loads, stores, deletes, commits, packs and syncs,
+ * with their latencies, and the seeks and bytes read and written, and
+ * can show them through JMX, or pass each operation on to a
+ * PersistentStoreListener.
+ */
 public class PersistentStore{
-  private static final int MOBILE_DATA_START = 8;
+  /** mode flag: read records through a memory mapping of the file
+   * rather than with seek() and read().  The mapping is redone
+   * whenever a read runs past its end because the file has grown.
+   */
+  public static final int MEMORY_MAPPED = 1;
+  /** durability policy, the default: commit() returns once the commit
+   * is on disk.  Commits that come in while another is being forced
+   * wait for the next force, and share it.
+   */
+  public static final int SYNC_ON_COMMIT = 0;
+  /** durability policy: commits are forced to disk by a background
+   * thread every so many milliseconds, and by commit() itself every so
+   * many commits, so a crash loses at most those.  The file is never
+   * left inconsistent, just behind.
+   */
+  public static final int SYNC_PERIODIC = 1;
+  /** durability policy: nothing is ever forced but by flush() and
+   * close(), and the OS writes things out when and in what order it
+   * likes, so a crash can leave the store corrupt.  For scratch stores
+   * that can be rebuilt.
+   */
+  public static final int SYNC_NEVER = 2;
+
+  // no v1 file can start with this, because it is negative.
+  static final int MAGIC = 0xFE505354;
+  static final int VERSION = 5;
+  // where the index block location and space are in the header, and
+  // its CRC32C, which is 0 while it isn't known
+  private static final int HEADER_POINTER = 8;
+  static final int HEADER_CHECKSUM = 24;
+  static final int MOBILE_DATA_START = 32;
+  // each version keeps its journal in a different file, so a journal
+  // left behind by a migration can never be replayed over the new file.
+  static final String JOURNAL_SUFFIX = ".journal" + VERSION;
+  static final String SPACE_MAP_SUFFIX = ".space";
+  // we don't fold the journal into a new index block until it is at
+  // least this long, or as long as the index block, whichever is more.
+  private static final int MIN_JOURNAL_LIMIT = 64 * 1024;
+  // a mapping can't be more than 2GB, so past that we map a window
+  // that starts on a multiple of this.
+  private static final long MAP_ALIGN = 1 << 20;
+  // storeAll() doesn't bother with threads for fewer than this
+  private static final int PARALLEL_STORE_MIN = 64;
+  // how many tasks can wait for the I/O threads before callers run
+  // their own
+  private static final int IO_QUEUE = 1024;
+  // the high bit of a record's length word marks it as compressed
+  static final int COMPRESSED = 0x80000000;
+  // and the next one as framed with its id and a CRC32C:
+  // [int length | CHECKSUMMED][int id][int crc][record], where the
+  // record is as it would be without the frame, compressed or not
+  static final int CHECKSUMMED = 0x40000000;
+  static final int FRAME_HEADER = 12;
+  // what is left of a length word is the length
+  static final int LENGTH = ~(COMPRESSED | CHECKSUMMED);
+  // how many runs in a request's own size class we look at before
+  // going up a class, where any run will do
+  private static final int CLASS_TRIES = 8;
+
+  // the operations in a journal batch
+  static final byte J_PUT = 1;
+  static final byte J_REMOVE = 2;
+  static final byte J_ADD_CODE = 3;
+  static final byte J_REMOVE_CODE = 4;
+  static final byte J_ADD_KEY = 5;
+  static final byte J_REMOVE_KEY = 6;
 
   private RandomAccessFile myRAF;
+  private int mode;
+  private Index[] hashers;
+  private KeyIndex[] keyIndexes;
+  // read for lookups and loads, write for anything that changes things
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // only used in MEMORY_MAPPED mode.  It maps the file from mapStart
+  // on, and may lag behind the file length
+  private MappedByteBuffer map;
+  private long mapStart;
+  // index changes committed since the index block was last written
+  private Journal journal;
+  // where close() leaves the used-space map for the next open
+  private File spaceMapFile;
+  // off until setCacheSize() is called
+  private RecordCache cache = new RecordCache( 0 );
+  // what we have done, and how long it took
+  private PersistentStoreStats stats = new PersistentStoreStats( this );
+  private File filename;
+  // records at least this long are compressed.  0 is off.
+  private volatile int compressAt;
+  // what store() has been handed, and what it wrote, since we opened
+  private long rawBytesStored;
+  private long bytesStored;
+  // the threads behind the async methods, made on first use
+  private ThreadPoolExecutor ioExecutor;
+  // storeAsync()s and commitAsync()s for the next group commit, and
+  // whether a task is running, or about to run, that will commit them.
+  // Both are guarded by pendingWrites.
+  private ArrayList pendingWrites = new ArrayList();
+  private boolean draining;
 
   private boolean changedFromStore;
 
@@ -23,108 +206,430 @@ public class PersistentStore{
   // this contains a mapping of used space only.
   // the key is the start location, and the value is the length.
   // it is in an inconsistant state if key + value( key ) > successor( key )
-  private IntIntMap usedRecord;
-  private IntIntMap usableUsedRecord;
-  private IntIntMap committedUsedRecord;
+  // All of these, and the maps inside the IndexBlocks and FreeSpaces,
+  // share structure with their clones, so the clones taken at every
+  // commit and rollback cost O(1), not O(n).
+  private SnapshotLongLongMap usedRecord;
+  private SnapshotLongLongMap committedUsedRecord;
+  // the file length as of the last commit
+  private long committedLength;
+  // how many times the committed state has changed.  A Snapshot sees
+  // the one it was opened in.
+  private long generation;
+  // generation -> how many open Snapshots see it
+  private SnapshotLongLongMap snapshots = new SnapshotLongLongMap();
+  // committed records freed since the last commit, as {location, size}
+  private ArrayList released = new ArrayList();
+  // committed records freed while a Snapshot that can see them was
+  // open, or by a commit that isn't on disk yet, as {location, size,
+  // the generation they were freed in}, oldest first.  They stay out of
+  // usableFreeSpace until every Snapshot from before that generation is
+  // closed, and that generation is on disk.
+  private ArrayList pinned = new ArrayList();
+  // one of the SYNC_ policies, and for SYNC_PERIODIC, how often
+  private volatile int durability = SYNC_ON_COMMIT;
+  private int syncCommits;
+  // guarded by itself, not the store, whose monitor mapped() uses
+  private Flusher flusher;
+  private final Object flusherLock = new Object();
+  // the journal batches of commits that aren't on disk yet, oldest
+  // first, how many bytes they will take in the journal, and the
+  // generation the last of them made.  These, and everything up to
+  // syncing, are guarded by syncLock.
+  private final Object syncLock = new Object();
+  private ArrayList unsynced = new ArrayList();
+  private long unsyncedLength;
+  private long unsyncedGeneration;
+  private int commitsSinceSync;
+  // the newest generation that a crash would leave us with
+  private volatile long durableGeneration;
+  // bumped when an index block takes over from the journal, so a sync
+  // that was already under way doesn't append what it now holds
+  private volatile long journalEpoch;
+  // whether a thread is forcing commits to disk for everyone
+  private boolean syncing;
 
   public PersistentStore( File filename ) throws IOException{
     this( filename, new Index[0], null );
   }
   public PersistentStore(File filename, Index[] hashers, Streamable s )
     throws IOException{
-    if( ! filename.exists() ){
+    this( filename, hashers, s, 0 );
+  }
+  public PersistentStore(
+      File filename, Index[] hashers, Streamable s, int mode )
+    throws IOException{
+    this( filename, hashers, new KeyIndex[0], s, mode );
+  }
+  public PersistentStore( File filename, Index[] hashers, 
+      KeyIndex[] keyIndexes, Streamable s, int mode )
+    throws IOException{
+    this.mode = mode;
+    this.filename = filename;
+    this.hashers = hashers;
+    this.keyIndexes = keyIndexes;
+    PersistentStoreMigrator.migrate( filename );
+    boolean isNew = ! filename.exists();
+    if( isNew ){
       filename.createNewFile();
       DataOutputStream dos = new DataOutputStream( 
           new FileOutputStream( filename, false ) );
-      dos.writeInt( 0 ); // indexBlock location
-      dos.writeInt( 0 ); // indexBlock space
+      dos.writeInt( MAGIC );
+      dos.writeInt( VERSION );
+      dos.writeLong( 0 ); // indexBlock location
+      dos.writeLong( 0 ); // indexBlock space
+      dos.writeLong( 0 ); // reserved
       dos.flush();
       dos.close();
     }
     myRAF = new RandomAccessFile( filename, "rw" );
-    buildFromStoredIndexBlock( hashers, s );
+    journal = new Journal( new File( filename.getPath() + JOURNAL_SUFFIX ) );
+    spaceMapFile = new File( filename.getPath() + SPACE_MAP_SUFFIX );
+    if( isNew )
+      journal.clear();
+    buildFromStoredIndexBlock( s );
     changedFromStore = false;
   }
-  private void buildFromStoredIndexBlock( Index[] hashers, Streamable s ) 
+  private void buildFromStoredIndexBlock( Streamable s ) 
     throws IOException{
-    readIndexBlockFromStore( hashers, s );
-    buildUsedRecordFromIndex();
+    readIndexBlockFromStore( s );
+    boolean reindexed = false;
+    if( indexBlock.codesToIds.length != hashers.length
+        || indexBlock.keysToIds.length != keyIndexes.length ){
+      reindex();
+      reindexed = true;
+    }
+    if( ! readSpaceMap() )
+      buildUsedRecordFromIndex();
+    // it is only good until we change something
+    if( spaceMapFile.exists() && ! spaceMapFile.delete() )
+      throw new IOException( "can't delete " + spaceMapFile );
     buildFreeSpaceFromUsedRecord();
 
     committedIndexBlock = (IndexBlock)indexBlock.clone();
     usableFreeSpace = (FreeSpace)freeSpace.clone();
     committedFreeSpace = (FreeSpace)freeSpace.clone();
-    usableUsedRecord = (IntIntMap)usedRecord.clone();
-    committedUsedRecord = (IntIntMap)usedRecord.clone();
+    committedUsedRecord = (SnapshotLongLongMap)usedRecord.clone();
+    committedLength = myRAF.length();
+    // so we only have to do it once
+    if( reindexed )
+      writeIndexBlock();
   }
-  private void readIndexBlockFromStore( Index[] hashers, Streamable s ) 
+  private void readIndexBlockFromStore( Streamable s ) 
     throws IOException{
-    indexBlock = new IndexBlock( hashers, s );
-    int indexBlockLocation;
-    byte[] bs;
-    myRAF.seek( 0 );
-    indexBlockLocation = myRAF.readInt();
+    indexBlock = new IndexBlock( hashers, keyIndexes, s );
+    long indexBlockLocation;
+    seek( HEADER_POINTER );
+    indexBlockLocation = myRAF.readLong();
+    seek( HEADER_CHECKSUM );
+    int checksum = myRAF.readInt();
     if( indexBlockLocation != 0 ){
-      myRAF.seek( indexBlockLocation );
-      fillStreamable( indexBlock );
+      byte[] bs = readStored( indexBlockLocation );
+      if( checksum != 0 && checksum( ByteBuffer.wrap( bs ) ) != checksum )
+        throw new IOException( "the index block fails its checksum; "
+            + "PersistentStoreDoctor -repair can rebuild it" );
+      setState( indexBlock, bs );
+    }
+    byte[][] batches = journal.readBatches();
+    int i;
+    for( i = 0; i < batches.length; i++ )
+      indexBlock.replay( 
+          new DataInputStream( new ByteArrayInputStream( batches[i] ) ) );
+  }
+  // the file's indexes aren't the ones we were given, so we read every
+  // record, and index it again.
+  private void reindex() throws IOException{
+    IndexBlock fresh = new IndexBlock( 
+        hashers, keyIndexes, indexBlock.myStreamable );
+    IntIterator it = indexBlock.idIterator();
+    int id;
+    long location;
+    while( it.hasNext() ){
+      id = it.next();
+      location = indexBlock.getLocation( id );
+      fillStreamable( id, location, fresh.myStreamable );
+      fresh.put( id, location, getCodes( fresh.myStreamable ), 
+          getKeys( fresh.myStreamable ) );
     }
+    fresh.clearDelta();
+    indexBlock = fresh;
   }
   private void buildUsedRecordFromIndex() throws IOException{
-    myRAF.seek( 0 );
-    int indexBlockLocation = myRAF.readInt();
-    int indexBlockSpace = myRAF.readInt();
-    usedRecord = new IntIntMap( indexBlock.idCount() );
+    seek( HEADER_POINTER );
+    long indexBlockLocation = myRAF.readLong();
+    long indexBlockSpace = myRAF.readLong();
+    boolean hasBlock = indexBlockLocation != 0 && indexBlockSpace != 0;
+    // sort the locations, so the map can be built in one pass rather
+    // than by n puts, and so we read the sizes in file order.
+    long[] locations = new long[ indexBlock.idCount() + (hasBlock ? 1 : 0) ];
+    IntIterator it = indexBlock.idIterator();
+    int i = 0;
+    while( it.hasNext() )
+      locations[ i++ ] = indexBlock.getLocation( it.next() );
+    if( hasBlock )
+      locations[ i++ ] = indexBlockLocation;
+    java.util.Arrays.sort( locations );
+    long[] sizes = new long[ locations.length ];
+    for( i = 0; i < locations.length; i++ )
+      sizes[i] = hasBlock && locations[i] == indexBlockLocation 
+        ? indexBlockSpace : readSize( locations[i] );
+    try{
+      usedRecord = new SnapshotLongLongMap( locations, sizes );
+    }catch( IllegalArgumentException e ){
+      // two records claim the same spot.  keep one, as we always have.
+      usedRecord = new SnapshotLongLongMap();
+      for( i = 0; i < locations.length; i++ )
+        usedRecord.put( locations[i], sizes[i] );
+    }
+  }
+  // fills usedRecord from the space map close() left, if there is one,
+  // and it goes with the file and journal as they are now.  Returns
+  // false if it didn't.
+  private boolean readSpaceMap() throws IOException{
+    if( ! spaceMapFile.exists() || spaceMapFile.length() < 44 
+        || spaceMapFile.length() > Integer.MAX_VALUE )
+      return false;
+    byte[] bs = new byte[ (int)spaceMapFile.length() ];
+    DataInputStream is = new DataInputStream( 
+        new FileInputStream( spaceMapFile ) );
+    try{
+      is.readFully( bs );
+    }finally{
+      is.close();
+    }
+    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    crc.update( bs, 0, bs.length - 8 );
+    ByteBuffer bb = ByteBuffer.wrap( bs );
+    if( crc.getValue() != bb.getLong( bs.length - 8 ) )
+      return false;
+    if( bb.getInt() != MAGIC || bb.getInt() != VERSION 
+        || bb.getLong() != readIndexBlockLocation()
+        || bb.getLong() != journal.length() 
+        || bb.getLong() != myRAF.length() )
+      return false;
+    int n = bb.getInt();
+    if( n < 0 || 44 + 16L * n != bs.length )
+      return false;
+    long[] locations = new long[ n ];
+    long[] sizes = new long[ n ];
+    int i;
+    for( i = 0; i < n; i++ ){
+      locations[i] = bb.getLong();
+      sizes[i] = bb.getLong();
+    }
+    SnapshotLongLongMap used;
+    try{
+      used = new SnapshotLongLongMap( locations, sizes );
+    }catch( IllegalArgumentException e ){
+      return false;
+    }
+    // every id's record has to be in it, and nothing else but the
+    // index block, or it isn't this file's map.
+    int ids = 0;
     IntIterator it = indexBlock.idIterator();
-    int key, location, size;
     while( it.hasNext() ){
-      key = it.next();
-      location = indexBlock.getLocation( key );
-      myRAF.seek( location );
-      size = myRAF.readInt();
-      usedRecord.put( location, size );
+      ids++;
+      if( ! used.containsKey( indexBlock.getLocation( it.next() ) ) )
+        return false;
+    }
+    if( used.size() != ids + (readIndexBlockLocation() == 0 ? 0 : 1) )
+      return false;
+    usedRecord = used;
+    return true;
+  }
+  // the other half of readSpaceMap()
+  private void writeSpaceMap() throws IOException{
+    int n = committedUsedRecord.size();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream( 44 + 16 * n );
+    DataOutputStream os = new DataOutputStream( baos );
+    os.writeInt( MAGIC );
+    os.writeInt( VERSION );
+    os.writeLong( readIndexBlockLocation() );
+    os.writeLong( journal.length() );
+    os.writeLong( myRAF.length() );
+    os.writeInt( n );
+    LongIterator it = committedUsedRecord.keyIterator();
+    long location;
+    while( it.hasNext() ){
+      location = it.next();
+      os.writeLong( location );
+      os.writeLong( committedUsedRecord.get( location ) );
+    }
+    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    crc.update( baos.toByteArray() );
+    os.writeLong( crc.getValue() );
+    FileOutputStream fos = new FileOutputStream( spaceMapFile );
+    try{
+      fos.write( baos.toByteArray() );
+      fos.getFD().sync();
+    }finally{
+      fos.close();
     }
-    if( indexBlockLocation != 0 && indexBlockSpace != 0 )
-      usedRecord.put( indexBlockLocation, indexBlockSpace );
   }
   private void buildFreeSpaceFromUsedRecord() throws IOException{
-    IntIterator it = usedRecord.keyIterator();
-    freeSpace = new FreeSpace( 8 );
-    int current = MOBILE_DATA_START;
-    int nextUsed;
+    LongIterator it = usedRecord.keyIterator();
+    freeSpace = new FreeSpace();
+    long current = MOBILE_DATA_START;
+    long nextUsed;
     while( it.hasNext() ){
       nextUsed = it.next();
       if( current < nextUsed )
-        freeSpace.add( nextUsed - current, current );
+        freeSpace.free( current, nextUsed - current );
       current = nextUsed + usedRecord.get( nextUsed );
     }
     if( current < myRAF.length() )
-      freeSpace.add( (int)myRAF.length()-current, current );
-  }
-  private void fillStreamable( Streamable s ) throws IOException{
-    int size = myRAF.readInt();
-    byte[] bs = new byte[ size ];
-    bs[0] = (byte)(0xFF & (size >> 24));
-    bs[1] = (byte)(0xFF & (size >> 16));
-    bs[2] = (byte)(0xFF & (size >> 8));
-    bs[3] = (byte)(0xFF & size);
-    myRAF.readFully( bs, 4, size-4 );
-    s.setState( new DataInputStream( new ByteArrayInputStream( bs ) ) );
+      freeSpace.free( current, myRAF.length()-current );
+  }
+  private void fillStreamable( int id, long location, Streamable s )
+    throws IOException{
+    setState( s, readRecord( id, location ) );
+  }
+  // hands bs to s, as a buffer if it can take one.
+  private static void setState( Streamable s, byte[] bs ) throws IOException{
+    if( s instanceof BufferStreamable )
+      ((BufferStreamable)s).setState( ByteBuffer.wrap( bs ) );
+    else
+      s.setState( new DataInputStream( new ByteArrayInputStream( bs ) ) );
+  }
+  // record id at location, as a view of the mapping limited to it, or
+  // null if we aren't mapping, or it is compressed.  The file can be
+  // cut short under the mapping, so it is only good while we hold the
+  // lock.
+  private ByteBuffer mappedRecord( int id, long location )
+    throws IOException{
+    ByteBuffer view = mapped( location, 4 );
+    if( view == null )
+      return null;
+    int length = view.getInt( view.position() );
+    if( (length & COMPRESSED) != 0 )
+      return null;
+    view = mapped( location, length & LENGTH );
+    if( view == null )
+      return null;
+    view.limit( view.position() + (length & LENGTH) );
+    if( (length & CHECKSUMMED) == 0 ){
+      stats.read( length & LENGTH );
+      return view;
+    }
+    checkFrame( id, location, view );
+    view.position( view.position() + FRAME_HEADER );
+    if( (view.getInt( view.position() ) & COMPRESSED) != 0 )
+      return null;
+    stats.read( length & LENGTH );
+    return view;
+  }
+  // the whole of record id, at location, length prefix and all,
+  // inflated if it was stored compressed.
+  private byte[] readRecord( int id, long location ) throws IOException{
+    return decode( id, location, readStored( location ) );
+  }
+  // the record at location as it is on disk.
+  private byte[] readStored( long location ) throws IOException{
+    byte[] bs = new byte[ readSize( location ) ];
+    ByteBuffer view = mapped( location, bs.length );
+    if( view != null ){
+      view.get( bs );
+      stats.read( bs.length );
+    }else
+      readFully( ByteBuffer.wrap( bs ), location );
+    return bs;
+  }
+  // how much space the record at location takes on disk.
+  private int readSize( long location ) throws IOException{
+    ByteBuffer view = mapped( location, 4 );
+    if( view != null )
+      return view.getInt() & LENGTH;
+    ByteBuffer bb = ByteBuffer.allocate( 4 );
+    readFully( bb, location );
+    return bb.getInt( 0 ) & LENGTH;
+  }
+  // fills b from position on.  It doesn't use or move the file pointer,
+  // so readers can do this all at once.  (Interrupting a thread while
+  // it is in here closes the channel, though, as it does for any
+  // FileChannel read.)
+  private void readFully( ByteBuffer b, long position ) throws IOException{
+    FileChannel fc = myRAF.getChannel();
+    int n;
+    stats.seek();
+    stats.read( b.remaining() );
+    while( b.hasRemaining() ){
+      n = fc.read( b, position );
+      if( n < 0 )
+        throw new EOFException();
+      position += n;
+    }
+  }
+  // a view of the file positioned at location, that covers
+  // [location, location+length), or null if we aren't mapping, or
+  // that runs past the end of the file.
+  // it is synchronized because readers share the mapping.
+  private synchronized ByteBuffer mapped( long location, int length ) 
+    throws IOException{
+    if( (mode & MEMORY_MAPPED) == 0 )
+      return null;
+    if( map == null || location < mapStart 
+        || location + length > mapStart + map.capacity() ){
+      long fileLength = myRAF.length();
+      if( location + length > fileLength )
+        return null;
+      // the whole file if we can, else as much as we can from location on
+      long start = fileLength <= Integer.MAX_VALUE ? 0 
+        : location & ~(MAP_ALIGN - 1);
+      long size = Math.min( fileLength - start, Integer.MAX_VALUE );
+      if( location + length > start + size )
+        return null;
+      map = myRAF.getChannel().map( 
+          FileChannel.MapMode.READ_ONLY, start, size );
+      mapStart = start;
+    }
+    ByteBuffer view = map.duplicate();
+    view.position( (int)(location - mapStart) );
+    return view;
   }
   // this does not check for space or anything.  it just moves
   // bytes.
-  private void copyData( int fromLocation, int toLocation, int length ) throws IOException{
+  private void copyData( long fromLocation, long toLocation, int length ) throws IOException{
     byte[] bs = new byte[ length ];
-    myRAF.seek( fromLocation );
+    seek( fromLocation );
     myRAF.readFully( bs );
-    myRAF.seek( toLocation );
+    stats.read( length );
+    write( toLocation, bs );
+  }
+  private void seek( long location ) throws IOException{
+    myRAF.seek( location );
+    stats.seek();
+  }
+  private void write( long location, byte[] bs ) throws IOException{
+    seek( location );
     myRAF.write( bs );
+    stats.wrote( bs.length );
+  }
+  // forces what we have written to disk, and times it.
+  private void force() throws IOException{
+    long start = System.nanoTime();
+    myRAF.getChannel().force( false );
+    stats.record( PersistentStoreStats.SYNC, start, 0 );
+  }
+  // points the header at a new index block, with its checksum.  It is
+  // a single write, so that it is as atomic as we can make it.
+  private void writeIndexPointer( long location, long space, int checksum ) 
+    throws IOException{
+    byte[] bs = new byte[ 20 ];
+    int i;
+    for( i = 0; i < 8; i++ ){
+      bs[i] = (byte)(0xFF & (location >> (56 - 8*i)));
+      bs[i+8] = (byte)(0xFF & (space >> (56 - 8*i)));
+    }
+    for( i = 0; i < 4; i++ )
+      bs[i+16] = (byte)(0xFF & (checksum >> (24 - 8*i)));
+    write( HEADER_POINTER, bs );
   }
 
   public int getMaxID(){
-    return indexBlock.getMaxID();
+    return getMaxID( null );
   }
   public int[] getIDs(){
-    return indexBlock.getIDs();
+    return getIDs( (IndexBlock)null );
   }
   public int[] getIDs( int[] userIndexCodes ){
     boolean[] b = new boolean[ userIndexCodes.length ];
@@ -132,170 +637,788 @@ public class PersistentStore{
     return getIDs( userIndexCodes, b );
   }
   public int[] getIDs( int[] userIndexCodes, boolean[] useThisCode ){
-    if( useThisCode.length != indexBlock.codesToIds.length )
+    return getIDs( userIndexCodes, useThisCode, 
+        new byte[ keyIndexes.length ][] );
+  }
+  /** the ids that have every code in userIndexCodes whose useThisCode
+   * is true, and every key in keys that isn't null.  keys are in the
+   * same order as the KeyIndexes the store was opened with.
+   */
+  public int[] getIDs( int[] userIndexCodes, boolean[] useThisCode,
+      byte[][] keys ){
+    return getIDs( null, userIndexCodes, useThisCode, keys );
+  }
+  // each lookup below looks in pinned, a Snapshot's index block, or in
+  // the working one if that is null.  A pinned block never changes, but
+  // we still need the lock to read records, or the working block.
+  private int getMaxID( IndexBlock pinned ){
+    lock.readLock().lock();
+    try{
+      return (pinned == null ? indexBlock : pinned).getMaxID();
+    }finally{
+      lock.readLock().unlock();
+    }
+  }
+  private int[] getIDs( IndexBlock pinned ){
+    lock.readLock().lock();
+    try{
+      return (pinned == null ? indexBlock : pinned).getIDs();
+    }finally{
+      lock.readLock().unlock();
+    }
+  }
+  private int[] getIDs( IndexBlock pinned, int[] userIndexCodes, 
+      boolean[] useThisCode, byte[][] keys ){
+    if( useThisCode.length != hashers.length 
+        || keys.length != keyIndexes.length )
       return new int[0];
     int i, j, setCount = 0;
     for( i = 0; i < useThisCode.length; i++ )
       if( useThisCode[i] )
         setCount++;
+    for( i = 0; i < keys.length; i++ )
+      if( keys[i] != null )
+        setCount++;
     if( setCount == 0 )
       return new int[0];
-    IntSet[] sets = new IntSet[setCount];
-    for( j = 0, i = 0; i < useThisCode.length; i++ )
-      if( useThisCode[i] ){
-        sets[j] = indexBlock.getIDs( userIndexCodes[i], i );
-        if( sets[j] == null || sets[j++].size() == 0 )
-          return new int[0];
-      }
-    if( sets.length == 1 )
-      return sets[0].toArray();
-    if( sets.length == 2 )
-      return sets[0].intersection(sets[1]).toArray();
-    Heap setHeap = new Heap( new java.util.Comparator(){
-      public int compare( Object o1, Object o2 ){
-        return ((IntSet)o1).size() - ((IntSet)o2).size();
-      } } );
-    for( i = 0; i < sets.length; i++ )
-      setHeap.add( sets[i] );
-    IntSet set = (IntSet)setHeap.next();
-    while( set != null && set.size() > 0 && setHeap.hasNext() ){
-      set = set.intersection( (IntSet)setHeap.next() );
-    }
-    return set != null && set.size() > 0 ? set.toArray() : new int[0];
+    SnapshotIntSet[] sets = new SnapshotIntSet[setCount];
+    // the sets are never changed once they are in an index, so we only
+    // need the lock to take them, not to intersect them, and needn't
+    // clone them.
+    lock.readLock().lock();
+    try{
+      IndexBlock ib = pinned == null ? indexBlock : pinned;
+      for( j = 0, i = 0; i < useThisCode.length; i++ )
+        if( useThisCode[i] ){
+          sets[j] = ib.getIDs( userIndexCodes[i], i );
+          if( sets[j] == null || sets[j++].size() == 0 )
+            return new int[0];
+        }
+      for( i = 0; i < keys.length; i++ )
+        if( keys[i] != null ){
+          sets[j] = ib.getIDs( keys[i], i );
+          if( sets[j] == null || sets[j++].size() == 0 )
+            return new int[0];
+        }
+    }finally{
+      lock.readLock().unlock();
+    }
+    return intersect( sets );
+  }
+  // smallest first, so there are as few candidates as there can be
+  // from the start, and each set after that only filters them, in
+  // place, until none are left.
+  private static int[] intersect( SnapshotIntSet[] sets ){
+    int i, j;
+    SnapshotIntSet set;
+    for( i = 1; i < sets.length; i++ ){
+      set = sets[i];
+      for( j = i; j > 0 && sets[j-1].size() > set.size(); j-- )
+        sets[j] = sets[j-1];
+      sets[j] = set;
+    }
+    int[] ids = sets[0].toArray();
+    int n = ids.length;
+    for( i = 1; i < sets.length && n > 0; i++ )
+      n = sets[i].retain( ids, n );
+    return n == ids.length ? ids : java.util.Arrays.copyOf( ids, n );
+  }
+  /** the ids whose key in the keyIndex'th KeyIndex is from from,
+   * inclusive, to to, exclusive, comparing keys as RangeIndex does.  A
+   * null bound is no bound.  For a RangeIndex this only looks at the
+   * keys in the range; for any other KeyIndex it looks at them all.
+   */
+  public int[] getIDsInRange( int keyIndex, byte[] from, byte[] to ){
+    return getIDsInRange( null, keyIndex, from, to );
+  }
+  private int[] getIDsInRange( IndexBlock pinned, int keyIndex, 
+      byte[] from, byte[] to ){
+    KeyedIndex keys;
+    // a clone is a snapshot, so we only need the lock to take it
+    lock.readLock().lock();
+    try{
+      IndexBlock ib = pinned == null ? indexBlock : pinned;
+      if( keyIndex < 0 || keyIndex >= ib.keysToIds.length )
+        return new int[0];
+      keys = (KeyedIndex)ib.keysToIds[ keyIndex ].clone();
+    }finally{
+      lock.readLock().unlock();
+    }
+    ArrayList es = new ArrayList();
+    keys.range( from, to, es );
+    IntSet ids = new IntSet();
+    IntIterator it;
+    int i;
+    for( i = 0; i < es.size(); i++ ){
+      it = ((KeyEntry)es.get( i )).ids.iterator();
+      while( it.hasNext() )
+        ids.add( it.next() );
+    }
+    return ids.toArray();
+  }
+  /** the ids whose key in the keyIndex'th KeyIndex starts with prefix.
+   */
+  public int[] getIDsWithPrefix( int keyIndex, byte[] prefix ){
+    return getIDsInRange( keyIndex, prefix, prefixEnd( prefix ) );
+  }
+  // the first key after all the ones that start with prefix, or null
+  // if there is none
+  private static byte[] prefixEnd( byte[] prefix ){
+    int i = prefix.length - 1;
+    while( i >= 0 && prefix[i] == (byte)0xFF )
+      i--;
+    if( i < 0 )
+      return null;
+    byte[] end = java.util.Arrays.copyOf( prefix, i + 1 );
+    end[i]++;
+    return end;
+  }
+  /** the ids from from, inclusive, to to, exclusive, in order.
+   */
+  public int[] getIDsBetween( int from, int to ){
+    return getIDsBetween( null, from, to );
+  }
+  private int[] getIDsBetween( IndexBlock pinned, int from, int to ){
+    IntSet ids = new IntSet();
+    lock.readLock().lock();
+    try{
+      IndexBlock ib = pinned == null ? indexBlock : pinned;
+      int id = ib.getCeilID( from );
+      while( id != Integer.MIN_VALUE && id < to ){
+        ids.add( id );
+        if( id == Integer.MAX_VALUE )
+          break;
+        id = ib.getCeilID( id + 1 );
+      }
+    }finally{
+      lock.readLock().unlock();
+    }
+    return ids.toArray();
   }
   // packs the file, removing all free space
   // good to use after making many changes
   // the tricky part will be updating all the location pointers...
   // Let's see, if we built a temporary map from location to index,
   public void pack() throws IOException{
-    commit();
-    // we build a map from location to pointer into the 
-    // data store of the index, because from here on in,
-    // we ignore the software index object, and write
-    // things directly to disk.
-    IntIntMap locationsToIndexPtr = new IntIntMap( indexBlock.idCount() );
-    int[] keys = indexBlock.getIDs();
-    int i;
-    for(i = 0; i < keys.length; i++){
-      // the actual location in the index block is 8 + 8*i + 4
-      // for 2 ints (IndexBlock and IdIndex) then 2 ints per record,
-      // but the location is the second record
-      locationsToIndexPtr.put( indexBlock.getLocation( keys[i] ), (i+1)*8+4 );
-    }
-    // now, check if the index starts at the 8th byte
-    myRAF.seek( 0 );
-    int indexBlockLocation = myRAF.readInt();
-    int indexBlockSpace = myRAF.readInt();
-    int nextSpace, nextLocation, newLocation, recordSize, iPtr;
-    if( indexBlockLocation != MOBILE_DATA_START ){
-      nextLocation = usedRecord.getCeilKey( MOBILE_DATA_START );
-      while( nextLocation < indexBlockSpace+MOBILE_DATA_START ){
-        newLocation = (int)myRAF.length();
-        recordSize = usedRecord.get( nextLocation );
-        copyData( nextLocation, newLocation, recordSize );
-        if( nextLocation != indexBlockLocation ){
-          iPtr = locationsToIndexPtr.get( nextLocation );
-          myRAF.seek( indexBlockLocation + iPtr );
-          myRAF.writeInt( newLocation );
-          locationsToIndexPtr.remove( nextLocation );
-          locationsToIndexPtr.put( newLocation, iPtr );
-        }else{
-          myRAF.seek( 0 );
-          myRAF.writeInt( newLocation );
-          indexBlockLocation = newLocation;
-        }
-        usedRecord.remove( nextLocation );
-        usedRecord.put( newLocation, recordSize );
-        nextLocation = usedRecord.getCeilKey( MOBILE_DATA_START );
+    long start = System.nanoTime();
+    lock.writeLock().lock();
+    try{
+      // it moves records that a Snapshot may be about to read
+      if( ! snapshots.isEmpty() )
+        throw new IOException( "can't pack with snapshots open" );
+      checkpoint();
+      // we build a map from location to pointer into the 
+      // data store of the index, because from here on in,
+      // we ignore the software index object, and write
+      // things directly to disk.
+      SnapshotLongLongMap locationsToIndexPtr = new SnapshotLongLongMap();
+      int[] keys = indexBlock.getIDs();
+      int i;
+      for(i = 0; i < keys.length; i++){
+        // the actual location in the index block is 8 + 12*i + 4
+        // for 2 ints (IndexBlock and IdIndex) then an int and a long
+        // per record, and the location is the long
+        locationsToIndexPtr.put( indexBlock.getLocation( keys[i] ), (i+1)*12 );
       }
-      copyData( indexBlockLocation, MOBILE_DATA_START, indexBlockSpace );
-      myRAF.seek( 0 );
-      myRAF.writeInt( MOBILE_DATA_START );
-      usedRecord.remove( indexBlockLocation );
-      usedRecord.put( MOBILE_DATA_START, indexBlockSpace );
-    }
-    nextSpace = indexBlockSpace+MOBILE_DATA_START;
-    nextLocation = usedRecord.getCeilKey( nextSpace );
-    while( nextLocation != Integer.MIN_VALUE ){
-      recordSize = usedRecord.get( nextLocation );
-      if( nextLocation == nextSpace ){
-        // don't need to move anything, go to next space
-        nextSpace = nextLocation + recordSize;
-      }else{
-        if( recordSize <= nextLocation - nextSpace ){
-          copyData( nextLocation, nextSpace, recordSize );
-          iPtr = locationsToIndexPtr.get( nextLocation );
-          myRAF.seek( MOBILE_DATA_START+iPtr );
-          myRAF.writeInt( nextSpace );
-          locationsToIndexPtr.remove( nextLocation );
-          locationsToIndexPtr.put( nextSpace, iPtr );
-          usedRecord.remove( nextLocation );
-          usedRecord.put( nextSpace, recordSize );
-          nextSpace = nextSpace + recordSize;
-        }else{
-          newLocation = (int)myRAF.length();
+      // now, check if the index starts at MOBILE_DATA_START
+      seek( HEADER_POINTER );
+      long indexBlockLocation = myRAF.readLong();
+      long indexBlockSpace = myRAF.readLong();
+      long nextSpace, nextLocation, newLocation, iPtr;
+      int recordSize;
+      if( indexBlockSpace == 0 ){
+        // nothing has ever been committed, so there is nothing to move
+        truncateFreeTail();
+        return;
+      }
+      // the block is changed in place from here on, so until it is
+      // done it has no checksum to fail
+      writeIndexPointer( indexBlockLocation, indexBlockSpace, 0 );
+      if( indexBlockLocation != MOBILE_DATA_START ){
+        nextLocation = usedRecord.getCeilKey( MOBILE_DATA_START );
+        while( nextLocation < indexBlockSpace+MOBILE_DATA_START ){
+          newLocation = myRAF.length();
+          recordSize = (int)usedRecord.get( nextLocation );
           copyData( nextLocation, newLocation, recordSize );
-          iPtr = locationsToIndexPtr.get( nextLocation );
-          myRAF.seek( MOBILE_DATA_START+iPtr );
-          myRAF.writeInt( newLocation );
-          locationsToIndexPtr.remove( nextLocation );
-          locationsToIndexPtr.put( newLocation, iPtr );
+          if( nextLocation != indexBlockLocation ){
+            iPtr = locationsToIndexPtr.get( nextLocation );
+            seek( indexBlockLocation + iPtr );
+            myRAF.writeLong( newLocation );
+            locationsToIndexPtr.remove( nextLocation );
+            locationsToIndexPtr.put( newLocation, iPtr );
+          }else{
+            writeIndexPointer( newLocation, indexBlockSpace, 0 );
+            indexBlockLocation = newLocation;
+          }
           usedRecord.remove( nextLocation );
           usedRecord.put( newLocation, recordSize );
+          nextLocation = usedRecord.getCeilKey( MOBILE_DATA_START );
         }
+        copyData( indexBlockLocation, MOBILE_DATA_START, (int)indexBlockSpace );
+        writeIndexPointer( MOBILE_DATA_START, indexBlockSpace, 0 );
+        usedRecord.remove( indexBlockLocation );
+        usedRecord.put( MOBILE_DATA_START, indexBlockSpace );
       }
+      nextSpace = indexBlockSpace+MOBILE_DATA_START;
       nextLocation = usedRecord.getCeilKey( nextSpace );
-    }
-    myRAF.seek( MOBILE_DATA_START );
-    fillStreamable( indexBlock );
-    myRAF.getChannel().truncate( nextSpace );
+      while( nextLocation != Long.MIN_VALUE ){
+        recordSize = (int)usedRecord.get( nextLocation );
+        if( nextLocation == nextSpace ){
+          // don't need to move anything, go to next space
+          nextSpace = nextLocation + recordSize;
+        }else{
+          if( recordSize <= nextLocation - nextSpace ){
+            copyData( nextLocation, nextSpace, recordSize );
+            iPtr = locationsToIndexPtr.get( nextLocation );
+            seek( MOBILE_DATA_START+iPtr );
+            myRAF.writeLong( nextSpace );
+            locationsToIndexPtr.remove( nextLocation );
+            locationsToIndexPtr.put( nextSpace, iPtr );
+            usedRecord.remove( nextLocation );
+            usedRecord.put( nextSpace, recordSize );
+            nextSpace = nextSpace + recordSize;
+          }else{
+            newLocation = myRAF.length();
+            copyData( nextLocation, newLocation, recordSize );
+            iPtr = locationsToIndexPtr.get( nextLocation );
+            seek( MOBILE_DATA_START+iPtr );
+            myRAF.writeLong( newLocation );
+            locationsToIndexPtr.remove( nextLocation );
+            locationsToIndexPtr.put( newLocation, iPtr );
+            usedRecord.remove( nextLocation );
+            usedRecord.put( newLocation, recordSize );
+          }
+        }
+        nextLocation = usedRecord.getCeilKey( nextSpace );
+      }
+      byte[] ibs = readStored( MOBILE_DATA_START );
+      setState( indexBlock, ibs );
+      writeIndexPointer( MOBILE_DATA_START, indexBlockSpace, 
+          checksum( ByteBuffer.wrap( ibs ) ) );
+      // everything moved
+      cache.clear();
+      // touching a mapping past the end of the file is fatal
+      map = null;
+      myRAF.getChannel().truncate( nextSpace );
 
-    committedIndexBlock = (IndexBlock)indexBlock.clone();
-    freeSpace = new FreeSpace( 1 );
-    usableFreeSpace = new FreeSpace( 1 );
-    committedFreeSpace = new FreeSpace( 1 );
-    usableUsedRecord = (IntIntMap)usedRecord.clone();
-    committedUsedRecord = (IntIntMap)usedRecord.clone();
-    myRAF.getChannel().force( false );
-    changedFromStore = false;
+      committedIndexBlock = (IndexBlock)indexBlock.clone();
+      freeSpace = new FreeSpace();
+      usableFreeSpace = new FreeSpace();
+      committedFreeSpace = new FreeSpace();
+      committedUsedRecord = (SnapshotLongLongMap)usedRecord.clone();
+      released.clear();
+      // nothing from before is pinned by a Snapshot, and the moves are
+      // on disk once this is done
+      pinned.clear();
+      force();
+      synchronized( syncLock ){
+        generation++;
+        durableGeneration = generation;
+      }
+      committedLength = myRAF.length();
+      changedFromStore = false;
+    }finally{
+      lock.writeLock().unlock();
+      stats.record( PersistentStoreStats.PACK, start, 0 );
+    }
+  }
+  /** moves up to maxRecords records from the end of the file into free
+   * space nearer the start, commits, and cuts off whatever is then free
+   * at the end of the file.  Unlike pack(), it only holds the lock for
+   * as long as that takes, and it goes through commit() like any other
+   * change, so a crash part way through loses nothing.  It commits, so
+   * it does nothing if there are uncommitted changes.  Returns how many
+   * records it moved, counting the index block as one.
+   */
+  public int compactStep( int maxRecords ) throws IOException{
+    lock.writeLock().lock();
+    try{
+      if( changedFromStore )
+        return 0;
+      long indexBlockLocation = readIndexBlockLocation();
+      int moved = 0;
+      long location = usedRecord.getFloorKey( Long.MAX_VALUE );
+      long size, to;
+      while( moved < maxRecords && location != Long.MAX_VALUE ){
+        if( location == indexBlockLocation ){
+          // it can't be moved like a record (see below), but moving the
+          // records under it may make a hole it can go into.
+          location = usedRecord.getFloorKey( location - 1 );
+          continue;
+        }
+        size = usedRecord.get( location );
+        to = usableFreeSpace.getBelow( size, location );
+        if( to < 0 )
+          break;
+        byte[] bs = readStored( location );
+        allocate( to, size );
+        write( to, bs );
+        // the cache holds records inflated, so we can't just put bs
+        cache.remove( location );
+        cache.remove( to );
+        usedRecord.put( to, size );
+        release( location );
+        indexBlock.move( indexBlock.getIdAt( location ), to );
+        changedFromStore = true;
+        moved++;
+        location = usedRecord.getFloorKey( Long.MAX_VALUE );
+      }
+      commit();
+      truncateFreeTail();
+      // writing a new index block puts it in a hole, if one is big
+      // enough, and frees the old one.
+      location = usedRecord.getFloorKey( Long.MAX_VALUE );
+      if( moved < maxRecords && location != Long.MAX_VALUE
+          && location == readIndexBlockLocation()
+          && usableFreeSpace.getBelow( 
+            spaceFor( indexBlock.getStreamedLength() ), location ) >= 0 ){
+        writeIndexBlock();
+        truncateFreeTail();
+        moved++;
+      }
+      return moved;
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  // cuts off any free space at the end of the file.  Only call this
+  // right after a commit, when the working and committed states agree.
+  private void truncateFreeTail() throws IOException{
+    long last = usedRecord.getFloorKey( Long.MAX_VALUE );
+    long end = last == Long.MAX_VALUE? MOBILE_DATA_START 
+      : last + usedRecord.get( last );
+    // a Snapshot may still read what is pinned
+    int i;
+    long[] run;
+    for( i = 0; i < pinned.size(); i++ ){
+      run = (long[])pinned.get( i );
+      end = Math.max( end, run[0] + run[1] );
+    }
+    long length = myRAF.length();
+    if( end >= length )
+      return;
+    freeSpace.take( end, length - end );
+    usableFreeSpace.take( end, length - end );
+    committedFreeSpace.take( end, length - end );
+    // touching a mapping past the end of the file is fatal
+    map = null;
+    myRAF.getChannel().truncate( end );
+    committedLength = end;
+  }
+  /** the fraction of the file, past the header, that is free space.
+   * A PersistentStoreCompactor uses this to decide when to work.
+   */
+  public double getFragmentation() throws IOException{
+    lock.readLock().lock();
+    try{
+      long length = myRAF.length() - MOBILE_DATA_START;
+      return length <= 0 ? 0 : (double)freeSpace.total / length;
+    }finally{
+      lock.readLock().unlock();
+    }
   }
   public void rollback(){
-    if( changedFromStore ){
-      indexBlock = (IndexBlock)committedIndexBlock.clone();
-      usedRecord = (IntIntMap)committedUsedRecord.clone();
-      usableUsedRecord = (IntIntMap)committedUsedRecord.clone();
-      freeSpace = (FreeSpace)committedFreeSpace.clone();
-      usableFreeSpace = (FreeSpace)committedFreeSpace.clone();
-      changedFromStore = false;
+    lock.writeLock().lock();
+    try{
+      if( changedFromStore ){
+        indexBlock = (IndexBlock)committedIndexBlock.clone();
+        usedRecord = (SnapshotLongLongMap)committedUsedRecord.clone();
+        freeSpace = (FreeSpace)committedFreeSpace.clone();
+        usableFreeSpace = unpinned( committedFreeSpace );
+        released.clear();
+        // anything appended since the commit is free now, but the
+        // committed tail entry doesn't know the file grew.
+        try{
+          extendTail( freeSpace );
+          extendTail( usableFreeSpace );
+        }catch( IOException e ){
+          e.printStackTrace( System.err );
+        }
+        changedFromStore = false;
+      }
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  // the committed state has just moved on, so what it freed is pinned
+  // if a Snapshot can still see it, and usable again if not.
+  private void nextGeneration(){
+    int i;
+    long[] run;
+    generation++;
+    if( ! snapshots.isEmpty() || durableGeneration < generation )
+      for( i = 0; i < released.size(); i++ ){
+        run = (long[])released.get( i );
+        // if it is in use again, freeing it later would free that
+        if( ! isUsed( run[0], run[1] ) )
+          pinned.add( new long[]{ run[0], run[1], generation } );
+      }
+    released.clear();
+    releasePins();
+    usableFreeSpace = unpinned( freeSpace );
+  }
+  // once no open Snapshot is older than a pinned run's generation, and
+  // that generation is on disk, nothing can read it, and it is free for
+  // use.
+  private void releasePins(){
+    long oldest = snapshots.isEmpty() 
+      ? Long.MAX_VALUE : snapshots.getCeilKey( Long.MIN_VALUE );
+    oldest = Math.min( oldest, durableGeneration );
+    int i = 0;
+    long[] run;
+    while( i < pinned.size() 
+        && (run = (long[])pinned.get( i ))[2] <= oldest ){
+      usableFreeSpace.free( run[0], run[1] );
+      i++;
     }
+    pinned.subList( 0, i ).clear();
   }
+  // a copy of fs without the pinned runs
+  private FreeSpace unpinned( FreeSpace fs ){
+    FreeSpace usable = (FreeSpace)fs.clone();
+    int i;
+    long[] run;
+    for( i = 0; i < pinned.size(); i++ ){
+      run = (long[])pinned.get( i );
+      usable.take( run[0], run[1] );
+    }
+    return usable;
+  }
+  // whether any of [location, location+size) is pinned, or will be
+  // once nextGeneration() pins what this commit released.
+  private boolean isPinned( long location, long size ){
+    if( overlaps( pinned, location, size ) )
+      return true;
+    return (! snapshots.isEmpty() || durableGeneration <= generation)
+      && overlaps( released, location, size );
+  }
+  private static boolean overlaps( ArrayList runs, long location, long size ){
+    int i;
+    long[] run;
+    for( i = 0; i < runs.size(); i++ ){
+      run = (long[])runs.get( i );
+      if( run[0] < location + size && location < run[0] + run[1] )
+        return true;
+    }
+    return false;
+  }
+  // whether usedRecord has anything in [location, location+size)
+  private boolean isUsed( long location, long size ){
+    long before = usedRecord.getFloorKey( location + size - 1 );
+    return before != Long.MAX_VALUE 
+      && before + usedRecord.get( before ) > location;
+  }
+  /** a read only view of the store as it was at the last commit, which
+   * store(), commit() and the rest don't change.  Records it can see
+   * aren't written over until it is closed, so close it when done.
+   * pack() won't run while any are open.
+   */
+  public Snapshot openSnapshot(){
+    lock.writeLock().lock();
+    try{
+      long n = snapshots.containsKey( generation ) 
+        ? snapshots.get( generation ) : 0;
+      snapshots.remove( generation );
+      snapshots.put( generation, n + 1 );
+      return new Snapshot( (IndexBlock)committedIndexBlock.clone(), 
+          generation );
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  private void closeSnapshot( long g ){
+    lock.writeLock().lock();
+    try{
+      long n = snapshots.get( g );
+      snapshots.remove( g );
+      if( n > 1 )
+        snapshots.put( g, n - 1 );
+      releasePins();
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  /** what openSnapshot() returns.  It can be shared between threads.
+   */
+  public final class Snapshot{
+    private final IndexBlock pinnedBlock;
+    private final long generation;
+    private volatile boolean closed;
+    private Snapshot( IndexBlock pinnedBlock, long generation ){
+      this.pinnedBlock = pinnedBlock;
+      this.generation = generation;
+    }
+    public void loadStorable( int index, Storable o ) throws IOException{
+      // close() waits for the write lock, so checking under the read
+      // lock means nothing can be written over while we read.
+      lock.readLock().lock();
+      try{
+        if( closed )
+          throw new IOException( "snapshot is closed" );
+        PersistentStore.this.loadStorable( pinnedBlock, index, o );
+      }finally{
+        lock.readLock().unlock();
+      }
+    }
+    public void retrieve( Storable o ) throws IOException{
+      loadStorable( o.getID(), o );
+    }
+    public int getMaxID(){
+      return PersistentStore.this.getMaxID( pinnedBlock );
+    }
+    public int[] getIDs(){
+      return PersistentStore.this.getIDs( pinnedBlock );
+    }
+    public int[] getIDs( int[] userIndexCodes ){
+      boolean[] b = new boolean[ userIndexCodes.length ];
+      java.util.Arrays.fill( b, true );
+      return getIDs( userIndexCodes, b );
+    }
+    public int[] getIDs( int[] userIndexCodes, boolean[] useThisCode ){
+      return getIDs( userIndexCodes, useThisCode, 
+          new byte[ keyIndexes.length ][] );
+    }
+    public int[] getIDs( int[] userIndexCodes, boolean[] useThisCode,
+        byte[][] keys ){
+      return PersistentStore.this.getIDs( 
+          pinnedBlock, userIndexCodes, useThisCode, keys );
+    }
+    public int[] getIDsInRange( int keyIndex, byte[] from, byte[] to ){
+      return PersistentStore.this.getIDsInRange( 
+          pinnedBlock, keyIndex, from, to );
+    }
+    public int[] getIDsWithPrefix( int keyIndex, byte[] prefix ){
+      return getIDsInRange( keyIndex, prefix, prefixEnd( prefix ) );
+    }
+    public int[] getIDsBetween( int from, int to ){
+      return PersistentStore.this.getIDsBetween( pinnedBlock, from, to );
+    }
+    /** lets the records only this can see be written over.  Calling
+     * it again does nothing.
+     */
+    public void close(){
+      synchronized( this ){
+        if( closed )
+          return;
+        closed = true;
+      }
+      closeSnapshot( generation );
+    }
+  }
+  private void extendTail( FreeSpace fs ) throws IOException{
+    long length = myRAF.length();
+    if( length > committedLength )
+      fs.free( committedLength, length - committedLength );
+  }
+  // commits only append what changed in the index to the journal.
+  // Once the journal outgrows the index block, we write out a whole
+  // new index block instead, and start a new journal.
+  // The batch goes to disk after the lock is let go, by syncTo(), so
+  // other threads can store and commit while it is forced, and commits
+  // that queue up meanwhile go to disk together in the next force.
+  // What those commits free stays pinned until they are on disk.
   public void commit() throws IOException{
-    if( ! changedFromStore )
-      return;
-    myRAF.seek( 0 );
-    int oldIndexBlockLocation = myRAF.readInt();
-    int oldIndexBlockSpace = myRAF.readInt();
+    long start = System.nanoTime();
+    stats.record( PersistentStoreStats.COMMIT, start, commitDelta() );
+  }
+  // commit(), returning how many bytes of index changes it committed.
+  private long commitDelta() throws IOException{
+    long g;
+    boolean sync;
+    byte[] delta;
+    lock.writeLock().lock();
+    try{
+      if( ! changedFromStore )
+        return 0;
+      delta = indexBlock.getDelta();
+      if( journal.length() + unsyncedLength() + delta.length 
+          > journalLimit() ){
+        writeIndexBlock();
+        return delta.length;
+      }
+      indexBlock.clearDelta();
+      committedIndexBlock = (IndexBlock)indexBlock.clone();
+      committedUsedRecord = (SnapshotLongLongMap)usedRecord.clone();
+      committedFreeSpace = (FreeSpace)freeSpace.clone();
+      nextGeneration();
+      committedLength = myRAF.length();
+      changedFromStore = false;
+      g = generation;
+      synchronized( syncLock ){
+        unsynced.add( delta );
+        unsyncedLength += 12 + delta.length;
+        unsyncedGeneration = g;
+        commitsSinceSync++;
+        sync = durability != SYNC_PERIODIC 
+          || syncCommits > 0 && commitsSinceSync >= syncCommits;
+      }
+    }finally{
+      lock.writeLock().unlock();
+    }
+    if( sync )
+      sync( g, durability != SYNC_NEVER );
+    return delta.length;
+  }
+  private long unsyncedLength(){
+    synchronized( syncLock ){
+      return unsyncedLength;
+    }
+  }
+  // syncTo(), then frees what the commits it made durable had pinned.
+  private void sync( long g, boolean force ) throws IOException{
+    syncTo( g, force );
+    lock.writeLock().lock();
+    try{
+      if( ! pinned.isEmpty() )
+        releasePins();
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  // makes every commit up to generation g durable, or with force off,
+  // just gets it into the journal.  One thread at a time does the work,
+  // for every commit queued by then, while the others wait for it, so
+  // commits that come in together share one force.  It doesn't need
+  // the lock, so it can be called with or without it.
+  private void syncTo( long g, boolean force ) throws IOException{
+    ArrayList batches;
+    long upTo, epoch;
+    synchronized( syncLock ){
+      while( durableGeneration < g && syncing ){
+        try{
+          syncLock.wait();
+        }catch( InterruptedException e ){
+          throw new InterruptedIOException( "interrupted waiting for a sync" );
+        }
+      }
+      if( durableGeneration >= g )
+        return;
+      syncing = true;
+      batches = unsynced;
+      upTo = unsyncedGeneration;
+      epoch = journalEpoch;
+      unsynced = new ArrayList();
+      unsyncedLength = 0;
+      commitsSinceSync = 0;
+    }
+    boolean synced = false;
+    try{
+      // the records have to be on disk before the journal points at them
+      if( force )
+        force();
+      synchronized( journal ){
+        // if an index block has taken over, it has all of these
+        if( epoch == journalEpoch ){
+          long start = System.nanoTime();
+          journal.append( batches, force );
+          long bytes = 0;
+          for( int i = 0; i < batches.size(); i++ )
+            bytes += 12 + ((byte[])batches.get( i )).length;
+          stats.wrote( bytes );
+          if( force )
+            stats.record( PersistentStoreStats.SYNC, start, bytes );
+        }
+      }
+      synced = true;
+    }finally{
+      synchronized( syncLock ){
+        syncing = false;
+        if( synced ){
+          durableGeneration = Math.max( durableGeneration, upTo );
+        }else if( epoch == journalEpoch ){
+          // put them back for the next try
+          batches.addAll( unsynced );
+          unsynced = batches;
+          unsyncedLength = 0;
+          for( int i = 0; i < unsynced.size(); i++ )
+            unsyncedLength += 12 + ((byte[])unsynced.get( i )).length;
+        }
+        syncLock.notifyAll();
+      }
+    }
+  }
+  // waits for the sync under way, if there is one, to finish.  Holding
+  // the lock, no other can start with anything to append.
+  private void awaitSync() throws IOException{
+    synchronized( syncLock ){
+      while( syncing ){
+        try{
+          syncLock.wait();
+        }catch( InterruptedException e ){
+          throw new InterruptedIOException( "interrupted waiting for a sync" );
+        }
+      }
+    }
+  }
+  // every commit so far, durable now
+  private void syncAll( boolean force ) throws IOException{
+    long g;
+    synchronized( syncLock ){
+      g = unsyncedGeneration;
+    }
+    sync( g, force );
+  }
+  // what commit() would put in the journal, with the records it points
+  // at already forced to disk, or null if there is nothing to commit.
+  // A ShardedPersistentStore logs this for every shard before it
+  // commits any of them.
+  byte[] prepareCommit() throws IOException{
+    lock.writeLock().lock();
+    try{
+      if( ! changedFromStore )
+        return null;
+      force();
+      return indexBlock.getDelta();
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  // commits, and folds the journal into a freshly written index block.
+  // A sync that is under way has already taken its batches off
+  // unsynced, so we wait for it, and go by generations, not by what is
+  // queued.
+  public void checkpoint() throws IOException{
+    lock.writeLock().lock();
+    try{
+      awaitSync();
+      if( changedFromStore || durableGeneration < generation 
+          || journal.length() > 0 )
+        writeIndexBlock();
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  private int journalLimit(){
+    return Math.max( MIN_JOURNAL_LIMIT, indexBlock.getStreamedLength() );
+  }
+  // index blocks are never rewritten in place, so rounding them up to
+  // a power of two just wasted up to half of each one.  We round up to
+  // an eighth of that instead, so that the next block, which is usually
+  // about the same size, can still reuse the hole this one leaves.
+  private static long spaceFor( int indexBlockLength ){
+    long grain = Math.max( 64, Long.highestOneBit( indexBlockLength ) / 8 );
+    return (indexBlockLength / grain + 1) * grain;
+  }
+  private long readIndexBlockLocation() throws IOException{
+    seek( HEADER_POINTER );
+    return myRAF.readLong();
+  }
+  private void writeIndexBlock() throws IOException{
+    long oldIndexBlockLocation = readIndexBlockLocation();
     int indexBlockLength = indexBlock.getStreamedLength();
-    int indexBlockSpace = 1;
-    while( indexBlockSpace <= indexBlockLength )
-      indexBlockSpace <<= 1;
+    long indexBlockSpace = spaceFor( indexBlockLength );
     // store the new index
     ByteArrayOutputStream baos = new ByteArrayOutputStream( indexBlockLength );
     DataOutputStream os = new DataOutputStream( baos );
     indexBlock.getState( os );
     byte[] ibs = baos.toByteArray();
-    //int indexBlockLocation = (int)myRAF.length();
-    int indexBlockLocation = usableFreeSpace.get( indexBlockSpace );
-    int ceil = usedRecord.getCeilKey( indexBlockLocation );
-    ceil = ceil == Integer.MIN_VALUE? (int)myRAF.length() : ceil;
-    freeSpace.remove( ceil - indexBlockLocation, indexBlockLocation );
-    if( ceil - indexBlockLocation > indexBlockSpace )
-      freeSpace.add( 
-          (ceil - indexBlockLocation) - indexBlockSpace, 
-          indexBlockLocation + indexBlockSpace );
-    myRAF.seek( indexBlockLocation );
-    myRAF.write( ibs );
+    long indexBlockLocation = usableFreeSpace.get( indexBlockSpace );
+    freeSpace.take( indexBlockLocation, indexBlockSpace );
+    write( indexBlockLocation, ibs );
+    if( myRAF.length() < indexBlockLocation + indexBlockSpace )
+      myRAF.setLength( indexBlockLocation + indexBlockSpace );
     usedRecord.put( indexBlockLocation, indexBlockSpace );
+    force();
     // commit and usedRecord
     // at this point, only the non-usable and non-committed 
     // versions of freespace and usedRecord are valid.
@@ -303,192 +1426,804 @@ public class PersistentStore{
     // just gets rebuilt.)
     // switch the pointer to the new index
     // record index space
-    // These need to be done as attomically as possible, so we
-    // write them as a single byte array.
-    byte[] bs = new byte[ 8 ];
-    bs[0] = (byte)(0xFF & (indexBlockLocation >> 24));
-    bs[1] = (byte)(0xFF & (indexBlockLocation >> 16));
-    bs[2] = (byte)(0xFF & (indexBlockLocation >> 8));
-    bs[3] = (byte)(0xFF & indexBlockLocation);
-    bs[4] = (byte)(0xFF & (indexBlockSpace >> 24));
-    bs[5] = (byte)(0xFF & (indexBlockSpace >> 16));
-    bs[6] = (byte)(0xFF & (indexBlockSpace >> 8));
-    bs[7] = (byte)(0xFF & indexBlockSpace);
-    myRAF.seek( 0 );
-    myRAF.write( bs );
+    int checksum = checksum( ByteBuffer.wrap( ibs ) );
+    writeIndexPointer( indexBlockLocation, indexBlockSpace, checksum );
+    force();
+    // replaying the journal over the new index block would do no harm,
+    // so it doesn't matter if we die before this.  The block holds
+    // every commit that wasn't synced yet too, and all of them are on
+    // disk now, as is the one this makes.
+    synchronized( syncLock ){
+      unsynced.clear();
+      unsyncedLength = 0;
+      commitsSinceSync = 0;
+      journalEpoch++;
+      durableGeneration = generation + 1;
+      syncLock.notifyAll();
+    }
+    synchronized( journal ){
+      journal.clear();
+    }
+    indexBlock.clearDelta();
     committedIndexBlock = (IndexBlock)indexBlock.clone();
-    usedRecord.remove( oldIndexBlockLocation );
-    ceil = usedRecord.getCeilKey( oldIndexBlockLocation );
-    int floor = usedRecord.getFloorKey( oldIndexBlockLocation - 1 );
-    ceil = ceil == Integer.MIN_VALUE? (int)myRAF.length() : ceil;
-    floor = floor == Integer.MAX_VALUE? MOBILE_DATA_START 
-      : floor + usedRecord.get( floor );
-    if( ceil != oldIndexBlockLocation + oldIndexBlockSpace ){
-      freeSpace.remove( 
-          ceil - (oldIndexBlockLocation + oldIndexBlockSpace), 
-          (oldIndexBlockLocation + oldIndexBlockSpace) );
-    }
-    if( floor != oldIndexBlockLocation ){
-      freeSpace.remove( oldIndexBlockLocation - floor, floor );
-    }
-    freeSpace.add( ceil - floor, floor );
+    if( oldIndexBlockLocation != 0 
+        && usedRecord.containsKey( oldIndexBlockLocation ) )
+      release( oldIndexBlockLocation );
 
     // copy index to beginning if we have space
-
-    int startFreeSpace = usedRecord.getCeilKey( MOBILE_DATA_START ) 
+    // (the new block is committed now, so anything free in the working
+    // state is safe to write over.)
+    long startFreeSpace = usedRecord.getCeilKey( MOBILE_DATA_START ) 
       - MOBILE_DATA_START;
-    if( startFreeSpace >= indexBlockSpace ){
-      freeSpace.remove( startFreeSpace, MOBILE_DATA_START );
-      freeSpace.add( 
-          startFreeSpace - indexBlockSpace, 
-          MOBILE_DATA_START + indexBlockSpace );
+    if( startFreeSpace >= indexBlockSpace 
+        && ! isPinned( MOBILE_DATA_START, indexBlockSpace ) ){
+      freeSpace.take( MOBILE_DATA_START, indexBlockSpace );
       usedRecord.put( MOBILE_DATA_START, indexBlockSpace );
 
-      myRAF.seek( MOBILE_DATA_START );
-      myRAF.write( ibs );
+      write( MOBILE_DATA_START, ibs );
 
       // switch index pointer again
-      bs[0] = (byte)(0xFF & (MOBILE_DATA_START >> 24));
-      bs[1] = (byte)(0xFF & (MOBILE_DATA_START >> 16));
-      bs[2] = (byte)(0xFF & (MOBILE_DATA_START >> 8));
-      bs[3] = (byte)(0xFF & MOBILE_DATA_START);
-      myRAF.seek( 0 );
-      myRAF.write( bs );
-      usedRecord.remove( indexBlockLocation );
-
-      ceil = usedRecord.getCeilKey( indexBlockLocation );
-      floor = usedRecord.getFloorKey( indexBlockLocation - 1 );
-      ceil = ceil == Integer.MIN_VALUE? (int)myRAF.length() : ceil;
-      floor = floor == Integer.MAX_VALUE 
-          ? MOBILE_DATA_START : floor + usedRecord.get( floor );
-      if( ceil != indexBlockLocation + indexBlockSpace ){
-        freeSpace.remove( ceil - (indexBlockLocation + indexBlockSpace), 
-          (indexBlockLocation + indexBlockSpace) );
-      }
-      if( floor != indexBlockLocation ){
-        freeSpace.remove( indexBlockLocation - floor, floor );
-      }
-      freeSpace.add( ceil - floor, floor );
-
-      if( startFreeSpace > indexBlockSpace ){
-        int indexEnd = MOBILE_DATA_START + indexBlockSpace;
-        ceil = usedRecord.getCeilKey( indexEnd );
-        ceil = ceil == Integer.MIN_VALUE? (int)myRAF.length() : ceil;
-        freeSpace.add( ceil - indexEnd, indexEnd );
-      }
+      writeIndexPointer( MOBILE_DATA_START, indexBlockSpace, checksum );
+      release( indexBlockLocation );
     }
-    committedUsedRecord = (IntIntMap)usedRecord.clone();
-    usableUsedRecord = (IntIntMap)usedRecord.clone();
+    committedUsedRecord = (SnapshotLongLongMap)usedRecord.clone();
     committedFreeSpace = (FreeSpace)freeSpace.clone();
-    usableFreeSpace = (FreeSpace)freeSpace.clone();
+    nextGeneration();
+    committedLength = myRAF.length();
     changedFromStore = false;
   }
+  /** commits, and makes sure every commit so far is on disk, whatever
+   * the durability policy.
+   */
   public void flush() throws IOException{
-    commit();
-    myRAF.getChannel().force( false );
+    lock.writeLock().lock();
+    try{
+      commit();
+      if( durability == SYNC_NEVER ){
+        // commits went to the journal unforced, and count as synced
+        syncAll( false );
+        force();
+        long start = System.nanoTime();
+        journal.force();
+        stats.record( PersistentStoreStats.SYNC, start, 0 );
+      }else{
+        syncAll( true );
+      }
+    }finally{
+      lock.writeLock().unlock();
+    }
   }
   public void close() throws IOException{
-    myRAF.close();
+    // let what is already queued finish first; it needs the lock
+    stopIO();
+    stopFlusher();
+    lock.writeLock().lock();
+    try{
+      map = null;
+      try{
+        if( myRAF.getChannel().isOpen() ){
+          syncAll( durability != SYNC_NEVER );
+          writeSpaceMap();
+        }
+      }finally{
+        myRAF.close();
+        journal.close();
+      }
+    }finally{
+      lock.writeLock().unlock();
+    }
+    try{
+      stats.unregister();
+    }catch( JMException e ){
+      e.printStackTrace( System.err );
+    }
   }
   public void deleteStorable( int id ) throws IOException{
-    int location = indexBlock.getLocation( id );
-    if( location < MOBILE_DATA_START || location >= myRAF.length() )
-      return;
-    int size = usedRecord.get( location );
+    long start = System.nanoTime();
+    delete( id );
+    stats.record( PersistentStoreStats.DELETE, start, 0 );
+  }
+  private void delete( int id ) throws IOException{
+    lock.writeLock().lock();
+    try{
+      long location = indexBlock.getLocation( id );
+      if( location < MOBILE_DATA_START || location >= myRAF.length() )
+        return;
+      release( location );
+      cache.remove( location );
+      indexBlock.remove( id );
+      changedFromStore = true;
+    }finally{
+      lock.writeLock().unlock();
+    }
+  }
+  // gives the record at location back to the working free space,
+  // merging it with any free space on either side.
+  private void release( long location ) throws IOException{
+    long size = usedRecord.get( location );
     usedRecord.remove( location );
-    int ceil, floor;
-    ceil = usedRecord.getCeilKey( location+size );
-    ceil = ceil == Integer.MIN_VALUE? (int)myRAF.length() : ceil;
-    floor = usedRecord.getFloorKey( location-1 );
-    floor = floor == Integer.MAX_VALUE? MOBILE_DATA_START 
-      : floor + usedRecord.get( floor );
-    if( ceil != location + size )
-      freeSpace.remove( ceil - (location + size), (location+size) );
-    if( floor != location )
-      freeSpace.remove( location - floor, floor );
-    freeSpace.add( ceil - floor, floor );
-    indexBlock.remove( id );
-    changedFromStore = true;
+    freeSpace.free( location, size );
+    if( committedUsedRecord.containsKey( location ) )
+      released.add( new long[]{ location, size } );
+  }
+  public void store( Storable o ) throws IOException{
+    long start = System.nanoTime();
+    int id = o.getID();
+    // we serialize before taking the lock, so readers wait less
+    byte[] bs = serialize( o );
+    byte[] stored = encode( id, bs, compressAt );
+    int[] codes = getCodes( o );
+    byte[][] keys = getKeys( o );
+    int length = stored.length;
+    lock.writeLock().lock();
+    try{
+      if( indexBlock.containsId( id ) )
+        delete( id );
+      long location = allocate( length );
+      write( location, stored );
+      rawBytesStored += bs.length;
+      bytesStored += length;
+      cache.put( location, bs );
+      usedRecord.put( location, length );
+      indexBlock.put( id, location, codes, keys );
+      changedFromStore = true;
+    }finally{
+      lock.writeLock().unlock();
+    }
+    stats.record( PersistentStoreStats.STORE, start, length );
+  }
+  /** stores every Storable in storables, just as store() would, but
+   * serializes them on several threads at once, puts them all in one
+   * run of free space, and writes them with a single gathering write.
+   * If an id is in there more than once, the last one wins.
+   */
+  public void storeAll( Collection storables ) throws IOException{
+    long start = System.nanoTime();
+    Storable[] os = (Storable[])storables.toArray( 
+        new Storable[ storables.size() ] );
+    byte[][] records = new byte[ os.length ][];
+    byte[][] stored = new byte[ os.length ][];
+    int i;
+    int compressAt = this.compressAt;
+    if( os.length < PARALLEL_STORE_MIN ){
+      for( i = 0; i < os.length; i++ ){
+        records[i] = serialize( os[i] );
+        stored[i] = encode( os[i].getID(), records[i], compressAt );
+      }
+    }else{
+      serializeAll( os, records, stored, compressAt );
+    }
+    Prepared[] ps = new Prepared[ os.length ];
+    for( i = 0; i < os.length; i++ )
+      ps[i] = new Prepared( os[i].getID(), records[i], stored[i], 
+          getCodes( os[i] ), getKeys( os[i] ) );
+    writeAll( ps, start );
+  }
+  // writes ps, which have been serialized and encoded already, in one
+  // run of free space with one gathering write, as storeAll() says,
+  // and counts it as a store that started at start.
+  private void writeAll( Prepared[] ps, long start ) throws IOException{
+    int i, j;
+    // skip all but the last of any id that is in there twice
+    boolean[] skip = new boolean[ ps.length ];
+    IntSet seen = new IntSet();
+    long total = 0;
+    int count = 0;
+    for( i = ps.length - 1; i >= 0; i-- ){
+      if( seen.add( ps[i].id ) ){
+        total += ps[i].stored.length;
+        count++;
+      }else
+        skip[i] = true;
+    }
+    if( count == 0 ){
+      stats.record( PersistentStoreStats.STORE, start, 0 );
+      return;
+    }
+    ByteBuffer[] buffers = new ByteBuffer[ count ];
+    for( j = 0, i = 0; i < ps.length; i++ )
+      if( ! skip[i] )
+        buffers[ j++ ] = ByteBuffer.wrap( ps[i].stored );
+    lock.writeLock().lock();
+    try{
+      for( i = 0; i < ps.length; i++ )
+        if( ! skip[i] && indexBlock.containsId( ps[i].id ) )
+          delete( ps[i].id );
+      long location = allocate( total );
+      writeFully( buffers, location );
+      for( i = 0; i < ps.length; i++ ){
+        if( skip[i] )
+          continue;
+        cache.put( location, ps[i].record );
+        usedRecord.put( location, ps[i].stored.length );
+        indexBlock.put( ps[i].id, location, ps[i].codes, ps[i].keys );
+        location += ps[i].stored.length;
+        rawBytesStored += ps[i].record.length;
+        bytesStored += ps[i].stored.length;
+      }
+      changedFromStore = true;
+    }finally{
+      lock.writeLock().unlock();
+    }
+    stats.record( PersistentStoreStats.STORE, start, total );
+  }
+  // the user index codes for o.  The Index objects are handed the
+  // Storable itself, which saves reading back and deserializing what
+  // we just wrote to get them.
+  private int[] getCodes( Object o ){
+    int[] codes = new int[ hashers.length ];
+    int i;
+    for( i = 0; i < hashers.length; i++ )
+      codes[i] = hashers[i].getCode( o );
+    return codes;
+  }
+  // the same, for the KeyIndexes
+  private byte[][] getKeys( Object o ){
+    byte[][] keys = new byte[ keyIndexes.length ][];
+    int i;
+    for( i = 0; i < keyIndexes.length; i++ )
+      keys[i] = keyIndexes[i].getKey( o );
+    return keys;
+  }
+  static byte[] serialize( Storable o ) throws IOException{
+    int length = o.getStreamedLength();
+    byte[] bs;
+    int written;
+    if( o instanceof BufferStreamable ){
+      // straight into an array of the right size, with no stream to
+      // grow, and no copy at the end
+      ByteBuffer bb = ByteBuffer.allocate( length );
+      try{
+        ((BufferStreamable)o).getState( bb );
+        written = bb.position();
+      }catch( java.nio.BufferOverflowException e ){
+        written = -1;
+      }
+      bs = bb.array();
+    }else{
+      ByteArrayOutputStream baos = new ByteArrayOutputStream( length );
+      o.getState( new DataOutputStream( baos ) );
+      bs = baos.toByteArray();
+      written = bs.length;
+    }
+    if( written != length ){
+      String message = "Storable length missmatch. " + o.getClass().getName() 
+        + " with id of " + o.getID() + " returned " + length 
+        + " from getStreamedLength(), but wrote " 
+        + (written < 0 ? "more than that." : written + " bytes.");
+      throw new ArrayIndexOutOfBoundsException( message );
+    }
+    return bs;
+  }
+  // serializes os into records, and encodes those into stored,
+  // splitting the work across the common pool.  Different objects'
+  // getState() may run at the same time.
+  private static void serializeAll( final Storable[] os, 
+      final byte[][] records, final byte[][] stored, final int compressAt )
+    throws IOException{
+    int chunks = Math.min( os.length, 
+        Runtime.getRuntime().availableProcessors() );
+    List tasks = new ArrayList( chunks );
+    int c;
+    for( c = 0; c < chunks; c++ ){
+      final int from = (int)((long)os.length * c / chunks);
+      final int to = (int)((long)os.length * (c + 1) / chunks);
+      tasks.add( new Callable(){
+        public Object call() throws IOException{
+          int i;
+          for( i = from; i < to; i++ ){
+            records[i] = serialize( os[i] );
+            stored[i] = encode( os[i].getID(), records[i], compressAt );
+          }
+          return null;
+        } } );
+    }
+    try{
+      List futures = ForkJoinPool.commonPool().invokeAll( tasks );
+      for( c = 0; c < futures.size(); c++ )
+        ((Future)futures.get( c )).get();
+    }catch( InterruptedException e ){
+      throw new InterruptedIOException( "interrupted while serializing" );
+    }catch( ExecutionException e ){
+      Throwable t = e.getCause();
+      if( t instanceof IOException )
+        throw (IOException)t;
+      if( t instanceof RuntimeException )
+        throw (RuntimeException)t;
+      throw new IOException( t.toString() );
+    }
+  }
+  // the record as it should go on disk: deflated, with the COMPRESSED
+  // header, if it is at least compressAt long and that is smaller, and
+  // as it is otherwise, and framed with id and a checksum either way.
+  static byte[] encode( int id, byte[] record, int compressAt ){
+    byte[] body = compress( record, compressAt );
+    byte[] frame = new byte[ FRAME_HEADER + body.length ];
+    ByteBuffer bb = ByteBuffer.wrap( frame );
+    bb.putInt( frame.length | CHECKSUMMED );
+    bb.putInt( id );
+    System.arraycopy( body, 0, frame, FRAME_HEADER, body.length );
+    bb.putInt( 8, checksumFrame( ByteBuffer.wrap( frame ) ) );
+    return frame;
+  }
+  private static byte[] compress( byte[] record, int compressAt ){
+    if( compressAt <= 0 || record.length < compressAt )
+      return record;
+    Deflater deflater = new Deflater();
+    try{
+      deflater.setInput( record );
+      deflater.finish();
+      // no use keeping it unless it saves something
+      byte[] bs = new byte[ record.length ];
+      int n = 8;
+      while( ! deflater.finished() && n < bs.length )
+        n += deflater.deflate( bs, n, bs.length - n );
+      if( ! deflater.finished() )
+        return record;
+      ByteBuffer header = ByteBuffer.wrap( bs, 0, 8 );
+      header.putInt( n | COMPRESSED );
+      header.putInt( record.length );
+      byte[] r = new byte[ n ];
+      System.arraycopy( bs, 0, r, 0, n );
+      return r;
+    }finally{
+      deflater.end();
+    }
+  }
+  // the checksum of the index block at location in raf, for the
+  // migrator and loader, which write files without a PersistentStore.
+  static int blockChecksum( RandomAccessFile raf, long location ) 
+    throws IOException{
+    raf.seek( location );
+    byte[] bs = new byte[ raf.readInt() ];
+    raf.seek( location );
+    raf.readFully( bs );
+    return checksum( ByteBuffer.wrap( bs ) );
+  }
+  // the CRC32C of the bytes from bb's position to its limit
+  static int checksum( ByteBuffer bb ){
+    CRC32C crc = new CRC32C();
+    crc.update( bb.duplicate() );
+    return (int)crc.getValue();
+  }
+  // the CRC32C a frame, from frame's position to its limit, should
+  // have: of everything in it but the checksum itself.
+  static int checksumFrame( ByteBuffer frame ){
+    CRC32C crc = new CRC32C();
+    ByteBuffer bb = frame.duplicate();
+    int start = bb.position();
+    bb.limit( start + 8 );
+    crc.update( bb );
+    bb.limit( frame.limit() );
+    bb.position( start + FRAME_HEADER );
+    crc.update( bb );
+    return (int)crc.getValue();
+  }
+  // a frame that is whole but holds some other record means the
+  // pointer to it is bad, which is as wrong as a bad checksum.
+  private static void checkFrame( int id, long location, ByteBuffer frame ) 
+    throws IOException{
+    if( frame.remaining() < FRAME_HEADER 
+        || checksumFrame( frame ) != frame.getInt( frame.position() + 8 ) )
+      throw new IOException( "the record at " + location 
+          + " fails its checksum" );
+    int framed = frame.getInt( frame.position() + 4 );
+    if( framed != id )
+      throw new IOException( "the record at " + location 
+          + " is framed as id " + framed + ", not " + id );
+  }
+  // record id, length prefix and all, from what was on disk at
+  // location, checked, and inflated if it was compressed.
+  static byte[] decode( int id, long location, byte[] stored )
+    throws IOException{
+    if( stored.length >= 4 
+        && (ByteBuffer.wrap( stored ).getInt( 0 ) & CHECKSUMMED) != 0 ){
+      checkFrame( id, location, ByteBuffer.wrap( stored ) );
+      stored = java.util.Arrays.copyOfRange( 
+          stored, FRAME_HEADER, stored.length );
+    }
+    ByteBuffer bb = ByteBuffer.wrap( stored );
+    if( stored.length < 8 || (bb.getInt( 0 ) & COMPRESSED) == 0 )
+      return stored;
+    byte[] record = new byte[ bb.getInt( 4 ) ];
+    Inflater inflater = new Inflater();
+    try{
+      inflater.setInput( stored, 8, stored.length - 8 );
+      int n = 0, k;
+      while( n < record.length ){
+        k = inflater.inflate( record, n, record.length - n );
+        if( k == 0 && (inflater.finished() || inflater.needsInput()) )
+          break;
+        n += k;
+      }
+      if( n != record.length )
+        throw new IOException( "compressed record is short" );
+      return record;
+    }catch( DataFormatException e ){
+      throw new IOException( "compressed record is corrupt: " + e.getMessage() );
+    }finally{
+      inflater.end();
+    }
+  }
+  // finds length bytes of space that is free in both the working and
+  // committed state, and takes it out of both free space maps.
+  private long allocate( long length ) throws IOException{
+    //int location = freeSpace.getAndRemove( length );
+    //We only pull from the freeSpace that is committed.
+    return allocate( usableFreeSpace.get( length ), length );
+  }
+  // location must be in a run of usable free space that is at least
+  // length long from there, or the run at the end of the file, or the
+  // end of the file.
+  private long allocate( long location, long length ) throws IOException{
+    usableFreeSpace.take( location, length );
+    freeSpace.take( location, length );
+    return location;
+  }
+  private void writeFully( ByteBuffer[] buffers, long position ) 
+    throws IOException{
+    FileChannel fc = myRAF.getChannel();
+    fc.position( position );
+    stats.seek();
+    int first = 0;
+    while( first < buffers.length ){
+      stats.wrote( fc.write( buffers, first, buffers.length - first ) );
+      while( first < buffers.length && ! buffers[ first ].hasRemaining() )
+        first++;
+    }
+  }
+  public void loadStorable( int index, Storable o ) throws IOException{
+    loadStorable( null, index, o );
+  }
+  private void loadStorable( IndexBlock pinned, int index, Storable o ) 
+    throws IOException{
+    long start = System.nanoTime();
+    byte[] bs;
+    lock.readLock().lock();
+    try{
+      long location = 
+        (pinned == null ? indexBlock : pinned).getLocation( index );
+      if( location < MOBILE_DATA_START || location >= myRAF.length() ){
+        stats.record( PersistentStoreStats.LOAD, start, 0 );
+        return;
+      }
+      bs = cache.get( location );
+      if( bs == null ){
+        // with nothing to cache it in, a BufferStreamable can read
+        // itself straight out of the mapping, if we hold the lock.
+        if( o instanceof BufferStreamable && cache.getBudget() == 0 ){
+          ByteBuffer view = mappedRecord( index, location );
+          if( view != null ){
+            int length = view.remaining();
+            ((BufferStreamable)o).setState( view );
+            stats.record( PersistentStoreStats.LOAD, start, length );
+            return;
+          }
+        }
+        bs = readRecord( index, location );
+        cache.put( location, bs );
+      }
+    }finally{
+      lock.readLock().unlock();
+    }
+    setState( o, bs );
+    stats.record( PersistentStoreStats.LOAD, start, bs.length );
+  }
+  public void retrieve( Storable o ) throws IOException{
+    loadStorable( o.getID(), o );
+  }
+  /** loadStorable() on one of the store's I/O threads.  Loads run
+   * at the same time as each other, so independent ones overlap.  The
+   * future completes with o, loaded, on the I/O thread, so anything
+   * chained onto it runs there too; Swing code should hand the result
+   * back with SwingUtilities.invokeLater().
+   */
+  public CompletableFuture loadAsync( final int id, final Storable o ){
+    final CompletableFuture done = new CompletableFuture();
+    try{
+      ioExecutor().execute( new Runnable(){
+        public void run(){
+          try{
+            loadStorable( id, o );
+            done.complete( o );
+          }catch( Throwable t ){
+            done.completeExceptionally( t );
+          }
+        } } );
+    }catch( RejectedExecutionException e ){
+      done.completeExceptionally( new IOException( e.getMessage() ) );
+    }
+    return done;
+  }
+  /** store() and commit() on an I/O thread.  o is serialized before
+   * this returns, so it can be changed straight away.  Writes queued
+   * while one group is being committed are written together with one
+   * gathering write, as storeAll() does, and committed once, in the
+   * order they were queued.  The future completes once o is committed.
+   */
+  public CompletableFuture storeAsync( Storable o ){
+    CompletableFuture done = new CompletableFuture();
+    Prepared p;
+    try{
+      byte[] bs = serialize( o );
+      p = new Prepared( o.getID(), bs, encode( o.getID(), bs, compressAt ), 
+          getCodes( o ), getKeys( o ) );
+    }catch( Exception e ){
+      done.completeExceptionally( e );
+      return done;
+    }
+    queueWrite( new PendingWrite( p, done ) );
+    return done;
+  }
+  /** commit() on an I/O thread, with the next group of storeAsync()s.
+   * The future completes once everything stored before it is.
+   */
+  public CompletableFuture commitAsync(){
+    CompletableFuture done = new CompletableFuture();
+    queueWrite( new PendingWrite( null, done ) );
+    return done;
+  }
+  private void queueWrite( PendingWrite w ){
+    boolean start;
+    synchronized( pendingWrites ){
+      pendingWrites.add( w );
+      start = ! draining;
+      draining = true;
+    }
+    if( ! start )
+      return;
+    try{
+      ioExecutor().execute( new Runnable(){
+        public void run(){
+          drainWrites();
+        } } );
+    }catch( RejectedExecutionException e ){
+      ArrayList failed;
+      synchronized( pendingWrites ){
+        failed = pendingWrites;
+        pendingWrites = new ArrayList();
+        draining = false;
+      }
+      finish( failed, new IOException( e.getMessage() ) );
+    }
+  }
+  // one writer at a time, so groups are committed in order.  Whatever
+  // is queued while a group is being written goes in the next one.
+  private void drainWrites(){
+    ArrayList group;
+    int i, n;
+    while( true ){
+      synchronized( pendingWrites ){
+        if( pendingWrites.isEmpty() ){
+          draining = false;
+          return;
+        }
+        group = pendingWrites;
+        pendingWrites = new ArrayList();
+      }
+      for( n = 0, i = 0; i < group.size(); i++ )
+        if( ((PendingWrite)group.get( i )).record != null )
+          n++;
+      Prepared[] ps = new Prepared[ n ];
+      for( n = 0, i = 0; i < group.size(); i++ )
+        if( ((PendingWrite)group.get( i )).record != null )
+          ps[ n++ ] = ((PendingWrite)group.get( i )).record;
+      Throwable failure = null;
+      long start = System.nanoTime();
+      lock.writeLock().lock();
+      try{
+        writeAll( ps, start );
+        commit();
+      }catch( Throwable t ){
+        failure = t;
+      }finally{
+        lock.writeLock().unlock();
+      }
+      finish( group, failure );
+    }
+  }
+  private static void finish( ArrayList group, Throwable failure ){
+    int i;
+    for( i = 0; i < group.size(); i++ ){
+      CompletableFuture done = ((PendingWrite)group.get( i )).done;
+      if( failure == null )
+        done.complete( null );
+      else
+        done.completeExceptionally( failure );
+    }
+  }
+  private synchronized ThreadPoolExecutor ioExecutor(){
+    if( ioExecutor == null ){
+      // the reads are mostly waiting on the disk, so one thread per
+      // processor, but at least two, so a group commit can't hold up
+      // every load
+      int threads = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+      ioExecutor = new ThreadPoolExecutor( threads, threads, 
+          30, TimeUnit.SECONDS, new ArrayBlockingQueue( IO_QUEUE ),
+          new ThreadFactory(){
+            public Thread newThread( Runnable r ){
+              Thread t = new Thread( r, "PersistentStore I/O" );
+              t.setDaemon( true );
+              return t;
+            } },
+          new IOPolicy() );
+      ioExecutor.allowCoreThreadTimeOut( true );
+    }
+    return ioExecutor;
+  }
+  // waits for the queued async work, and takes no more.
+  private void stopIO() throws IOException{
+    ThreadPoolExecutor e = ioExecutor();
+    e.shutdown();
+    try{
+      e.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+    }catch( InterruptedException ie ){
+      throw new InterruptedIOException( "interrupted while closing" );
+    }
+  }
+  /** keeps up to bytes bytes of recently loaded and stored records in
+   * memory, so loading them again needn't touch the file.  0, the
+   * default, turns the cache off.
+   */
+  public void setCacheSize( long bytes ){
+    cache.setBudget( bytes );
+  }
+  /** stores records that are at least bytes long deflated, whenever
+   * that makes them smaller.  0, the default, turns it off.  It only
+   * affects what is stored from then on, and records are read the same
+   * either way, so it can be turned on and off at will.
+   */
+  public void setCompression( int bytes ){
+    compressAt = bytes;
+  }
+  /** how commit() gets commits to disk: SYNC_ON_COMMIT, the default,
+   * SYNC_PERIODIC, or SYNC_NEVER.  For SYNC_PERIODIC, commits are
+   * forced every millis milliseconds, and every commits commits, and
+   * either can be 0 for never.  flush() and close() force everything
+   * whatever the policy.  Each store has its own.
+   */
+  public void setDurability( int policy, long millis, int commits ) 
+    throws IOException{
+    if( policy < SYNC_ON_COMMIT || policy > SYNC_NEVER )
+      throw new IllegalArgumentException( "no such durability policy: " 
+          + policy );
+    synchronized( flusherLock ){
+      stopFlusher();
+      durability = policy;
+      synchronized( syncLock ){
+        syncCommits = commits;
+      }
+      if( policy == SYNC_PERIODIC && millis > 0 ){
+        flusher = new Flusher( millis );
+        flusher.start();
+      }
+    }
+    // what was left waiting for the old policy's thread
+    if( policy != SYNC_PERIODIC )
+      syncAll( policy != SYNC_NEVER );
+  }
+  /** setDurability( policy, 1000, 0 )
+   */
+  public void setDurability( int policy ) throws IOException{
+    setDurability( policy, 1000, 0 );
+  }
+  public int getDurability(){
+    return durability;
+  }
+  private void stopFlusher() throws IOException{
+    synchronized( flusherLock ){
+      if( flusher == null )
+        return;
+      flusher.shutdown();
+      try{
+        flusher.join();
+      }catch( InterruptedException e ){
+        throw new InterruptedIOException( "interrupted stopping the flusher" );
+      }
+      flusher = null;
+    }
+  }
+  /** the counters and latencies for this store, which can be
+   * registered as an MBean, and given a PersistentStoreListener.
+   */
+  public PersistentStoreStats getStats(){
+    return stats;
+  }
+  public File getFile(){
+    return filename;
+  }
+  // how long the index block would be if it were written now
+  long getIndexBlockSize(){
+    lock.readLock().lock();
+    try{
+      return indexBlock.getStreamedLength();
+    }finally{
+      lock.readLock().unlock();
+    }
   }
-  public void store( Storable o ) throws IOException{
-    int id = o.getID();
-    if( indexBlock.containsId( id ) )
-      deleteStorable( id );
-    int length = o.getStreamedLength();
-    ByteArrayOutputStream baos = new ByteArrayOutputStream( length );
-    o.getState( new DataOutputStream( baos ) );
-    byte[] bs = baos.toByteArray();
-    if( bs.length != length ){
-      String message = "Storable length missmatch. " + o.getClass().getName() 
-        + " with id of " + o.getID() + " returned " + length 
-        + " from getStreamedLength(), but wrote " + bs.length + " bytes.";
-      throw new ArrayIndexOutOfBoundsException( message );
+  long getFileLength(){
+    try{
+      return myRAF.length();
+    }catch( IOException e ){
+      return 0;
     }
-    //int location = freeSpace.getAndRemove( length );
-    //We only pull from the freeSpace that is committed.
-    int location = usableFreeSpace.get( length );
-    int usableCeil = usableUsedRecord.getCeilKey( location );
-    int ceil = usedRecord.getCeilKey( location );
-    ceil = ceil == Integer.MIN_VALUE ? 
-      (int)myRAF.length() 
-      : ceil;
-    usableCeil = usableCeil == Integer.MIN_VALUE ? 
-      (int)myRAF.length() 
-      : usableCeil;
-    int usableFreeLength = usableCeil - location;
-    int freeLength = ceil - location;
-    usableFreeSpace.remove( usableFreeLength, location );
-    usableFreeSpace.add( usableFreeLength - length, location + length );
-    freeSpace.remove( freeLength, location );
-    freeSpace.add( freeLength - length, location + length );
-    myRAF.seek( location );
-    myRAF.write( bs );
-    usableUsedRecord.put( location, length );
-    usedRecord.put( location, length );
-    indexBlock.put( id, location );
-    changedFromStore = true;
   }
-  public void loadStorable( int index, Storable o ) throws IOException{
-    int location = indexBlock.getLocation( index );
-    if( location < MOBILE_DATA_START || location >= myRAF.length() )
-      return;
-    myRAF.seek( location );
-    fillStreamable( o );
+  long getJournalLength(){
+    try{
+      return journal.length() + unsyncedLength();
+    }catch( IOException e ){
+      return 0;
+    }
   }
-  public void retrieve( Storable o ) throws IOException{
-    loadStorable( o.getID(), o );
+  public long getCacheHits(){
+    return cache.getHits();
+  }
+  public long getCacheMisses(){
+    return cache.getMisses();
   }
   public String getReport(){
-    StringBuffer sb = new StringBuffer("PersistentStoreReport\n");
-    sb.append("myRAF is " + myRAF + "\n" );
-    sb.append("indexBlock follows:\n");
-    sb.append( indexBlock.getReport() );
-    sb.append("committedIndexBlock follows:\n ");
-    sb.append( committedIndexBlock.getReport());
-    sb.append("usedRecord:\n");
-    int key, value;
-    IntIterator it = usedRecord.keyIterator();
-    while( it.hasNext() ){
-      key = it.next();
-      value = usedRecord.get( key );
-      sb.append( niceInt(key, 8) + "->" + niceInt( value, 8 )+ "\n" );
+    lock.readLock().lock();
+    try{
+      StringBuffer sb = new StringBuffer("PersistentStoreReport\n");
+      sb.append("myRAF is " + myRAF + "\n" );
+      if( (mode & MEMORY_MAPPED) != 0 )
+        sb.append("mapped " + (map == null ? 0 : map.capacity()) 
+            + " bytes from " + mapStart + "\n");
+      try{
+        sb.append("journal length is " + journal.length() + "\n" );
+        sb.append("free space is " + freeSpace.total + " of " 
+            + myRAF.length() + " bytes: " + freeSpace.getStats() );
+      }catch( IOException e ){
+        sb.append("journal length is unknown: " + e + "\n" );
+      }
+      if( rawBytesStored > 0 )
+        sb.append("stored " + rawBytesStored + " bytes of records as " 
+            + bytesStored + " bytes, a compression ratio of "
+            + Math.round( 100.0 * rawBytesStored / bytesStored ) / 100.0 
+            + "\n");
+      if( cache.getBudget() > 0 )
+        sb.append("cache holds " + cache.getUsed() + " of " 
+            + cache.getBudget() + " bytes, " + cache.getHits() + " hits, " 
+            + cache.getMisses() + " misses\n");
+      synchronized( syncLock ){
+        if( ! unsynced.isEmpty() )
+          sb.append( unsynced.size() + " commits, " + unsyncedLength 
+              + " bytes of journal, not synced yet\n" );
+      }
+      if( ! snapshots.isEmpty() || ! pinned.isEmpty() )
+        sb.append( snapshots.size() + " snapshot generations open, " 
+            + pinned.size() + " freed records pinned\n" );
+      sb.append("indexBlock follows:\n");
+      sb.append( indexBlock.getReport() );
+      sb.append("committedIndexBlock follows:\n ");
+      sb.append( committedIndexBlock.getReport());
+      sb.append("usedRecord:\n");
+      long key, value;
+      LongIterator it = usedRecord.keyIterator();
+      while( it.hasNext() ){
+        key = it.next();
+        value = usedRecord.get( key );
+        sb.append( niceInt(key, 8) + "->" + niceInt( value, 8 )+ "\n" );
+      }
+      sb.append("committedUsedRecord:\n");
+      it = committedUsedRecord.keyIterator();
+      while( it.hasNext() ){
+        key = it.next();
+        value = committedUsedRecord.get( key );
+        sb.append( niceInt(key, 8) + "->" + niceInt( value, 8 )+ "\n" );
+      }
+      sb.append("freeSpace:\n");
+      sb.append(freeSpace.getReport());
+      sb.append("usableFreeSpace:\n");
+      sb.append(usableFreeSpace.getReport());
+      sb.append("committedFreeSpace:\n");
+      sb.append(committedFreeSpace.getReport());
+      return sb.toString();
+    }finally{
+      lock.readLock().unlock();
     }
-    sb.append("committedUsedRecord:\n");
-    it = committedUsedRecord.keyIterator();
-    while( it.hasNext() ){
-      key = it.next();
-      value = committedUsedRecord.get( key );
-      sb.append( niceInt(key, 8) + "->" + niceInt( value, 8 )+ "\n" );
-    }
-    sb.append("freeSpace:\n");
-    sb.append(freeSpace.getReport());
-    sb.append("usableFreeSpace:\n");
-    sb.append(usableFreeSpace.getReport());
-    sb.append("committedFreeSpace:\n");
-    sb.append(committedFreeSpace.getReport());
-    return sb.toString();
-  }
-  private static String niceInt( int i, int width ){
+  }
+  private static String niceInt( long i, int width ){
     String nStr = "" + i;
     int len = nStr.length();
     if( len >= width )
@@ -497,128 +2232,287 @@ public class PersistentStore{
   }
 
 
+  // a Storable, serialized, encoded and indexed, ready to be written
+  private static final class Prepared{
+    final int id;
+    final byte[] record;
+    final byte[] stored;
+    final int[] codes;
+    final byte[][] keys;
+    Prepared( int id, byte[] record, byte[] stored, int[] codes, 
+        byte[][] keys ){
+      this.id = id;
+      this.record = record;
+      this.stored = stored;
+      this.codes = codes;
+      this.keys = keys;
+    }
+  }
+  // a storeAsync() or commitAsync() waiting for the next group commit.
+  // A commit has no record.
+  private static final class PendingWrite{
+    final Prepared record;
+    final CompletableFuture done;
+    PendingWrite( Prepared record, CompletableFuture done ){
+      this.record = record;
+      this.done = done;
+    }
+  }
+  // runs tasks on the I/O threads, or on the caller when their queue
+  // is full, which slows down whoever is flooding it.  Once the store
+  // is closed it takes no more.
+  private static final class IOPolicy implements RejectedExecutionHandler{
+    public void rejectedExecution( Runnable r, ThreadPoolExecutor e ){
+      if( e.isShutdown() )
+        throw new RejectedExecutionException( "store is closed" );
+      r.run();
+    }
+  }
+  // SYNC_PERIODIC's thread.  Like the compactor, it is stopped with a
+  // flag rather than interrupt(), which would close the channel if it
+  // came in the middle of a force.
+  private final class Flusher extends Thread{
+    private final long millis;
+    private boolean done;
+
+    Flusher( long millis ){
+      super( "PersistentStore flusher" );
+      this.millis = millis;
+      setDaemon( true );
+    }
+    synchronized void shutdown(){
+      done = true;
+      notifyAll();
+    }
+    public void run(){
+      while( true ){
+        synchronized( this ){
+          try{
+            if( ! done )
+              wait( millis );
+          }catch( InterruptedException e ){
+            return;
+          }
+          if( done )
+            return;
+        }
+        try{
+          syncAll( true );
+        }catch( IOException e ){
+          e.printStackTrace( System.err );
+        }
+      }
+    }
+  }
+
+  // the free runs in the file, as location -> length, and the same
+  // runs' locations in power of two size classes, for allocation.
+  // Freeing a run merges it with its neighbours, which are just its
+  // floor and ceiling in byLocation, so that is O(log n).
+  // the size class sets are shared with clones, so they are replaced
+  // rather than changed.
   private class FreeSpace implements Cloneable{
-    IntMap map;
-    public FreeSpace(int size){
-      map = new IntMap(size);
+    SnapshotLongLongMap byLocation;
+    // classes[i] holds the runs with lengths in [2^i, 2^(i+1))
+    SnapshotLongSet[] classes;
+    // the sum of all the lengths in here
+    long total;
+    public FreeSpace(){
+      byLocation = new SnapshotLongLongMap();
+      classes = new SnapshotLongSet[ 64 ];
+    }
+    // adds [location, location+size), merged with any free run that
+    // touches it.
+    public void free( long location, long size ){
+      if( size < 1 || location < MOBILE_DATA_START )
+        return;
+      long end = location + size;
+      long run = byLocation.getFloorKey( location - 1 );
+      if( run != Long.MAX_VALUE && run + byLocation.get( run ) >= location ){
+        end = Math.max( end, run + byLocation.get( run ) );
+        location = run;
+        removeRun( run );
+      }
+      run = byLocation.getCeilKey( location );
+      while( run != Long.MIN_VALUE && run <= end ){
+        end = Math.max( end, run + byLocation.get( run ) );
+        removeRun( run );
+        run = byLocation.getCeilKey( location );
+      }
+      addRun( location, end - location );
     }
-    public void add( int size, int location ) throws IOException{
-      if( size < 1 || location < MOBILE_DATA_START 
-          || location > myRAF.length() )
+    // takes [location, location+size) out of the free run it starts in,
+    // leaving what is left of the run on either side.  If it runs past
+    // the end of that run (as it does when we grow the run at the end of
+    // the file), it takes the whole rest of the run.
+    public void take( long location, long size ){
+      long run = byLocation.getFloorKey( location );
+      if( run == Long.MAX_VALUE )
+        return;
+      long end = run + byLocation.get( run );
+      if( end <= location )
         return;
-      IntSet set;
-      if( map.contains( size ) )
-        set = (IntSet)map.get( size );
-      else{
-        set = new IntSet( 1 );
-        map.put( size, set );
+      removeRun( run );
+      if( location > run )
+        addRun( run, location - run );
+      if( end > location + size )
+        addRun( location + size, end - (location + size) );
+    }
+    // returns where to put size bytes: the lowest run in the smallest
+    // size class sure to hold it, or, failing that, the run at the end
+    // of the file, which can grow, or else the end of the file.  Runs
+    // in size's own class may be too small, so we only try the first
+    // few of those.
+    public long get( long size ) throws IOException{
+      long location = getBelow( size, Long.MAX_VALUE );
+      if( location >= 0 )
+        return location;
+      long length = myRAF.length();
+      long run = byLocation.getFloorKey( length );
+      if( run != Long.MAX_VALUE && run + byLocation.get( run ) >= length )
+        return run;
+      return length;
+    }
+    // like get(), but only finds runs that start before limit, and
+    // won't grow the one at the end.  returns -1 if there isn't one.
+    public long getBelow( long size, long limit ){
+      int c = sizeClass( Math.max( size, 1 ) );
+      long location;
+      int tries = 0;
+      if( classes[c] != null ){
+        LongIterator it = classes[c].iterator();
+        while( it.hasNext() && tries++ < CLASS_TRIES ){
+          location = it.next();
+          if( location >= limit )
+            break;
+          if( byLocation.get( location ) >= size )
+            return location;
+        }
+      }
+      for( c++; c < classes.length; c++ ){
+        if( classes[c] != null ){
+          location = classes[c].getCeil( 0 );
+          if( location < limit )
+            return location;
+        }
       }
+      return -1;
+    }
+    private void addRun( long location, long size ){
+      int c = sizeClass( size );
+      SnapshotLongSet set = classes[c] == null 
+        ? new SnapshotLongSet() : (SnapshotLongSet)classes[c].clone();
       set.add( location );
+      classes[c] = set;
+      byLocation.put( location, size );
+      total += size;
     }
-    public void remove( int size, int location ){
-      if( map.contains( size ) ){
-        IntSet set = (IntSet)map.get( size );
-        set.remove( location );
-        if( set.size() == 0)
-          map.remove( size );
-      }
-    }
-    public boolean contains( int size, int location ){
-      return map.contains( size )
-        && ((IntSet)map.get( size )).contains( location );
-    }
-    // returns a location which is at least as large as size.
-    // if there are no internal locations, returns the eof location
-    public int get( int size ) throws IOException{
-      size = map.getCeilKey( size );
-      if( size == Integer.MIN_VALUE )
-        return (int) myRAF.length();
-      return ((IntSet)map.get( size )).getCeil( 0 );
-    }
-    public int getAndRemove( int size ) throws IOException{
-      size = map.getCeilKey( size );
-      if( size == Integer.MIN_VALUE )
-        return (int) myRAF.length();
-      int location = ((IntSet)map.get( size )).getCeil( 0 );
-      remove( size, location );
-      return location;
+    private void removeRun( long location ){
+      long size = byLocation.get( location );
+      int c = sizeClass( size );
+      SnapshotLongSet set = (SnapshotLongSet)classes[c].clone();
+      set.remove( location );
+      classes[c] = set.isEmpty() ? null : set;
+      byLocation.remove( location );
+      total -= size;
     }
     public Object clone(){
-      int i;
-      FreeSpace clone = new FreeSpace( map.size() );
-      int[] keys = map.keys();
-      for( i = 0; i < keys.length; i++ ){
-        clone.map.put( keys[i], ((IntSet)map.get( keys[i] )).clone() );
-      }
+      FreeSpace clone = new FreeSpace();
+      clone.byLocation = (SnapshotLongLongMap)byLocation.clone();
+      clone.classes = classes.clone();
+      clone.total = total;
       return clone;
     }
+    // counts, for getReport()
+    private String getStats(){
+      long runs = byLocation.size();
+      long largest = 0;
+      int c;
+      StringBuffer sb = new StringBuffer();
+      for( c = 0; c < classes.length; c++ ){
+        if( classes[c] == null )
+          continue;
+        LongIterator it = classes[c].iterator();
+        long bytes = 0, size;
+        while( it.hasNext() ){
+          size = byLocation.get( it.next() );
+          bytes += size;
+          largest = Math.max( largest, size );
+        }
+        sb.append( niceInt( 1L << c, 12 ) + "+: " + niceInt( classes[c].size(), 7 )
+            + " runs, " + niceInt( bytes, 10 ) + " bytes\n" );
+      }
+      // 0 if it is all one run, nearing 1 as it is cut into more pieces
+      double external = total == 0 ? 0 : 1 - (double)largest / total;
+      return runs + " runs, " + total + " bytes, largest " + largest 
+        + ", external fragmentation " 
+        + Math.round( external * 1000 ) / 10.0 + "%\n" + sb;
+    }
     private String getReport(){
       StringBuffer sb = new StringBuffer();
-      IntIterator it = map.keyIterator();
-      IntIterator jt;
+      LongIterator it = byLocation.keyIterator();
+      long location;
       while( it.hasNext() ){
-        int i;
-        i = it.next();
-        sb.append( niceInt( i, 7 ) + " -> ");
-        jt = (IntIterator)((IntSet)map.get(i)).iterator();
-        sb.append( jt.next() );
-        while(jt.hasNext())
-          sb.append( ", " + jt.next() );
-        sb.append("\n");
+        location = it.next();
+        sb.append( niceInt( location, 8 ) + "->" 
+            + niceInt( byLocation.get( location ), 8 ) + "\n" );
       }
       return sb.toString();
     }
   }
+  private static int sizeClass( long size ){
+    return 63 - Long.numberOfLeadingZeros( size );
+  }
+  // like FreeSpace, the sets are replaced rather than changed.
   private static class UserIndex implements Streamable, Cloneable {
     int stl;
-    IntMap map;
-    public UserIndex(int size){
-      map = new IntMap(size);
+    SnapshotIntMap map;
+    public UserIndex(){
+      map = new SnapshotIntMap();
       stl = 8;
     }
     public boolean add( int code, int id ) throws IOException{
-      IntSet set;
-      if( map.contains( code ) ){
-        set = (IntSet)map.get( code );
-      }else{
-        set = new IntSet( 1 );
-        map.put( code, set );
+      SnapshotIntSet set = (SnapshotIntSet)map.get( code );
+      if( set == null ){
+        set = new SnapshotIntSet();
         stl += 8;
+      }else if( set.contains( id ) ){
+        return false;
+      }else{
+        set = (SnapshotIntSet)set.clone();
       }
-      if( set.add( id ) ){
-        stl += 4;
-        return true;
-      }
-      return false;
+      set.add( id );
+      map.put( code, set );
+      stl += 4;
+      return true;
     }
     public boolean remove( int code, int id ){
-      IntSet set = (IntSet)map.get( code );
-      if( set != null && set.remove( id ) ){
-        stl -= 4;
-        if( set.size() == 0){
-          map.remove( code );
-          stl -= 8;
-        }
-        return true;
+      SnapshotIntSet set = (SnapshotIntSet)map.get( code );
+      if( set == null || ! set.contains( id ) )
+        return false;
+      stl -= 4;
+      if( set.size() == 1 ){
+        map.remove( code );
+        stl -= 8;
+      }else{
+        set = (SnapshotIntSet)set.clone();
+        set.remove( id );
+        map.put( code, set );
       }
-      return false;
+      return true;
     }
     public boolean contains( int code, int id ){
-      IntSet set = (IntSet)map.get( code );
+      SnapshotIntSet set = (SnapshotIntSet)map.get( code );
       return set != null && set.contains( id );
     }
-    public IntSet getIDs( int code ) {
-      IntSet inst = (IntSet)map.get( code );
-      return inst == null ? null : (IntSet)inst.clone();
-      //return (IntSet)((IntSet)map.get( code )).clone();
+    // the set itself, which no one may change
+    public SnapshotIntSet getIDs( int code ) {
+      return (SnapshotIntSet)map.get( code );
     }
     public Object clone(){
-      int i;
-      UserIndex clone = new UserIndex( map.size() );
-      int[] keys = map.keys();
-      for( i = 0; i < keys.length; i++ ){
-        clone.map.put( keys[i], ((IntSet)map.get( keys[i] )).clone() );
-      }
+      UserIndex clone = new UserIndex();
+      clone.stl = stl;
+      clone.map = (SnapshotIntMap)map.clone();
       return clone;
     }
     public int getStreamedLength(){
@@ -632,7 +2526,7 @@ public class PersistentStore{
       int[] vals;
       for( i = 0; i < keys.length; i++ ){
         os.writeInt( keys[i] );
-        vals = ((IntSet)map.get( keys[i] )).toArray();
+        vals = ((SnapshotIntSet)map.get( keys[i] )).toArray();
         os.writeInt( vals.length );
         for( j = 0; j < vals.length; j++ ){
           os.writeInt( vals[j] );
@@ -642,18 +2536,36 @@ public class PersistentStore{
     public void setState( DataInputStream is ) throws IOException{
       stl = is.readInt();
       int len = is.readInt();
-      map = new IntMap( len );
-      int key, i, j;
-      int setLen;
-      IntSet set;
+      int[] keys = new int[ len ];
+      Object[] sets = new Object[ len ];
+      int i, j;
+      int[] vals;
       for( i = 0; i < len; i++ ){
-        key = is.readInt();
-        setLen = is.readInt();
-        set = new IntSet( setLen );
-        for( j = 0; j < setLen; j++ ){
-          set.add( is.readInt() );
+        keys[i] = is.readInt();
+        vals = new int[ is.readInt() ];
+        for( j = 0; j < vals.length; j++ ){
+          vals[j] = is.readInt();
         }
-        map.put( key, set );
+        sets[i] = toSet( vals );
+      }
+      // we write them in order, so this is nearly always O(n)
+      try{
+        map = new SnapshotIntMap( keys, sets );
+      }catch( IllegalArgumentException e ){
+        map = new SnapshotIntMap();
+        for( i = 0; i < len; i++ )
+          map.put( keys[i], sets[i] );
+      }
+    }
+    private static SnapshotIntSet toSet( int[] vals ){
+      try{
+        return new SnapshotIntSet( vals );
+      }catch( IllegalArgumentException e ){
+        SnapshotIntSet set = new SnapshotIntSet();
+        int i;
+        for( i = 0; i < vals.length; i++ )
+          set.add( vals[i] );
+        return set;
       }
     }
     private String getReport(){
@@ -664,7 +2576,7 @@ public class PersistentStore{
         int i;
         i = it.next();
         sb.append( niceInt( i, 7 ) + " -> ");
-        jt = (IntIterator)((IntSet)map.get(i)).iterator();
+        jt = ((SnapshotIntSet)map.get(i)).iterator();
         sb.append( jt.next() );
         while(jt.hasNext())
           sb.append( ", " + jt.next() );
@@ -673,37 +2585,477 @@ public class PersistentStore{
       return sb.toString();
     }
   }
+  // like UserIndex, but keyed by the key itself.  How the keys are
+  // kept is up to the subclass; this does the bookkeeping and the
+  // streaming, which is the same for all of them:
+  // [int stl][int keys] and then, for each key,
+  // [int length][key][int ids][ids]
+  // As with the sets, entries are replaced rather than changed.
+  private static abstract class KeyedIndex implements Streamable, Cloneable {
+    int stl = 8;
+    // the entry for key, or null
+    abstract KeyEntry getEntry( byte[] key );
+    // adds e, or replaces the entry with the same key
+    abstract void setEntry( KeyEntry e );
+    abstract void removeEntry( byte[] key );
+    // every entry, in whatever order they are kept in
+    abstract KeyEntry[] entries();
+    abstract void clear();
+    public abstract Object clone();
+
+    // returns the copy of key that we keep, which may be an equal one
+    // added before, so callers can share it.
+    public byte[] add( byte[] key, int id ){
+      KeyEntry e = getEntry( key );
+      SnapshotIntSet set;
+      if( e == null ){
+        set = new SnapshotIntSet();
+        stl += 8 + key.length;
+      }else{
+        key = e.key;
+        if( e.ids.contains( id ) )
+          return key;
+        set = (SnapshotIntSet)e.ids.clone();
+      }
+      set.add( id );
+      setEntry( new KeyEntry( key, set ) );
+      stl += 4;
+      return key;
+    }
+    public boolean remove( byte[] key, int id ){
+      KeyEntry e = getEntry( key );
+      if( e == null || ! e.ids.contains( id ) )
+        return false;
+      stl -= 4;
+      if( e.ids.size() == 1 ){
+        removeEntry( e.key );
+        stl -= 8 + e.key.length;
+      }else{
+        SnapshotIntSet set = (SnapshotIntSet)e.ids.clone();
+        set.remove( id );
+        setEntry( new KeyEntry( e.key, set ) );
+      }
+      return true;
+    }
+    // the set itself, which no one may change
+    public SnapshotIntSet getIDs( byte[] key ){
+      KeyEntry e = getEntry( key );
+      return e == null ? null : e.ids;
+    }
+    // adds to es every entry whose key is from from, inclusive, to to,
+    // exclusive.  A null bound is no bound.  This looks at every key;
+    // KeyTree does better.
+    void range( byte[] from, byte[] to, List es ){
+      KeyEntry[] all = entries();
+      int i;
+      for( i = 0; i < all.length; i++ )
+        if( (from == null || compare( all[i].key, from ) >= 0)
+            && (to == null || compare( all[i].key, to ) < 0) )
+          es.add( all[i] );
+    }
+    public int getStreamedLength(){
+      return stl;
+    }
+    public void getState( DataOutputStream os ) throws IOException{
+      os.writeInt( stl );
+      KeyEntry[] es = entries();
+      os.writeInt( es.length );
+      int i, j;
+      int[] vals;
+      for( i = 0; i < es.length; i++ ){
+        os.writeInt( es[i].key.length );
+        os.write( es[i].key );
+        vals = es[i].ids.toArray();
+        os.writeInt( vals.length );
+        for( j = 0; j < vals.length; j++ )
+          os.writeInt( vals[j] );
+      }
+    }
+    public void setState( DataInputStream is ) throws IOException{
+      is.readInt();
+      int len = is.readInt();
+      clear();
+      stl = 8;
+      byte[] key;
+      int[] vals;
+      int i, j;
+      for( i = 0; i < len; i++ ){
+        key = new byte[ is.readInt() ];
+        is.readFully( key );
+        vals = new int[ is.readInt() ];
+        for( j = 0; j < vals.length; j++ )
+          vals[j] = is.readInt();
+        setEntry( new KeyEntry( key, UserIndex.toSet( vals ) ) );
+        stl += 8 + key.length + 4 * vals.length;
+      }
+    }
+    private String getReport(){
+      StringBuffer sb = new StringBuffer();
+      KeyEntry[] es = entries();
+      IntIterator jt;
+      int i;
+      for( i = 0; i < es.length; i++ ){
+        sb.append( niceInt( es[i].key.length, 7 ) + " bytes -> " );
+        jt = es[i].ids.iterator();
+        sb.append( jt.next() );
+        while( jt.hasNext() )
+          sb.append( ", " + jt.next() );
+        sb.append( "\n" );
+      }
+      return sb.toString();
+    }
+  }
+  private static class KeyEntry{
+    final byte[] key;
+    final SnapshotIntSet ids;
+    KeyEntry( byte[] key, SnapshotIntSet ids ){
+      this.key = key;
+      this.ids = ids;
+    }
+  }
+  // finds keys by their fingerprint.  Keys with the same fingerprint
+  // share a slot, an array of entries that is nearly always one long.
+  private static class HashedKeys extends KeyedIndex {
+    // long fingerprint -> KeyEntry[]
+    SnapshotLongMap map = new SnapshotLongMap();
+    KeyEntry getEntry( byte[] key ){
+      KeyEntry[] slot = (KeyEntry[])map.get( fingerprint( key ) );
+      int i = find( slot, key );
+      return i < 0 ? null : slot[i];
+    }
+    void setEntry( KeyEntry e ){
+      long fingerprint = fingerprint( e.key );
+      KeyEntry[] slot = (KeyEntry[])map.get( fingerprint );
+      int i = find( slot, e.key );
+      if( i < 0 ){
+        KeyEntry[] grown = new KeyEntry[ slot == null ? 1 : slot.length + 1 ];
+        if( slot != null )
+          System.arraycopy( slot, 0, grown, 0, slot.length );
+        grown[ grown.length - 1 ] = e;
+        slot = grown;
+      }else{
+        slot = slot.clone();
+        slot[i] = e;
+      }
+      map.put( fingerprint, slot );
+    }
+    void removeEntry( byte[] key ){
+      long fingerprint = fingerprint( key );
+      KeyEntry[] slot = (KeyEntry[])map.get( fingerprint );
+      int i = find( slot, key );
+      if( i < 0 )
+        return;
+      if( slot.length == 1 ){
+        map.remove( fingerprint );
+        return;
+      }
+      KeyEntry[] shrunk = new KeyEntry[ slot.length - 1 ];
+      System.arraycopy( slot, 0, shrunk, 0, i );
+      System.arraycopy( slot, i + 1, shrunk, i, shrunk.length - i );
+      map.put( fingerprint, shrunk );
+    }
+    KeyEntry[] entries(){
+      ArrayList es = new ArrayList( map.size() );
+      Iterator it = map.valueIterator();
+      KeyEntry[] slot;
+      int i;
+      while( it.hasNext() ){
+        slot = (KeyEntry[])it.next();
+        for( i = 0; i < slot.length; i++ )
+          es.add( slot[i] );
+      }
+      return (KeyEntry[])es.toArray( new KeyEntry[ es.size() ] );
+    }
+    void clear(){
+      map = new SnapshotLongMap();
+    }
+    public Object clone(){
+      HashedKeys clone = new HashedKeys();
+      clone.stl = stl;
+      clone.map = (SnapshotLongMap)map.clone();
+      return clone;
+    }
+    private static int find( KeyEntry[] slot, byte[] key ){
+      if( slot == null )
+        return -1;
+      int i;
+      for( i = 0; i < slot.length; i++ )
+        if( java.util.Arrays.equals( slot[i].key, key ) )
+          return i;
+      return -1;
+    }
+    // 64 bit FNV-1a
+    private static long fingerprint( byte[] key ){
+      long h = 0xcbf29ce484222325L;
+      int i;
+      for( i = 0; i < key.length; i++ ){
+        h ^= key[i] & 0xFF;
+        h *= 0x100000001b3L;
+      }
+      return h;
+    }
+  }
+  // keeps the keys of a RangeIndex in order, in a B+tree, so a range
+  // of them can be found without looking at the rest.  Like
+  // SnapshotNode, the nodes are never changed once made, and a change
+  // copies the nodes on its path, so clones share everything else.
+  // Nodes that a remove leaves underfull aren't merged, only dropped
+  // once they are empty; the tree is rebuilt whenever the index block
+  // is read, which evens it out again.
+  private static class KeyTree extends KeyedIndex {
+    KeyNode root;
+    KeyEntry getEntry( byte[] key ){
+      KeyNode n = root;
+      int i;
+      while( n != null ){
+        i = n.find( key );
+        if( n.leaf )
+          return i >= 0 ? (KeyEntry)n.kids[i] : null;
+        n = (KeyNode)n.kids[ n.child( key ) ];
+      }
+      return null;
+    }
+    void setEntry( KeyEntry e ){
+      if( root == null ){
+        root = new KeyNode( true, new byte[][]{ e.key }, new Object[]{ e } );
+        return;
+      }
+      KeyNode[] split = root.put( e );
+      if( split.length == 1 )
+        root = split[0];
+      else
+        root = new KeyNode( false, 
+            new byte[][]{ split[0].keys[0], split[1].keys[0] }, split );
+    }
+    void removeEntry( byte[] key ){
+      if( root == null )
+        return;
+      root = root.remove( key );
+      while( root != null && ! root.leaf && root.kids.length == 1 )
+        root = (KeyNode)root.kids[0];
+    }
+    KeyEntry[] entries(){
+      ArrayList es = new ArrayList();
+      collect( root, null, null, es );
+      return (KeyEntry[])es.toArray( new KeyEntry[ es.size() ] );
+    }
+    void range( byte[] from, byte[] to, List es ){
+      collect( root, from, to, es );
+    }
+    void clear(){
+      root = null;
+    }
+    public Object clone(){
+      KeyTree clone = new KeyTree();
+      clone.stl = stl;
+      clone.root = root;
+      return clone;
+    }
+    // adds to es every entry under n whose key is from from, inclusive,
+    // to to, exclusive.  A null bound is no bound.
+    static void collect( KeyNode n, byte[] from, byte[] to, List es ){
+      if( n == null )
+        return;
+      int i = from == null ? 0 : n.leaf ? n.ceil( from ) : n.child( from );
+      for( ; i < n.kids.length; i++ ){
+        if( to != null && compare( n.keys[i], to ) >= 0 )
+          return;
+        if( n.leaf )
+          es.add( n.kids[i] );
+        else
+          collect( (KeyNode)n.kids[i], from, to, es );
+      }
+    }
+  }
+  private static final class KeyNode{
+    // the most keys or children a node holds before it is split
+    static final int FANOUT = 32;
+    final boolean leaf;
+    // in a leaf, each entry's key; otherwise the lowest key under each
+    // child.  They are in order.
+    final byte[][] keys;
+    // KeyEntries in a leaf; KeyNodes otherwise.
+    final Object[] kids;
+    KeyNode( boolean leaf, byte[][] keys, Object[] kids ){
+      this.leaf = leaf;
+      this.keys = keys;
+      this.kids = kids;
+    }
+    // where key is, or -(where it would go) - 1
+    int find( byte[] key ){
+      int lo = 0, hi = keys.length - 1, mid, c;
+      while( lo <= hi ){
+        mid = (lo + hi) >>> 1;
+        c = compare( keys[mid], key );
+        if( c < 0 )
+          lo = mid + 1;
+        else if( c > 0 )
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -lo - 1;
+    }
+    // the first key >= key
+    int ceil( byte[] key ){
+      int i = find( key );
+      return i >= 0 ? i : -i - 1;
+    }
+    // the child key would be under
+    int child( byte[] key ){
+      int i = find( key );
+      return i >= 0 ? i : Math.max( 0, -i - 2 );
+    }
+    // this node with e put in it, as one node, or as two if it had to
+    // be split
+    KeyNode[] put( KeyEntry e ){
+      byte[][] ks;
+      Object[] os;
+      if( leaf ){
+        int i = find( e.key );
+        if( i >= 0 ){
+          os = kids.clone();
+          os[i] = e;
+          return new KeyNode[]{ new KeyNode( true, keys, os ) };
+        }
+        i = -i - 1;
+        ks = (byte[][])insert( keys, i, e.key );
+        os = insert( kids, i, e );
+      }else{
+        int i = child( e.key );
+        KeyNode[] split = ((KeyNode)kids[i]).put( e );
+        ks = keys.clone();
+        os = kids.clone();
+        ks[i] = split[0].keys[0];
+        os[i] = split[0];
+        if( split.length == 2 ){
+          ks = (byte[][])insert( ks, i + 1, split[1].keys[0] );
+          os = insert( os, i + 1, split[1] );
+        }
+      }
+      if( os.length <= FANOUT )
+        return new KeyNode[]{ new KeyNode( leaf, ks, os ) };
+      int half = os.length / 2;
+      return new KeyNode[]{ 
+        new KeyNode( leaf, (byte[][])slice( ks, 0, half ), slice( os, 0, half ) ),
+        new KeyNode( leaf, (byte[][])slice( ks, half, ks.length ), 
+            slice( os, half, os.length ) ) };
+    }
+    // this node without key, or null if that leaves it empty
+    KeyNode remove( byte[] key ){
+      int i;
+      if( leaf ){
+        i = find( key );
+        if( i < 0 )
+          return this;
+        if( kids.length == 1 )
+          return null;
+        return new KeyNode( true, (byte[][])delete( keys, i ), delete( kids, i ) );
+      }
+      i = child( key );
+      KeyNode old = (KeyNode)kids[i];
+      KeyNode n = old.remove( key );
+      if( n == old )
+        return this;
+      if( n == null ){
+        if( kids.length == 1 )
+          return null;
+        return new KeyNode( false, (byte[][])delete( keys, i ), delete( kids, i ) );
+      }
+      byte[][] ks = keys.clone();
+      Object[] os = kids.clone();
+      ks[i] = n.keys[0];
+      os[i] = n;
+      return new KeyNode( false, ks, os );
+    }
+    private static Object[] insert( Object[] a, int i, Object o ){
+      Object[] r = (Object[])java.lang.reflect.Array.newInstance( 
+          a.getClass().getComponentType(), a.length + 1 );
+      System.arraycopy( a, 0, r, 0, i );
+      r[i] = o;
+      System.arraycopy( a, i, r, i + 1, a.length - i );
+      return r;
+    }
+    private static Object[] delete( Object[] a, int i ){
+      Object[] r = (Object[])java.lang.reflect.Array.newInstance( 
+          a.getClass().getComponentType(), a.length - 1 );
+      System.arraycopy( a, 0, r, 0, i );
+      System.arraycopy( a, i + 1, r, i, r.length - i );
+      return r;
+    }
+    private static Object[] slice( Object[] a, int from, int to ){
+      return java.util.Arrays.copyOfRange( a, from, to );
+    }
+  }
+  // unsigned, byte by byte, and a key sorts before any longer key it
+  // is the start of.
+  static int compare( byte[] a, byte[] b ){
+    int i, n = Math.min( a.length, b.length ), c;
+    for( i = 0; i < n; i++ ){
+      c = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if( c != 0 )
+        return c;
+    }
+    return a.length - b.length;
+  }
   // we have this because we need to control how it is 
   // Stored, which would break encapsulation of IntIntMap >sigh<
+  // (SnapshotIntLongMap streams itself the same way, so now it just
+  // hands that off.)
   private class IdIndex implements Streamable, Cloneable {
-    private IntIntMap myMap;
+    private SnapshotIntLongMap myMap;
+    // location -> id.  Only compaction needs it, so it isn't built
+    // until then, and is kept up from then on.
+    private SnapshotLongLongMap byLocation;
     private IdIndex(){
-      myMap = new IntIntMap();
-    }
-    private IdIndex( int i ){
-      myMap = new IntIntMap( i );
+      myMap = new SnapshotIntLongMap();
     }
     private int getMax(){
       int i = myMap.getFloorKey( Integer.MAX_VALUE );
       return i == Integer.MAX_VALUE? -1 : i;
     }
-    private int get( int i ){
+    private long get( int i ){
       if( containsKey( i ) )
         return myMap.get( i );
       return -1;
     }
     private boolean remove( int i ){
+      if( byLocation != null && myMap.containsKey( i ) ){
+        long location = myMap.get( i );
+        if( byLocation.containsKey( location ) 
+            && byLocation.get( location ) == i )
+          byLocation.remove( location );
+      }
       return myMap.remove( i );
     }
     private int[] keys(){
       return myMap.keys();
     }
+    private int getCeil( int i ){
+      return myMap.getCeilKey( i );
+    }
     private boolean containsKey( int i ){
       return myMap.containsKey( i );
     }
-    private void put( int i, int j ){
+    private void put( int i, long j ){
+      if( byLocation != null && ! myMap.containsKey( i ) ){
+        byLocation.remove( j );
+        byLocation.put( j, i );
+      }
       myMap.put( i, j );
     }
+    private int getIdAt( long location ){
+      if( byLocation == null ){
+        byLocation = new SnapshotLongLongMap();
+        IntIterator it = myMap.keyIterator();
+        int i;
+        while( it.hasNext() ){
+          i = it.next();
+          byLocation.put( myMap.get( i ), i );
+        }
+      }
+      return (int)byLocation.get( location );
+    }
     private int size() {
       return myMap.size();
     }
@@ -711,35 +3063,20 @@ public class PersistentStore{
       return myMap.keyIterator();
     }
     public int getStreamedLength(){
-      return myMap.size()*8+4;
+      return myMap.getStreamedLength();
     }
     public void getState( DataOutputStream os ) throws IOException{
-      int[] keys = myMap.keys();
-      int i;
-      os.writeInt( getStreamedLength() );
-      for( i = 0; i < keys.length; i++ ){
-        os.writeInt( keys[i] );
-        os.writeInt( myMap.get( keys[i] ) );
-      }
+      myMap.getState( os );
     }
     public void setState( DataInputStream is ) throws IOException{
-      int key, val, len;
-      int i;
-      len = is.readInt();
-      len = (len-4)/8;
-
-      if( ! myMap.isEmpty() ){
-        myMap = new IntIntMap( len );
-      }
-      for( i = 0; i < len; i++ ){
-        key = is.readInt();
-        val = is.readInt();
-        myMap.put(key, val);
-      }
+      myMap.setState( is );
+      byLocation = null;
     }
     public Object clone(){
-      IdIndex clone = new IdIndex( size() );
-      clone.myMap = (IntIntMap)myMap.clone();
+      IdIndex clone = new IdIndex();
+      clone.myMap = (SnapshotIntLongMap)myMap.clone();
+      if( byLocation != null )
+        clone.byLocation = (SnapshotLongLongMap)byLocation.clone();
       return clone;
     }
   }
@@ -747,21 +3084,48 @@ public class PersistentStore{
     IdIndex idToLocation;
     UserIndex[] codesToIds;
     Index[] codeGetters;
+    KeyedIndex[] keysToIds;
+    KeyIndex[] keyGetters;
     Streamable myStreamable;
-    private IndexBlock( int i ){
+    // id -> int[] of its codes, one per hasher, so remove() needn't
+    // read the record to find them.  It isn't stored; it is built from
+    // codesToIds when first needed after a load, and kept up from then.
+    SnapshotIntMap idToCodes;
+    // the same for keys: id -> byte[][], one per KeyIndex, sharing the
+    // arrays kept in keysToIds.
+    SnapshotIntMap idToKeys;
+    // the changes since the last commit, as journal operations
+    ByteArrayOutputStream delta;
+    DataOutputStream deltaOS;
+    private IndexBlock( int i, int k ){
       codesToIds = new UserIndex[ i ];
       codeGetters = new Index[ i ];
+      keysToIds = new KeyedIndex[ k ];
+      keyGetters = new KeyIndex[ k ];
+      clearDelta();
     }
-    public IndexBlock( Index[] hashers, Streamable s ){
+    public IndexBlock( Index[] hashers, KeyIndex[] keyIndexes, Streamable s ){
+      clearDelta();
       codeGetters = hashers;
+      keyGetters = keyIndexes;
       myStreamable = s;
       idToLocation = new IdIndex();
       codesToIds = new UserIndex[ hashers.length ];
+      keysToIds = new KeyedIndex[ keyIndexes.length ];
       int i;
       for( i = 0; i < hashers.length; i++ ){
-        codesToIds[i] = new UserIndex( 1 );
+        codesToIds[i] = new UserIndex();
+      }
+      for( i = 0; i < keyIndexes.length; i++ ){
+        keysToIds[i] = newKeyedIndex( i );
       }
     }
+    // RangeIndexes keep their keys in order; the rest just find them
+    private KeyedIndex newKeyedIndex( int i ){
+      if( i < keyGetters.length && keyGetters[i] instanceof RangeIndex )
+        return new KeyTree();
+      return new HashedKeys();
+    }
 
     public int[] getIDs(){
       return idToLocation.keys();
@@ -769,39 +3133,223 @@ public class PersistentStore{
     public boolean remove( int id ) throws IOException{
       int i, code;
       try{
+        int[] codes = null;
         if( codeGetters.length > 0 ){
-          int location = getLocation( id );
-          myRAF.seek( location );
-          fillStreamable( myStreamable );
+          codes = (int[])getIdToCodes().get( id );
+          if( codes == null ){
+            // it has always had codes, so this shouldn't happen, but
+            // the record can tell us.
+            fillStreamable( id, getLocation( id ), myStreamable );
+            codes = getCodes( myStreamable );
+          }
         }
         for( i = 0; i < codeGetters.length; i++ ){
-          code = codeGetters[i].getCode( myStreamable );
+          code = codes[i];
           codesToIds[i].remove( code, id );
+          deltaOS.writeByte( J_REMOVE_CODE );
+          deltaOS.writeInt( i );
+          deltaOS.writeInt( code );
+          deltaOS.writeInt( id );
+        }
+        if( keyGetters.length > 0 ){
+          byte[][] keys = (byte[][])getIdToKeys().get( id );
+          if( keys == null ){
+            fillStreamable( id, getLocation( id ), myStreamable );
+            keys = getKeys( myStreamable );
+          }
+          for( i = 0; i < keyGetters.length; i++ ){
+            if( keys[i] == null )
+              continue;
+            keysToIds[i].remove( keys[i], id );
+            writeKeyOp( J_REMOVE_KEY, i, keys[i], id );
+          }
         }
+        deltaOS.writeByte( J_REMOVE );
+        deltaOS.writeInt( id );
       }catch(IOException e){
         e.printStackTrace( System.err );
       }
+      if( idToCodes != null )
+        idToCodes.remove( id );
+      if( idToKeys != null )
+        idToKeys.remove( id );
       return idToLocation.remove( id );
     }
-    public void put( int id, int location ){
+    public void put( int id, long location ){
+      put( id, location, null, null );
+    }
+    // codes and keys are the record's, from getCodes() and getKeys().
+    // If they're null, we read the record back to get them.
+    public void put( int id, long location, int[] codes, byte[][] keys ){
       try{
         if( idToLocation.containsKey( id ) ){
           remove( id );
         }
-        if( codeGetters.length > 0 ){
-          myRAF.seek( location );
-          fillStreamable( myStreamable );
+        if( codes == null || keys == null ){
+          if( codeGetters.length > 0 || keyGetters.length > 0 )
+            fillStreamable( id, location, myStreamable );
+          codes = getCodes( myStreamable );
+          keys = getKeys( myStreamable );
         }
         int i, code;
         for( i = 0; i < codeGetters.length; i++ ){
-          code = codeGetters[i].getCode( myStreamable );
+          code = codes[i];
           codesToIds[i].add( code, id );
+          deltaOS.writeByte( J_ADD_CODE );
+          deltaOS.writeInt( i );
+          deltaOS.writeInt( code );
+          deltaOS.writeInt( id );
+        }
+        if( keyGetters.length > 0 ){
+          // keep the index's copy of each key, not the caller's
+          keys = keys.clone();
+          for( i = 0; i < keyGetters.length; i++ ){
+            if( keys[i] == null )
+              continue;
+            keys[i] = keysToIds[i].add( keys[i], id );
+            writeKeyOp( J_ADD_KEY, i, keys[i], id );
+          }
+          if( idToKeys != null )
+            idToKeys.put( id, keys );
+        }
+        deltaOS.writeByte( J_PUT );
+        deltaOS.writeInt( id );
+        deltaOS.writeLong( location );
+        if( idToCodes != null )
+          idToCodes.put( id, codes );
+      }catch(IOException e){
+        e.printStackTrace( System.err );
+      }
+      idToLocation.put( id, location );
+    }
+    private SnapshotIntMap getIdToCodes(){
+      if( idToCodes != null )
+        return idToCodes;
+      idToCodes = new SnapshotIntMap();
+      int i, id, code;
+      int[] codes;
+      IntIterator it, jt;
+      for( i = 0; i < codesToIds.length && i < codeGetters.length; i++ ){
+        it = codesToIds[i].map.keyIterator();
+        while( it.hasNext() ){
+          code = it.next();
+          jt = ((SnapshotIntSet)codesToIds[i].map.get( code )).iterator();
+          while( jt.hasNext() ){
+            id = jt.next();
+            codes = (int[])idToCodes.get( id );
+            if( codes == null ){
+              codes = new int[ codeGetters.length ];
+              idToCodes.put( id, codes );
+            }
+            // nothing else has seen these arrays yet
+            codes[i] = code;
+          }
+        }
+      }
+      return idToCodes;
+    }
+    private SnapshotIntMap getIdToKeys(){
+      if( idToKeys != null )
+        return idToKeys;
+      idToKeys = new SnapshotIntMap();
+      int i, j, id;
+      byte[][] keys;
+      KeyEntry[] es;
+      IntIterator jt;
+      for( i = 0; i < keysToIds.length && i < keyGetters.length; i++ ){
+        es = keysToIds[i].entries();
+        for( j = 0; j < es.length; j++ ){
+          jt = es[j].ids.iterator();
+          while( jt.hasNext() ){
+            id = jt.next();
+            keys = (byte[][])idToKeys.get( id );
+            if( keys == null ){
+              keys = new byte[ keyGetters.length ][];
+              idToKeys.put( id, keys );
+            }
+            keys[i] = es[j].key;
+          }
         }
+      }
+      return idToKeys;
+    }
+    private void writeKeyOp( byte op, int keyIndex, byte[] key, int id )
+      throws IOException{
+      deltaOS.writeByte( op );
+      deltaOS.writeInt( keyIndex );
+      deltaOS.writeInt( id );
+      deltaOS.writeInt( key.length );
+      deltaOS.write( key );
+    }
+    // points id at a copy of its record.  The codes don't change, so
+    // only the location goes in the journal.
+    public void move( int id, long location ){
+      try{
+        deltaOS.writeByte( J_PUT );
+        deltaOS.writeInt( id );
+        deltaOS.writeLong( location );
       }catch(IOException e){
         e.printStackTrace( System.err );
       }
+      idToLocation.remove( id );
       idToLocation.put( id, location );
     }
+    public byte[] getDelta(){
+      return delta.toByteArray();
+    }
+    public void clearDelta(){
+      delta = new ByteArrayOutputStream();
+      deltaOS = new DataOutputStream( delta );
+    }
+    // applies one batch from the journal.  The codes are in the
+    // batch, so unlike put() and remove() this never reads a record.
+    public void replay( DataInputStream is ) throws IOException{
+      int op, id, hasher, code;
+      byte[] key;
+      idToCodes = null;
+      idToKeys = null;
+      while( (op = is.read()) != -1 ){
+        switch( op ){
+          case J_PUT:
+            id = is.readInt();
+            idToLocation.remove( id );
+            idToLocation.put( id, is.readLong() );
+            break;
+          case J_REMOVE:
+            idToLocation.remove( is.readInt() );
+            break;
+          case J_ADD_CODE:
+            hasher = is.readInt();
+            code = is.readInt();
+            id = is.readInt();
+            if( hasher < codesToIds.length )
+              codesToIds[hasher].add( code, id );
+            break;
+          case J_REMOVE_CODE:
+            hasher = is.readInt();
+            code = is.readInt();
+            id = is.readInt();
+            if( hasher < codesToIds.length )
+              codesToIds[hasher].remove( code, id );
+            break;
+          case J_ADD_KEY:
+          case J_REMOVE_KEY:
+            hasher = is.readInt();
+            id = is.readInt();
+            key = new byte[ is.readInt() ];
+            is.readFully( key );
+            if( hasher >= keysToIds.length )
+              break;
+            if( op == J_ADD_KEY )
+              keysToIds[hasher].add( key, id );
+            else
+              keysToIds[hasher].remove( key, id );
+            break;
+          default:
+            throw new IOException( "unknown journal operation " + op );
+        }
+      }
+    }
     public int idCount(){
       return idToLocation.size();
     }
@@ -814,32 +3362,51 @@ public class PersistentStore{
     public boolean containsId( int id ){
       return idToLocation.containsKey( id );
     }
-    public int getLocation( int id ){
+    public long getLocation( int id ){
       return idToLocation.get( id );
 
     }
-    public IntSet getIDs( int code, int hasherIndex ){
+    public int getIdAt( long location ){
+      return idToLocation.getIdAt( location );
+    }
+    // the lowest id >= id, or MIN_VALUE if there is none
+    public int getCeilID( int id ){
+      return idToLocation.getCeil( id );
+    }
+    public SnapshotIntSet getIDs( int code, int hasherIndex ){
       return codesToIds[hasherIndex].getIDs( code );
     }
+    public SnapshotIntSet getIDs( byte[] key, int keyIndex ){
+      return keysToIds[keyIndex].getIDs( key );
+    }
     public Object clone(){
-      IndexBlock clone = new IndexBlock( codeGetters.length );
+      IndexBlock clone = new IndexBlock( 
+          codesToIds.length, keysToIds.length );
       clone.myStreamable = myStreamable;
       clone.idToLocation = (IdIndex)idToLocation.clone();
+      if( idToCodes != null )
+        clone.idToCodes = (SnapshotIntMap)idToCodes.clone();
+      if( idToKeys != null )
+        clone.idToKeys = (SnapshotIntMap)idToKeys.clone();
+      // the getters aren't neccessarily clonable.
+      clone.codeGetters = codeGetters;
+      clone.keyGetters = keyGetters;
       int i;
-      for( i = 0; i < codeGetters.length; i++ ){
+      for( i = 0; i < codesToIds.length; i++ )
         clone.codesToIds[i] = (UserIndex)codesToIds[i].clone();
-        // these aren't neccessarily clonable.
-        clone.codeGetters[i] = codeGetters[i];
-      }
+      for( i = 0; i < keysToIds.length; i++ )
+        clone.keysToIds[i] = (KeyedIndex)keysToIds[i].clone();
       return clone;
     }
 
     public int getStreamedLength(){
-      int stl = 8;
+      int stl = 12;
       stl += idToLocation.getStreamedLength();
       int i;
       for( i = 0; i < codesToIds.length; i++ )
         stl += codesToIds[i].getStreamedLength();
+      for( i = 0; i < keysToIds.length; i++ )
+        stl += keysToIds[i].getStreamedLength();
       return stl;
     }
     public void getState( DataOutputStream os ) throws IOException{
@@ -850,22 +3417,35 @@ public class PersistentStore{
       for( i = 0; i < codesToIds.length; i++ ){
         codesToIds[i].getState( os );
       }
+      os.writeInt( keysToIds.length );
+      for( i = 0; i < keysToIds.length; i++ ){
+        keysToIds[i].getState( os );
+      }
     }
     public void setState( DataInputStream is ) throws IOException{
       int stl = is.readInt();
+      idToCodes = null;
+      idToKeys = null;
       idToLocation.setState( is );
       int count = is.readInt();
       codesToIds = new UserIndex[ count ];
       int i;
       for( i = 0; i < count; i++ ){
-        codesToIds[i] = new UserIndex( idToLocation.size() );
+        codesToIds[i] = new UserIndex();
         codesToIds[i].setState( is );
       }
-
+      // blocks from before key indexes end here
+      count = is.available() >= 4 ? is.readInt() : 0;
+      keysToIds = new KeyedIndex[ count ];
+      for( i = 0; i < count; i++ ){
+        keysToIds[i] = newKeyedIndex( i );
+        keysToIds[i].setState( is );
+      }
     }
     private String getReport(){
       StringBuffer sb = new StringBuffer("id -> location:\n");
-      int key, value;
+      int key;
+      long value;
       IntIterator it = idToLocation.keyIterator();
       while( it.hasNext() ){
         key = it.next();
@@ -876,6 +3456,10 @@ public class PersistentStore{
         sb.append("codesToIds " + i + "\n");
         sb.append( codesToIds[i].getReport() );
       }
+      for( int i = 0; i < keysToIds.length; i++ ){
+        sb.append("keysToIds " + i + "\n");
+        sb.append( keysToIds[i].getReport() );
+      }
       return sb.toString();
     }
   }
@@ -883,6 +3467,7 @@ public class PersistentStore{
     if( myRAF != null )
       try{
         myRAF.close();
+        journal.close();
         super.finalize();
       }catch(Throwable e){
         e.printStackTrace( System.err );
@@ -0,0 +1,72 @@
+package tools.persistence;
+
+import java.io.*;
+
+/** compacts a PersistentStore in the background, a few records at a
+ * time, whenever its fragmentation is at or over a threshold.<br>
+ *
+ * Each step moves at most recordsPerStep records and commits them, and
+ * holds the store's lock only while it does, and the compactor sleeps
+ * pauseMillis between steps, so those two set how hard it works.  A
+ * step does nothing while the store has uncommitted changes, since it
+ * would commit them too.  Call shutdown() before closing the store.
+ */
+public class PersistentStoreCompactor extends Thread{
+  // how long to wait before looking again, when there was nothing to do
+  private static final long IDLE_MILLIS = 1000;
+
+  private PersistentStore ps;
+  private volatile double threshold;
+  private volatile int recordsPerStep;
+  private volatile long pauseMillis;
+  private volatile boolean done;
+
+  public PersistentStoreCompactor( PersistentStore ps, double threshold ){
+    this( ps, threshold, 16, 100 );
+  }
+  public PersistentStoreCompactor( PersistentStore ps, double threshold,
+      int recordsPerStep, long pauseMillis ){
+    super( "PersistentStoreCompactor" );
+    this.ps = ps;
+    this.threshold = threshold;
+    this.recordsPerStep = recordsPerStep;
+    this.pauseMillis = pauseMillis;
+    this.setDaemon( true );
+  }
+  public void setThreshold( double threshold ){
+    this.threshold = threshold;
+  }
+  public void setThrottle( int recordsPerStep, long pauseMillis ){
+    this.recordsPerStep = recordsPerStep;
+    this.pauseMillis = pauseMillis;
+  }
+  // we don't interrupt() to stop, because interrupting a thread in the
+  // middle of a FileChannel read or write closes the channel.
+  public synchronized void shutdown(){
+    done = true;
+    notifyAll();
+  }
+  public void run(){
+    while( ! done ){
+      try{
+        if( ps.getFragmentation() >= threshold
+            && ps.compactStep( recordsPerStep ) > 0 )
+          pause( pauseMillis );
+        else
+          pause( Math.max( pauseMillis, IDLE_MILLIS ) );
+      }catch( IOException e ){
+        e.printStackTrace( System.err );
+        break;
+      }
+    }
+  }
+  private synchronized void pause( long millis ){
+    if( done || millis <= 0 )
+      return;
+    try{
+      wait( millis );
+    }catch( InterruptedException e ){
+      done = true;
+    }
+  }
+}
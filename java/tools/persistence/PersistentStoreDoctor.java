@@ -1,18 +1,671 @@
 package tools.persistence;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import tools.*;
 
+/** checks a PersistentStore file, and can rebuild its index.  The
+ * store mustn't be open while it runs.<br>
+ * java tools.persistence.PersistentStoreDoctor [-scan] [-repair] &lt;file&gt;<br>
+ *
+ * It reads the index from the index block and journal, as opening the
+ * store would, but without changing either, and checks the block's
+ * checksum.  Then it reads every record the index points at, in
+ * location order, split into chunks that several threads read at once
+ * with positional reads.  A record has to lie inside the file, pass
+ * its checksum, be framed with the id it is indexed under, and inflate,
+ * if it is compressed.  No two records may overlap each other or the
+ * index block, and if close() left a space map, every run it has in
+ * use has to be a record or the index block; any other is orphaned.
+ * It ends with how big the records and the free runs are, in power of
+ * two classes, and how much of the file is free.<br>
+ *
+ * -scan also reads the whole file, in parallel chunks, for anything
+ * framed like a record that passes its checksum, and counts what the
+ * index doesn't point at: older copies of records, and records of ids
+ * the index doesn't have, which were deleted, or lost.<br>
+ *
+ * -repair, if anything was wrong, scans, and writes a new index block at
+ * the end of the file.  The ids whose records were fine keep them, and
+ * the others get the last copy the scan found, or are dropped.  If the
+ * old index couldn't be read at all, every id the scan found gets its
+ * last copy, which may bring back records that had been deleted, or
+ * older versions, and records from before version 5, which have no
+ * frame, can't be found.  The new block has no hashed or key indexes,
+ * so the next open that has some builds them again.  The journal and
+ * space map are deleted once the header points at the new block.
+ */
 public class PersistentStoreDoctor{
+  // how much of the file each reader reads at once
+  private static final int WINDOW = 1 << 20;
+
+  private File filename;
+  private PrintStream out;
+  private RandomAccessFile raf;
+  private FileChannel fc;
+  private long fileLength;
+  private long indexBlockLocation;
+  private long indexBlockSpace;
+  // how many problems we have found
+  private int problems;
+  // id -> location, from the index block and journal, or null if
+  // they can't be read
+  private SnapshotIntLongMap index;
+  // the indexed records, in location order, how big they are, and
+  // what is wrong with each, or null if nothing is
+  private int[] ids;
+  private long[] locations;
+  private int[] sizes;
+  private String[] faults;
+  // how many of them have frames
+  private int framed;
+
   public static void main( String[] args ){
+    boolean scan = false, repair = false;
+    int i;
+    for( i = 0; i < args.length - 1; i++ ){
+      if( args[i].equals( "-scan" ) )
+        scan = true;
+      else if( args[i].equals( "-repair" ) )
+        repair = true;
+      else
+        break;
+    }
+    if( i != args.length - 1 ){
+      System.out.println( "usage: java tools.persistence.PersistentStoreDoctor "
+          + "[-scan] [-repair] <file>" );
+      return;
+    }
     try{
-      if( args.length != 1 ) return;
-      File f = new File( args[0] );
-    
-      PersistentStore ps = new PersistentStore( f );
-      System.out.println( ps.getReport() );
+      check( new File( args[i] ), scan, repair, System.out );
     }catch( IOException e ){
       e.printStackTrace( System.out );
     }
   }
+  /** checks filename, and with scan, reads the whole file for records,
+   * and with repair, rebuilds the index if anything was wrong, telling
+   * out as it goes.  Returns true if it found nothing wrong, or
+   * repaired what it did.
+   */
+  public static boolean check( File filename, boolean scan,
+      boolean repair, PrintStream out ) throws IOException{
+    PersistentStoreDoctor doctor = new PersistentStoreDoctor( filename, out );
+    try{
+      return doctor.run( scan, repair );
+    }finally{
+      doctor.raf.close();
+    }
+  }
+  private PersistentStoreDoctor( File filename, PrintStream out )
+    throws IOException{
+    this.filename = filename;
+    this.out = out;
+    raf = new RandomAccessFile( filename, "r" );
+    fc = raf.getChannel();
+    fileLength = raf.length();
+  }
+  private boolean run( boolean scan, boolean repair ) throws IOException{
+    if( ! readHeader() )
+      return false;
+    readIndex();
+    if( index != null ){
+      checkRecords();
+      checkExtents();
+      checkSpaceMap();
+    }
+    long[][] frames = null;
+    if( scan || repair && problems > 0 )
+      frames = scan();
+    if( problems == 0 ){
+      out.println( "no problems found" );
+      return true;
+    }
+    out.println( problems + " problems found" );
+    if( ! repair )
+      return false;
+    rebuild( frames );
+    return true;
+  }
+  private void problem( String s ){
+    problems++;
+    out.println( "PROBLEM: " + s );
+  }
+  private boolean readHeader() throws IOException{
+    if( fileLength < PersistentStore.MOBILE_DATA_START ){
+      out.println( filename + " is too short to be a store" );
+      return false;
+    }
+    raf.seek( 0 );
+    if( raf.readInt() != PersistentStore.MAGIC ){
+      out.println( filename + " is not a store, or is version 1" );
+      return false;
+    }
+    int version = raf.readInt();
+    if( version != PersistentStore.VERSION ){
+      out.println( filename + " is version " + version + "; run "
+          + "PersistentStoreMigrator on it first" );
+      return false;
+    }
+    indexBlockLocation = raf.readLong();
+    indexBlockSpace = raf.readLong();
+    out.println( filename + ": " + fileLength + " bytes, index block of "
+        + indexBlockSpace + " bytes at " + indexBlockLocation );
+    return true;
+  }
+  // index is left null if the block or journal can't be read.
+  private void readIndex() throws IOException{
+    index = new SnapshotIntLongMap();
+    if( indexBlockLocation != 0 && ! readIndexBlock() ){
+      index = null;
+      return;
+    }
+    File journal = new File( filename.getPath()
+        + PersistentStore.JOURNAL_SUFFIX );
+    byte[][] batches = Journal.peekBatches( journal );
+    int i;
+    for( i = 0; i < batches.length; i++ ){
+      try{
+        replay( new DataInputStream(
+            new ByteArrayInputStream( batches[i] ) ) );
+      }catch( IOException e ){
+        problem( "journal batch " + i + " can't be read: " + e.getMessage() );
+        index = null;
+        return;
+      }
+    }
+    out.println( index.size() + " records indexed, with " + batches.length
+        + " journal batches since the index block" );
+  }
+  private boolean readIndexBlock() throws IOException{
+    if( indexBlockLocation < PersistentStore.MOBILE_DATA_START
+        || indexBlockLocation + 4 > fileLength ){
+      problem( "the index block is outside the file" );
+      return false;
+    }
+    raf.seek( indexBlockLocation );
+    int length = raf.readInt();
+    if( length < 16 || indexBlockLocation + length > fileLength ){
+      problem( "the index block runs out of the file" );
+      return false;
+    }
+    byte[] bs = new byte[ length ];
+    raf.seek( indexBlockLocation );
+    raf.readFully( bs );
+    raf.seek( PersistentStore.HEADER_CHECKSUM );
+    int checksum = raf.readInt();
+    ByteBuffer bb = ByteBuffer.wrap( bs );
+    if( checksum != 0 && PersistentStore.checksum( bb ) != checksum ){
+      problem( "the index block fails its checksum" );
+      return false;
+    }
+    // only the IdIndex at its start matters here
+    bb.getInt();
+    int n = (bb.getInt() - 4) / 12;
+    if( n < 0 || 8 + 12L * n > length ){
+      problem( "the index block's id index is the wrong length" );
+      return false;
+    }
+    int i;
+    for( i = 0; i < n; i++ )
+      index.put( bb.getInt(), bb.getLong() );
+    return true;
+  }
+  // applies a journal batch to index, as IndexBlock.replay() would.
+  private void replay( DataInputStream is ) throws IOException{
+    int op, id;
+    while( (op = is.read()) != -1 ){
+      switch( op ){
+        case PersistentStore.J_PUT:
+          id = is.readInt();
+          index.remove( id );
+          index.put( id, is.readLong() );
+          break;
+        case PersistentStore.J_REMOVE:
+          index.remove( is.readInt() );
+          break;
+        case PersistentStore.J_ADD_CODE:
+        case PersistentStore.J_REMOVE_CODE:
+          is.readFully( new byte[ 12 ] );
+          break;
+        case PersistentStore.J_ADD_KEY:
+        case PersistentStore.J_REMOVE_KEY:
+          is.readFully( new byte[ 8 ] );
+          is.readFully( new byte[ is.readInt() ] );
+          break;
+        default:
+          throw new IOException( "unknown journal operation " + op );
+      }
+    }
+  }
+
+  // reads every indexed record, on several threads.
+  private void checkRecords() throws IOException{
+    int n = index.size();
+    int[] byId = index.keys();
+    Integer[] order = new Integer[ n ];
+    int i;
+    for( i = 0; i < n; i++ )
+      order[i] = Integer.valueOf( i );
+    final long[] at = new long[ n ];
+    for( i = 0; i < n; i++ )
+      at[i] = index.get( byId[i] );
+    Arrays.sort( order, new Comparator(){
+      public int compare( Object a, Object b ){
+        long x = at[ ((Integer)a).intValue() ];
+        long y = at[ ((Integer)b).intValue() ];
+        return x < y ? -1 : x == y ? 0 : 1;
+      } } );
+    ids = new int[ n ];
+    locations = new long[ n ];
+    for( i = 0; i < n; i++ ){
+      ids[i] = byId[ order[i].intValue() ];
+      locations[i] = at[ order[i].intValue() ];
+    }
+    sizes = new int[ n ];
+    faults = new String[ n ];
+    int chunks = Math.max( 1, Math.min( n / 64,
+        4 * Runtime.getRuntime().availableProcessors() ) );
+    List tasks = new ArrayList( chunks );
+    int c;
+    for( c = 0; c < chunks; c++ ){
+      final int from = (int)((long)n * c / chunks);
+      final int to = (int)((long)n * (c + 1) / chunks);
+      tasks.add( new Callable(){
+        public Object call() throws IOException{
+          Window w = new Window();
+          int i;
+          for( i = from; i < to; i++ )
+            faults[i] = checkRecord( w, i );
+          return null;
+        } } );
+    }
+    runAll( tasks );
+    for( i = 0; i < n; i++ ){
+      if( faults[i] != null )
+        problem( "id " + ids[i] + "'s record at " + locations[i] + " "
+            + faults[i] );
+    }
+    out.println( framed + " records have checksums, " + (n - framed)
+        + " are from before version 5" );
+  }
+  // what is wrong with record i, or null
+  private String checkRecord( Window w, int i ) throws IOException{
+    long location = locations[i];
+    if( location < PersistentStore.MOBILE_DATA_START
+        || location + 4 > fileLength )
+      return "is outside the file";
+    int word = w.getInt( location );
+    int length = word & PersistentStore.LENGTH;
+    if( length < 4 || location + length > fileLength )
+      return "runs out of the file";
+    sizes[i] = length;
+    ByteBuffer record = w.get( location, length );
+    int start = record.position();
+    boolean compressed = (word & PersistentStore.COMPRESSED) != 0;
+    if( (word & PersistentStore.CHECKSUMMED) != 0 ){
+      synchronized( this ){
+        framed++;
+      }
+      if( length < PersistentStore.FRAME_HEADER
+          || PersistentStore.checksumFrame( record )
+            != record.getInt( start + 8 ) )
+        return "fails its checksum";
+      if( record.getInt( start + 4 ) != ids[i] )
+        return "is framed as id " + record.getInt( start + 4 );
+      compressed = length >= PersistentStore.FRAME_HEADER + 4
+        && (record.getInt( start + PersistentStore.FRAME_HEADER )
+            & PersistentStore.COMPRESSED) != 0;
+    }
+    if( compressed ){
+      byte[] bs = new byte[ length ];
+      record.get( bs );
+      try{
+        PersistentStore.decode( ids[i], location, bs );
+      }catch( IOException e ){
+        return "won't inflate: " + e.getMessage();
+      }
+    }
+    return null;
+  }
+  // looks for overlaps, and measures the records and the free runs
+  // between them.
+  private void checkExtents(){
+    long[] recordClasses = new long[ 64 ];
+    long[] recordBytes = new long[ 64 ];
+    long[] freeClasses = new long[ 64 ];
+    long[] freeBytes = new long[ 64 ];
+    long end = PersistentStore.MOBILE_DATA_START;
+    long free = 0, largest = 0, runs = 0, start;
+    int last = -1, i = 0;
+    boolean block = indexBlockLocation != 0;
+    while( i < ids.length || block ){
+      // the index block goes in location order with the records
+      boolean isBlock = block
+        && (i == ids.length || indexBlockLocation <= locations[i]);
+      if( ! isBlock && faults[i] != null && sizes[i] == 0 ){
+        i++;
+        continue;
+      }
+      start = isBlock ? indexBlockLocation : locations[i];
+      if( start < end ){
+        problem( (isBlock ? "the index block" : "id " + ids[i] + "'s record")
+            + " at " + start + " overlaps "
+            + (last == -1 ? "the index block" : "id " + ids[last] + "'s record") );
+        if( ! isBlock && faults[i] == null )
+          faults[i] = "overlaps another";
+      }else if( start > end ){
+        runs++;
+        free += start - end;
+        largest = Math.max( largest, start - end );
+        add( freeClasses, freeBytes, start - end );
+      }
+      if( isBlock ){
+        end = Math.max( end, indexBlockLocation + indexBlockSpace );
+        last = -1;
+        block = false;
+      }else{
+        add( recordClasses, recordBytes, sizes[i] );
+        if( locations[i] + sizes[i] > end ){
+          end = locations[i] + sizes[i];
+          last = i;
+        }
+        i++;
+      }
+    }
+    if( fileLength > end ){
+      runs++;
+      free += fileLength - end;
+      largest = Math.max( largest, fileLength - end );
+      add( freeClasses, freeBytes, fileLength - end );
+    }
+    out.println( "records by size:" );
+    print( recordClasses, recordBytes, "records" );
+    out.println( "free runs by size:" );
+    print( freeClasses, freeBytes, "runs" );
+    long length = fileLength - PersistentStore.MOBILE_DATA_START;
+    out.println( free + " bytes free in " + runs + " runs, the largest "
+        + largest + " bytes; "
+        + (length <= 0 ? 0 : Math.round( 1000.0 * free / length ) / 10.0)
+        + "% of the file is free" );
+  }
+  private static void add( long[] classes, long[] bytes, long size ){
+    int c = 63 - Long.numberOfLeadingZeros( size );
+    classes[c]++;
+    bytes[c] += size;
+  }
+  private void print( long[] classes, long[] bytes, String what ){
+    int c;
+    for( c = 0; c < classes.length; c++ )
+      if( classes[c] > 0 )
+        out.println( Utils.niceInt( 1L << c, 12 ) + "+: "
+            + Utils.niceInt( classes[c], 9 ) + " " + what + ", "
+            + Utils.niceInt( bytes[c], 12 ) + " bytes" );
+  }
+  // the runs in the space map close() left, if it is there and still
+  // goes with the file, that no record or index block is at.
+  private void checkSpaceMap() throws IOException{
+    File f = new File( filename.getPath() + PersistentStore.SPACE_MAP_SUFFIX );
+    if( ! f.exists() )
+      return;
+    byte[] bs = new byte[ (int)f.length() ];
+    DataInputStream is = new DataInputStream( new FileInputStream( f ) );
+    try{
+      is.readFully( bs );
+    }finally{
+      is.close();
+    }
+    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    ByteBuffer bb = ByteBuffer.wrap( bs );
+    File journal = new File( filename.getPath()
+        + PersistentStore.JOURNAL_SUFFIX );
+    if( bs.length >= 44 )
+      crc.update( bs, 0, bs.length - 8 );
+    if( bs.length < 44 || crc.getValue() != bb.getLong( bs.length - 8 )
+        || bb.getInt() != PersistentStore.MAGIC
+        || bb.getInt() != PersistentStore.VERSION
+        || bb.getLong() != indexBlockLocation
+        || bb.getLong() != journal.length()
+        || bb.getLong() != fileLength
+        || 44 + 16L * bb.getInt( 32 ) != bs.length ){
+      out.println( "the space map is stale, and the next open will ignore it" );
+      return;
+    }
+    int n = bb.getInt();
+    long[] sorted = locations.clone();
+    Arrays.sort( sorted );
+    int i, orphans = 0;
+    long location, size, lost = 0;
+    for( i = 0; i < n; i++ ){
+      location = bb.getLong();
+      size = bb.getLong();
+      if( location != indexBlockLocation
+          && Arrays.binarySearch( sorted, location ) < 0 ){
+        orphans++;
+        lost += size;
+      }
+    }
+    if( orphans > 0 )
+      problem( "the space map has " + orphans + " orphaned runs, " + lost
+          + " bytes, that nothing points at" );
+  }
+
+  // every frame in the file that passes its checksum, as
+  // {location, length, id}, in location order.
+  private long[][] scan() throws IOException{
+    int chunks = (int)Math.max( 1, Math.min( fileLength / WINDOW,
+        4 * Runtime.getRuntime().availableProcessors() ) );
+    List tasks = new ArrayList( chunks );
+    final ArrayList[] found = new ArrayList[ chunks ];
+    int c;
+    for( c = 0; c < chunks; c++ ){
+      final int chunk = c;
+      final long from = PersistentStore.MOBILE_DATA_START
+        + (fileLength - PersistentStore.MOBILE_DATA_START) * c / chunks;
+      final long to = PersistentStore.MOBILE_DATA_START
+        + (fileLength - PersistentStore.MOBILE_DATA_START) * (c + 1) / chunks;
+      tasks.add( new Callable(){
+        public Object call() throws IOException{
+          found[ chunk ] = scan( from, to );
+          return null;
+        } } );
+    }
+    runAll( tasks );
+    // a chunk can start inside a frame from the one before, so a frame
+    // that starts inside one we have already is dropped.
+    ArrayList frames = new ArrayList();
+    long end = 0;
+    long[] frame;
+    int i;
+    for( c = 0; c < chunks; c++ )
+      for( i = 0; i < found[c].size(); i++ ){
+        frame = (long[])found[c].get( i );
+        if( frame[0] >= end ){
+          frames.add( frame );
+          end = frame[0] + frame[1];
+        }
+      }
+    int live = 0, stale = 0, unknown = 0;
+    for( i = 0; i < frames.size(); i++ ){
+      frame = (long[])frames.get( i );
+      if( index == null || ! index.containsKey( (int)frame[2] ) )
+        unknown++;
+      else if( index.get( (int)frame[2] ) == frame[0] )
+        live++;
+      else
+        stale++;
+    }
+    out.println( "the scan found " + frames.size() + " records: " + live
+        + " indexed, " + stale + " older copies, and " + unknown
+        + " of ids the index doesn't have" );
+    return (long[][])frames.toArray( new long[ frames.size() ][] );
+  }
+  // the frames that start in [from, to).  Where none does, we move on a
+  // byte at a time.
+  private ArrayList scan( long from, long to ) throws IOException{
+    ArrayList found = new ArrayList();
+    Window w = new Window();
+    long p = from;
+    int word, length;
+    ByteBuffer frame;
+    while( p < to ){
+      if( index != null && p == indexBlockLocation ){
+        p += indexBlockSpace;
+        continue;
+      }
+      if( p + PersistentStore.FRAME_HEADER + 4 <= fileLength ){
+        word = w.getInt( p );
+        length = word & PersistentStore.LENGTH;
+        // the record inside says how long it is too, which rules out
+        // almost everything else before we bother with the checksum
+        if( (word & ~PersistentStore.LENGTH) == PersistentStore.CHECKSUMMED
+            && length >= PersistentStore.FRAME_HEADER + 4
+            && p + length <= fileLength
+            && (w.getInt( p + PersistentStore.FRAME_HEADER )
+              & PersistentStore.LENGTH)
+              == length - PersistentStore.FRAME_HEADER ){
+          frame = w.get( p, length );
+          if( PersistentStore.checksumFrame( frame )
+              == frame.getInt( frame.position() + 8 ) ){
+            found.add( new long[]{ p, length,
+                frame.getInt( frame.position() + 4 ) } );
+            p += length;
+            continue;
+          }
+        }
+      }
+      p++;
+    }
+    return found;
+  }
+
+  // writes a new index block after everything else, and points the
+  // header at it.
+  private void rebuild( long[][] frames ) throws IOException{
+    SnapshotIntLongMap fresh = new SnapshotIntLongMap();
+    // the last copy the scan found of each id
+    SnapshotIntLongMap lastCopy = new SnapshotIntLongMap();
+    int i, kept = 0, replaced = 0, dropped = 0;
+    for( i = 0; i < frames.length; i++ ){
+      lastCopy.remove( (int)frames[i][2] );
+      lastCopy.put( (int)frames[i][2], frames[i][0] );
+    }
+    if( index == null ){
+      fresh = lastCopy;
+      replaced = fresh.size();
+    }else{
+      for( i = 0; i < ids.length; i++ ){
+        if( faults[i] == null ){
+          fresh.put( ids[i], locations[i] );
+          kept++;
+        }else if( lastCopy.containsKey( ids[i] )
+            && lastCopy.get( ids[i] ) != locations[i] ){
+          fresh.put( ids[i], lastCopy.get( ids[i] ) );
+          replaced++;
+        }else{
+          dropped++;
+        }
+      }
+    }
+    int[] keys = fresh.keys();
+    int length = 16 + 12 * keys.length;
+    ByteBuffer bb = ByteBuffer.allocate( length );
+    // an IndexBlock with an IdIndex, and no hashed or key indexes
+    bb.putInt( length );
+    bb.putInt( 4 + 12 * keys.length );
+    for( i = 0; i < keys.length; i++ ){
+      bb.putInt( keys[i] );
+      bb.putLong( fresh.get( keys[i] ) );
+    }
+    bb.putInt( 0 );
+    bb.putInt( 0 );
+    bb.flip();
+    int checksum = PersistentStore.checksum( bb );
+    RandomAccessFile w = new RandomAccessFile( filename, "rw" );
+    try{
+      w.seek( fileLength );
+      w.write( bb.array() );
+      w.getFD().sync();
+      w.seek( 8 );
+      w.writeLong( fileLength );
+      w.writeLong( length );
+      w.writeInt( checksum );
+      w.getFD().sync();
+    }finally{
+      w.close();
+    }
+    new File( filename.getPath() + PersistentStore.JOURNAL_SUFFIX ).delete();
+    new File( filename.getPath() + PersistentStore.SPACE_MAP_SUFFIX ).delete();
+    out.println( "wrote a new index block of " + keys.length + " ids: "
+        + kept + " kept their records, " + replaced
+        + " have copies the scan found, and " + dropped + " were dropped" );
+  }
+
+  private static void runAll( List tasks ) throws IOException{
+    try{
+      List futures = ForkJoinPool.commonPool().invokeAll( tasks );
+      int i;
+      for( i = 0; i < futures.size(); i++ )
+        ((Future)futures.get( i )).get();
+    }catch( InterruptedException e ){
+      throw new InterruptedIOException( "interrupted" );
+    }catch( ExecutionException e ){
+      Throwable t = e.getCause();
+      if( t instanceof IOException )
+        throw (IOException)t;
+      if( t instanceof RuntimeException )
+        throw (RuntimeException)t;
+      throw new IOException( t.toString() );
+    }
+  }
+  // one reader's view of the file: what it last read, with positional
+  // reads, which don't share the file pointer with the others.
+  private final class Window{
+    private ByteBuffer bb = ByteBuffer.allocate( WINDOW );
+    private long start = -1;
+
+    int getInt( long location ) throws IOException{
+      ByteBuffer b = get( location, 4 );
+      return b.getInt( b.position() );
+    }
+    // [location, location + length) of the file, from the buffer's
+    // position to its limit.
+    ByteBuffer get( long location, int length ) throws IOException{
+      if( start == -1 || location < start
+          || location + length > start + bb.limit() ){
+        if( length > WINDOW ){
+          ByteBuffer big = ByteBuffer.allocate( length );
+          fill( big, location );
+          big.flip();
+          return big;
+        }
+        bb.clear();
+        bb.limit( (int)Math.min( WINDOW, fileLength - location ) );
+        fill( bb, location );
+        bb.flip();
+        start = location;
+      }
+      ByteBuffer view = bb.duplicate();
+      view.position( (int)(location - start) );
+      view.limit( view.position() + length );
+      return view;
+    }
+    private void fill( ByteBuffer b, long position ) throws IOException{
+      int n;
+      while( b.hasRemaining() ){
+        n = fc.read( b, position );
+        if( n < 0 )
+          throw new EOFException();
+        position += n;
+      }
+    }
+  }
 }
@@ -0,0 +1,14 @@
+package tools.persistence;
+
+/** told about every operation a PersistentStore finishes, for feeding
+ * a metrics library.  It is called on the thread that did the work,
+ * sometimes with the store's lock held, so it should only count, and
+ * not touch the store.
+ */
+public interface PersistentStoreListener{
+  /** operation is one of PersistentStoreStats' LOAD to SYNC, and took
+   * nanos nanoseconds, and read or wrote bytes bytes.
+   */
+  public void completed( PersistentStore ps, int operation, long nanos,
+      long bytes );
+}
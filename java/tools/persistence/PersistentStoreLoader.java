@@ -0,0 +1,264 @@
+package tools.persistence;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/** makes a new PersistentStore file from a lot of Storables at once,
+ * much faster than store() can, for imports.  Each add() just appends
+ * the record to the file, with nothing to allocate and no index to
+ * change, and finish() sorts what it kept of each one, builds every
+ * index from that in one go, writes one index block after the records,
+ * and moves the file into place.  Add them in id order, and that is
+ * the order they lie in on disk.<br>
+ *
+ * It only makes new stores, and until finish() is done the file is
+ * &lt;file&gt;.loading, so if we die part way through there is no
+ * store at all, and the next load just starts over.  If an id is
+ * added more than once, the last one wins, and the others are free
+ * space once the store is opened.<br>
+ *
+ * The hashers and KeyIndexes have to be the ones the store will be
+ * opened with, in the same order, or opening it will index it all
+ * again.
+ */
+public class PersistentStoreLoader{
+  static final String LOADING_SUFFIX = ".loading";
+
+  private File filename;
+  private File tmp;
+  private Index[] hashers;
+  private KeyIndex[] keyIndexes;
+  private DataOutputStream os;
+  private FileOutputStream fos;
+  private int compressAt;
+  // how far into tmp we have written
+  private long length;
+  // for the n records added so far: their ids, where they are, their
+  // codes for each hasher, and their keys for each KeyIndex
+  private int n;
+  private int[] ids = new int[ 1024 ];
+  private long[] locations = new long[ 1024 ];
+  private int[][] codes;
+  private byte[][][] keys;
+
+  public PersistentStoreLoader( File filename, Index[] hashers,
+      KeyIndex[] keyIndexes ) throws IOException{
+    if( filename.exists() )
+      throw new IOException( filename + " exists, and bulk loads only "
+          + "make new stores." );
+    this.filename = filename;
+    this.hashers = hashers;
+    this.keyIndexes = keyIndexes;
+    codes = new int[ hashers.length ][ ids.length ];
+    keys = new byte[ keyIndexes.length ][ ids.length ][];
+    tmp = new File( filename.getPath() + LOADING_SUFFIX );
+    fos = new FileOutputStream( tmp );
+    os = new DataOutputStream( new BufferedOutputStream( fos, 1 << 16 ) );
+    os.writeInt( PersistentStore.MAGIC );
+    os.writeInt( PersistentStore.VERSION );
+    // filled in by finish(), once we know where the index block is
+    os.writeLong( 0 );
+    os.writeLong( 0 );
+    os.writeLong( 0 ); // reserved
+    length = PersistentStore.MOBILE_DATA_START;
+  }
+  /** as PersistentStore.setCompression(), for the records added from
+   * then on.
+   */
+  public void setCompression( int bytes ){
+    compressAt = bytes;
+  }
+  public void add( Storable o ) throws IOException{
+    byte[] stored = PersistentStore.encode( o.getID(),
+        PersistentStore.serialize( o ), compressAt );
+    int i;
+    if( n == ids.length )
+      grow();
+    ids[n] = o.getID();
+    locations[n] = length;
+    for( i = 0; i < hashers.length; i++ )
+      codes[i][n] = hashers[i].getCode( o );
+    for( i = 0; i < keyIndexes.length; i++ )
+      keys[i][n] = keyIndexes[i].getKey( o );
+    n++;
+    os.write( stored );
+    length += stored.length;
+  }
+  public void addAll( Collection storables ) throws IOException{
+    Iterator it = storables.iterator();
+    while( it.hasNext() )
+      add( (Storable)it.next() );
+  }
+  private void grow(){
+    int size = ids.length * 2;
+    int i;
+    ids = java.util.Arrays.copyOf( ids, size );
+    locations = java.util.Arrays.copyOf( locations, size );
+    for( i = 0; i < codes.length; i++ )
+      codes[i] = java.util.Arrays.copyOf( codes[i], size );
+    for( i = 0; i < keys.length; i++ )
+      keys[i] = java.util.Arrays.copyOf( keys[i], size );
+  }
+  /** writes the index block, and makes the file the store.  The
+   * loader can't be used after this.
+   */
+  public void finish() throws IOException{
+    int[] live = liveInIdOrder();
+    long indexBlockLocation = length;
+    int stl = 12 + 4 + 12 * live.length;
+    int i;
+    long[][] byCode = new long[ hashers.length ][];
+    int[][] byKey = new int[ keyIndexes.length ][];
+    for( i = 0; i < hashers.length; i++ ){
+      byCode[i] = sortByCode( live, codes[i] );
+      stl += codeIndexLength( byCode[i] );
+    }
+    for( i = 0; i < keyIndexes.length; i++ ){
+      byKey[i] = sortByKey( live, keys[i] );
+      stl += keyIndexLength( byKey[i], keys[i] );
+    }
+    try{
+      // the IndexBlock, as PersistentStore streams it
+      os.writeInt( stl );
+      os.writeInt( 4 + 12 * live.length );
+      for( i = 0; i < live.length; i++ ){
+        os.writeInt( ids[ live[i] ] );
+        os.writeLong( locations[ live[i] ] );
+      }
+      os.writeInt( hashers.length );
+      for( i = 0; i < hashers.length; i++ )
+        writeCodeIndex( byCode[i] );
+      os.writeInt( keyIndexes.length );
+      for( i = 0; i < keyIndexes.length; i++ )
+        writeKeyIndex( byKey[i], keys[i] );
+      os.flush();
+      fos.getFD().sync();
+    }finally{
+      os.close();
+    }
+    // the header is the last thing to go in, so a file with it is whole
+    RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+    try{
+      int checksum = PersistentStore.blockChecksum( raf, indexBlockLocation );
+      raf.seek( 8 );
+      raf.writeLong( indexBlockLocation );
+      raf.writeLong( stl );
+      raf.writeInt( checksum );
+      raf.getFD().sync();
+    }finally{
+      raf.close();
+    }
+    Files.move( tmp.toPath(), filename.toPath(),
+        StandardCopyOption.ATOMIC_MOVE );
+  }
+  /** stops, and throws away what was loaded.
+   */
+  public void abort() throws IOException{
+    os.close();
+    tmp.delete();
+  }
+  // the index of the last record added with each id, in id order
+  private int[] liveInIdOrder(){
+    long[] order = new long[ n ];
+    int i, count = 0;
+    // ids sort as signed ints in the high half, and ties by when they
+    // were added
+    for( i = 0; i < n; i++ )
+      order[i] = ((long)ids[i] << 32) | i;
+    java.util.Arrays.sort( order );
+    int[] live = new int[ n ];
+    for( i = 0; i < n; i++ )
+      if( i == n - 1 || (int)(order[i] >> 32) != (int)(order[i+1] >> 32) )
+        live[ count++ ] = (int)order[i];
+    return java.util.Arrays.copyOf( live, count );
+  }
+  // (code, id) pairs in order, with the id's sign bit flipped so that
+  // the ids sort as signed ints too
+  private long[] sortByCode( int[] live, int[] code ){
+    long[] pairs = new long[ live.length ];
+    int i;
+    for( i = 0; i < live.length; i++ )
+      pairs[i] = ((long)code[ live[i] ] << 32)
+        | ((ids[ live[i] ] ^ 0x80000000) & 0xFFFFFFFFL);
+    java.util.Arrays.sort( pairs );
+    return pairs;
+  }
+  private static int codeIndexLength( long[] pairs ){
+    int i, stl = 8;
+    for( i = 0; i < pairs.length; i++ ){
+      if( i == 0 || (int)(pairs[i] >> 32) != (int)(pairs[i-1] >> 32) )
+        stl += 8;
+      stl += 4;
+    }
+    return stl;
+  }
+  // a UserIndex: [stl][codes]([code][ids]([id])*)*
+  private void writeCodeIndex( long[] pairs ) throws IOException{
+    int i, j, codeCount = 0;
+    for( i = 0; i < pairs.length; i++ )
+      if( i == 0 || (int)(pairs[i] >> 32) != (int)(pairs[i-1] >> 32) )
+        codeCount++;
+    os.writeInt( codeIndexLength( pairs ) );
+    os.writeInt( codeCount );
+    for( i = 0; i < pairs.length; i = j ){
+      for( j = i + 1; j < pairs.length
+          && (int)(pairs[j] >> 32) == (int)(pairs[i] >> 32); j++ );
+      os.writeInt( (int)(pairs[i] >> 32) );
+      os.writeInt( j - i );
+      for( ; i < j; i++ )
+        os.writeInt( (int)pairs[i] ^ 0x80000000 );
+    }
+  }
+  // the live records that have a key, by key, then by id
+  private int[] sortByKey( int[] live, final byte[][] key ){
+    int i, count = 0;
+    Integer[] order = new Integer[ live.length ];
+    for( i = 0; i < live.length; i++ )
+      if( key[ live[i] ] != null )
+        order[ count++ ] = Integer.valueOf( live[i] );
+    // live is in id order, and the sort is stable
+    java.util.Arrays.sort( order, 0, count, new Comparator(){
+      public int compare( Object a, Object b ){
+        return PersistentStore.compare( key[ ((Integer)a).intValue() ],
+            key[ ((Integer)b).intValue() ] );
+      } } );
+    int[] sorted = new int[ count ];
+    for( i = 0; i < count; i++ )
+      sorted[i] = order[i].intValue();
+    return sorted;
+  }
+  private static boolean sameKey( int[] sorted, byte[][] key, int i, int j ){
+    return java.util.Arrays.equals( key[ sorted[i] ], key[ sorted[j] ] );
+  }
+  private static int keyIndexLength( int[] sorted, byte[][] key ){
+    int i, stl = 8;
+    for( i = 0; i < sorted.length; i++ ){
+      if( i == 0 || ! sameKey( sorted, key, i, i - 1 ) )
+        stl += 8 + key[ sorted[i] ].length;
+      stl += 4;
+    }
+    return stl;
+  }
+  // a KeyedIndex: [stl][keys]([key length][key][ids]([id])*)*
+  private void writeKeyIndex( int[] sorted, byte[][] key )
+    throws IOException{
+    int i, j, keyCount = 0;
+    for( i = 0; i < sorted.length; i++ )
+      if( i == 0 || ! sameKey( sorted, key, i, i - 1 ) )
+        keyCount++;
+    os.writeInt( keyIndexLength( sorted, key ) );
+    os.writeInt( keyCount );
+    for( i = 0; i < sorted.length; i = j ){
+      for( j = i + 1; j < sorted.length && sameKey( sorted, key, i, j ); j++ );
+      os.writeInt( key[ sorted[i] ].length );
+      os.write( key[ sorted[i] ] );
+      os.writeInt( j - i );
+      for( ; i < j; i++ )
+        os.writeInt( ids[ sorted[i] ] );
+    }
+  }
+}
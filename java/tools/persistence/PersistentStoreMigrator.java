@@ -0,0 +1,345 @@
+package tools.persistence;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import tools.*;
+
+/** brings a PersistentStore file up to the current format.
+ * PersistentStore calls this every time it opens a file, so it is
+ * normally not needed on its own, but it can be run by hand:<br>
+ * java tools.persistence.PersistentStoreMigrator &lt;file&gt;<br>
+ *
+ * Version 1 files have no header beyond [int indexBlockLocation]
+ * [int indexBlockSpace], int locations, and their journal in
+ * &lt;file&gt;.journal.  The migrator replays that journal over the
+ * index, and copies the records, in file order, into a new file, which
+ * is packed, and has its index block right after the header.  The new
+ * file replaces the old one only once it is complete and on disk, so
+ * if we die part way through, the old file and journal are untouched,
+ * and the next open just starts over.<br>
+ *
+ * Version 2 files are laid out just as later ones are, but can't hold
+ * compressed records, version 3 index blocks have no key indexes,
+ * which the current one reads as none, and version 4 records have no
+ * checksums, which the current one reads as records that were never
+ * given one.  So for all three what changes is the version in the
+ * header, the name of the journal, which goes first, and the index
+ * block's checksum, which goes in the header before the version.
+ */
+public class PersistentStoreMigrator{
+  // version 1 journal operations.  the locations in them are ints.
+  private static final byte J_PUT = 1;
+  private static final byte J_REMOVE = 2;
+  private static final byte J_ADD_CODE = 3;
+  private static final byte J_REMOVE_CODE = 4;
+
+  public static void main( String[] args ){
+    try{
+      if( args.length != 1 ) return;
+      if( migrate( new File( args[0] ) ) )
+        System.out.println( "migrated " + args[0] );
+      else
+        System.out.println( args[0] + " is already current" );
+    }catch( IOException e ){
+      e.printStackTrace( System.out );
+    }
+  }
+  /** migrates filename to the current format, if it isn't already.
+   * Returns true if it had to.
+   */
+  public static boolean migrate( File filename ) throws IOException{
+    File tmp = new File( filename.getPath() + ".migrating" );
+    File oldJournal = new File( filename.getPath() + ".journal" );
+    // from a migration that died before the new file was in place
+    if( tmp.exists() )
+      tmp.delete();
+    if( ! filename.exists() )
+      return false;
+    int version = getVersion( filename );
+    if( version > PersistentStore.VERSION )
+      throw new IOException( filename + " is format version " + version
+          + ", which is newer than this code understands." );
+    if( version == PersistentStore.VERSION ){
+      // from a migration that died after the new file was in place
+      if( oldJournal.exists() )
+        oldJournal.delete();
+      return false;
+    }
+    if( version >= 2 ){
+      if( oldJournal.exists() )
+        oldJournal.delete();
+      migrateInPlace( filename, version );
+      return true;
+    }
+    migrateV1( filename, oldJournal, tmp );
+    Files.move( tmp.toPath(), filename.toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+    oldJournal.delete();
+    return true;
+  }
+  private static int getVersion( File filename ) throws IOException{
+    DataInputStream is = new DataInputStream(
+        new BufferedInputStream( new FileInputStream( filename ) ) );
+    try{
+      if( filename.length() >= 8 && is.readInt() == PersistentStore.MAGIC )
+        return is.readInt();
+      return 1;
+    }finally{
+      is.close();
+    }
+  }
+  // if we die between moving the journal and writing the version, the
+  // next open finds an old version file with no journal of its own,
+  // and just writes the version.
+  private static void migrateInPlace( File filename, int version )
+    throws IOException{
+    File oldJournal = new File( filename.getPath() + ".journal" + version );
+    File journal = new File( 
+        filename.getPath() + PersistentStore.JOURNAL_SUFFIX );
+    if( oldJournal.exists() )
+      Files.move( oldJournal.toPath(), journal.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, 
+          StandardCopyOption.REPLACE_EXISTING );
+    RandomAccessFile raf = new RandomAccessFile( filename, "rw" );
+    try{
+      writeBlockChecksum( raf );
+      raf.seek( 4 );
+      raf.writeInt( PersistentStore.VERSION );
+      raf.getFD().sync();
+    }finally{
+      raf.close();
+    }
+  }
+  // fills in the header's index block checksum, which was reserved,
+  // and 0, before version 5.
+  private static void writeBlockChecksum( RandomAccessFile raf )
+    throws IOException{
+    raf.seek( 8 );
+    long location = raf.readLong();
+    if( location == 0 )
+      return;
+    int checksum = PersistentStore.blockChecksum( raf, location );
+    raf.seek( PersistentStore.HEADER_CHECKSUM );
+    raf.writeInt( checksum );
+  }
+  private static void migrateV1( File filename, File journalFile, File tmp )
+    throws IOException{
+    RandomAccessFile in = new RandomAccessFile( filename, "r" );
+    try{
+      // id -> location, and for each user index, code -> set of ids
+      IntIntMap ids = new IntIntMap();
+      IntMap[] userIndexes = new IntMap[0];
+      int indexBlockLocation = in.readInt();
+      if( indexBlockLocation != 0 ){
+        in.seek( indexBlockLocation );
+        byte[] bs = new byte[ in.readInt() ];
+        in.seek( indexBlockLocation );
+        in.readFully( bs );
+        DataInputStream is = new DataInputStream(
+            new ByteArrayInputStream( bs ) );
+        is.readInt();
+        // a v1 IdIndex is streamed just like an IntIntMap
+        ids.setState( is );
+        userIndexes = new IntMap[ is.readInt() ];
+        int i, j, k, codes, setLen;
+        IntSet set;
+        for( i = 0; i < userIndexes.length; i++ ){
+          userIndexes[i] = new IntMap();
+          is.readInt();
+          codes = is.readInt();
+          for( j = 0; j < codes; j++ ){
+            set = new IntSet();
+            userIndexes[i].put( is.readInt(), set );
+            setLen = is.readInt();
+            for( k = 0; k < setLen; k++ )
+              set.add( is.readInt() );
+          }
+        }
+      }
+      boolean hasIndex = indexBlockLocation != 0;
+      if( journalFile.exists() ){
+        Journal journal = new Journal( journalFile );
+        try{
+          byte[][] batches = journal.readBatches();
+          int i;
+          for( i = 0; i < batches.length; i++ )
+            userIndexes = replayV1( new DataInputStream(
+                  new ByteArrayInputStream( batches[i] ) ),
+                ids, userIndexes );
+          hasIndex |= batches.length > 0;
+        }finally{
+          journal.close();
+        }
+      }
+      // a store that never committed anything has no index block, and
+      // so doesn't know how many user indexes it has.  Keep it that way.
+      if( hasIndex )
+        writeCurrent( in, ids, userIndexes, tmp );
+      else
+        writeEmpty( tmp );
+    }finally{
+      in.close();
+    }
+  }
+  // returns userIndexes, which may have grown, if there was no index
+  // block to say how many there were.
+  private static IntMap[] replayV1( DataInputStream is,
+      IntIntMap ids, IntMap[] userIndexes ) throws IOException{
+    int op, id, hasher, code;
+    IntSet set;
+    while( (op = is.read()) != -1 ){
+      switch( op ){
+        case J_PUT:
+          id = is.readInt();
+          ids.remove( id );
+          ids.put( id, is.readInt() );
+          break;
+        case J_REMOVE:
+          ids.remove( is.readInt() );
+          break;
+        case J_ADD_CODE:
+          hasher = is.readInt();
+          code = is.readInt();
+          id = is.readInt();
+          while( hasher >= userIndexes.length )
+            userIndexes = grow( userIndexes );
+          set = (IntSet)userIndexes[hasher].get( code );
+          if( set == null ){
+            set = new IntSet();
+            userIndexes[hasher].put( code, set );
+          }
+          set.add( id );
+          break;
+        case J_REMOVE_CODE:
+          hasher = is.readInt();
+          code = is.readInt();
+          id = is.readInt();
+          if( hasher < userIndexes.length ){
+            set = (IntSet)userIndexes[hasher].get( code );
+            if( set != null ){
+              set.remove( id );
+              if( set.isEmpty() )
+                userIndexes[hasher].remove( code );
+            }
+          }
+          break;
+        default:
+          throw new IOException( "unknown journal operation " + op );
+      }
+    }
+    return userIndexes;
+  }
+  private static IntMap[] grow( IntMap[] userIndexes ){
+    IntMap[] r = new IntMap[ userIndexes.length + 1 ];
+    System.arraycopy( userIndexes, 0, r, 0, userIndexes.length );
+    r[ userIndexes.length ] = new IntMap();
+    return r;
+  }
+  private static void writeEmpty( File tmp ) throws IOException{
+    FileOutputStream fos = new FileOutputStream( tmp );
+    DataOutputStream os = new DataOutputStream( fos );
+    try{
+      os.writeInt( PersistentStore.MAGIC );
+      os.writeInt( PersistentStore.VERSION );
+      os.writeLong( 0 ); // indexBlock location
+      os.writeLong( 0 ); // indexBlock space
+      os.writeLong( 0 ); // reserved
+      os.flush();
+      fos.getFD().sync();
+    }finally{
+      os.close();
+    }
+  }
+  // writes the header, then the index block, then every record, in
+  // the order they were in in the old file.  None of them are
+  // compressed, so this is the current format.
+  private static void writeCurrent( RandomAccessFile in, IntIntMap ids,
+      IntMap[] userIndexes, File tmp ) throws IOException{
+    int[] keys = ids.keys();
+    int i, j, k;
+    // the index block is the same as v1, except locations are longs
+    int indexBlockLength = 8 + 4 + 12 * keys.length;
+    int[] codes, set;
+    for( i = 0; i < userIndexes.length; i++ ){
+      indexBlockLength += 8;
+      codes = userIndexes[i].keys();
+      for( j = 0; j < codes.length; j++ )
+        indexBlockLength += 8 + 4 * ((IntSet)userIndexes[i].get( codes[j] )).size();
+    }
+    long indexBlockSpace = 1;
+    while( indexBlockSpace <= indexBlockLength )
+      indexBlockSpace <<= 1;
+    // sort the records by their old location, as (location, id) pairs,
+    // and lay them out one after another in that order.
+    long[] byLocation = new long[ keys.length ];
+    for( i = 0; i < keys.length; i++ )
+      byLocation[i] = ((long)ids.get( keys[i] ) << 32)
+        | (keys[i] & 0xFFFFFFFFL);
+    java.util.Arrays.sort( byLocation );
+    int[] sizes = new int[ keys.length ];
+    long[] newLocations = new long[ keys.length ];
+    long next = PersistentStore.MOBILE_DATA_START + indexBlockSpace;
+    for( i = 0; i < byLocation.length; i++ ){
+      in.seek( byLocation[i] >>> 32 );
+      sizes[i] = in.readInt();
+      j = java.util.Arrays.binarySearch( keys, (int)byLocation[i] );
+      newLocations[j] = next;
+      next += sizes[i];
+    }
+
+    FileOutputStream fos = new FileOutputStream( tmp );
+    DataOutputStream os = new DataOutputStream(
+        new BufferedOutputStream( fos, 1 << 16 ) );
+    try{
+      os.writeInt( PersistentStore.MAGIC );
+      os.writeInt( PersistentStore.VERSION );
+      os.writeLong( PersistentStore.MOBILE_DATA_START );
+      os.writeLong( indexBlockSpace );
+      os.writeLong( 0 ); // reserved
+      os.writeInt( indexBlockLength );
+      os.writeInt( 4 + 12 * keys.length );
+      for( i = 0; i < keys.length; i++ ){
+        os.writeInt( keys[i] );
+        os.writeLong( newLocations[i] );
+      }
+      os.writeInt( userIndexes.length );
+      int stl;
+      for( i = 0; i < userIndexes.length; i++ ){
+        codes = userIndexes[i].keys();
+        stl = 8;
+        for( j = 0; j < codes.length; j++ )
+          stl += 8 + 4 * ((IntSet)userIndexes[i].get( codes[j] )).size();
+        os.writeInt( stl );
+        os.writeInt( codes.length );
+        for( j = 0; j < codes.length; j++ ){
+          set = ((IntSet)userIndexes[i].get( codes[j] )).toArray();
+          os.writeInt( codes[j] );
+          os.writeInt( set.length );
+          for( k = 0; k < set.length; k++ )
+            os.writeInt( set[k] );
+        }
+      }
+      for( i = indexBlockLength; i < indexBlockSpace; i++ )
+        os.write( 0 );
+      byte[] bs = new byte[ 0 ];
+      for( i = 0; i < byLocation.length; i++ ){
+        if( bs.length < sizes[i] )
+          bs = new byte[ sizes[i] ];
+        in.seek( byLocation[i] >>> 32 );
+        in.readFully( bs, 0, sizes[i] );
+        os.write( bs, 0, sizes[i] );
+      }
+      os.flush();
+    }finally{
+      os.close();
+    }
+    RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+    try{
+      writeBlockChecksum( raf );
+      raf.getFD().sync();
+    }finally{
+      raf.close();
+    }
+  }
+}
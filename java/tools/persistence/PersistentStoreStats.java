@@ -0,0 +1,240 @@
+package tools.persistence;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** counts what a PersistentStore does, and how long it takes, for
+ * PersistentStore.getStats().  It is always on: each operation costs
+ * two System.nanoTime()s and a few LongAdder increments, which don't
+ * contend between threads.  register() shows it through JMX, and
+ * setListener() hands each operation on as well.<br>
+ *
+ * A load is a loadStorable() or retrieve(), cache hits included, a
+ * store is a store() or a whole storeAll(), and a sync is one force of
+ * the file or the journal to disk, whichever operation did it, so a
+ * commit's time includes its syncs.  Seeks are reads and writes at a
+ * new place in the file; reads from a memory mapping aren't, but their
+ * bytes are counted as read.
+ */
+public class PersistentStoreStats implements PersistentStoreStatsMBean{
+  public static final int LOAD = 0;
+  public static final int STORE = 1;
+  public static final int DELETE = 2;
+  public static final int COMMIT = 3;
+  public static final int PACK = 4;
+  public static final int SYNC = 5;
+  private static final String[] NAMES =
+    { "load", "store", "delete", "commit", "pack", "sync" };
+  // latency classes: 0 micros, then [2^(i-1), 2^i) micros for i > 0,
+  // with everything over 2^38 micros in the last
+  private static final int CLASSES = 40;
+
+  private PersistentStore ps;
+  private LongAdder[] counts = new LongAdder[ NAMES.length ];
+  private LongAdder[] nanos = new LongAdder[ NAMES.length ];
+  private LongAdder[][] histograms = new LongAdder[ NAMES.length ][ CLASSES ];
+  private LongAdder seeks = new LongAdder();
+  private LongAdder bytesRead = new LongAdder();
+  private LongAdder bytesWritten = new LongAdder();
+  private volatile PersistentStoreListener listener;
+  private ObjectName name;
+
+  PersistentStoreStats( PersistentStore ps ){
+    this.ps = ps;
+    int i, j;
+    for( i = 0; i < NAMES.length; i++ ){
+      counts[i] = new LongAdder();
+      nanos[i] = new LongAdder();
+      for( j = 0; j < CLASSES; j++ )
+        histograms[i][j] = new LongAdder();
+    }
+  }
+  /** listener is told about every operation from then on, or none if
+   * it is null.
+   */
+  public void setListener( PersistentStoreListener listener ){
+    this.listener = listener;
+  }
+  /** registers this with the platform MBeanServer, as
+   * tools.persistence:type=PersistentStore,name=&lt;the store's file&gt;,
+   * until the store is closed.
+   */
+  public synchronized ObjectName register() throws JMException{
+    if( name == null ){
+      ObjectName n = new ObjectName( "tools.persistence:type=PersistentStore,"
+          + "name=" + ObjectName.quote( ps.getFile().getPath() ) );
+      ManagementFactory.getPlatformMBeanServer().registerMBean( this, n );
+      name = n;
+    }
+    return name;
+  }
+  public synchronized void unregister() throws JMException{
+    if( name == null )
+      return;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if( server.isRegistered( name ) )
+      server.unregisterMBean( name );
+    name = null;
+  }
+
+  // operation finished, having started at start, from System.nanoTime()
+  void record( int operation, long start, long bytes ){
+    long took = System.nanoTime() - start;
+    counts[ operation ].increment();
+    nanos[ operation ].add( took );
+    long micros = took / 1000;
+    histograms[ operation ][ Math.min( CLASSES - 1,
+        64 - Long.numberOfLeadingZeros( micros ) ) ].increment();
+    PersistentStoreListener l = listener;
+    if( l != null )
+      l.completed( ps, operation, took, bytes );
+  }
+  void seek(){
+    seeks.increment();
+  }
+  void read( long bytes ){
+    bytesRead.add( bytes );
+  }
+  void wrote( long bytes ){
+    bytesWritten.add( bytes );
+  }
+
+  public long getCount( int operation ){
+    return counts[ operation ].sum();
+  }
+  public double getMeanMicros( int operation ){
+    long n = counts[ operation ].sum();
+    return n == 0 ? 0 : nanos[ operation ].sum() / 1000.0 / n;
+  }
+  /** how many of operation's took [2^(i-1), 2^i) microseconds, or 0
+   * for i = 0
+   */
+  public long[] getHistogram( int operation ){
+    long[] h = new long[ CLASSES ];
+    int i;
+    for( i = 0; i < CLASSES; i++ )
+      h[i] = histograms[ operation ][i].sum();
+    return h;
+  }
+  public long getPercentileMicros( int operation, double percent ){
+    long[] h = getHistogram( operation );
+    long total = 0, seen = 0;
+    int i;
+    for( i = 0; i < CLASSES; i++ )
+      total += h[i];
+    for( i = 0; i < CLASSES; i++ ){
+      seen += h[i];
+      if( seen > 0 && seen >= total * percent / 100 )
+        return i == 0 ? 0 : 1L << i;
+    }
+    return 0;
+  }
+
+  public long getLoads(){
+    return getCount( LOAD );
+  }
+  public long getStores(){
+    return getCount( STORE );
+  }
+  public long getDeletes(){
+    return getCount( DELETE );
+  }
+  public long getCommits(){
+    return getCount( COMMIT );
+  }
+  public long getPacks(){
+    return getCount( PACK );
+  }
+  public long getSyncs(){
+    return getCount( SYNC );
+  }
+  public double getMeanLoadMicros(){
+    return getMeanMicros( LOAD );
+  }
+  public double getMeanStoreMicros(){
+    return getMeanMicros( STORE );
+  }
+  public double getMeanDeleteMicros(){
+    return getMeanMicros( DELETE );
+  }
+  public double getMeanCommitMicros(){
+    return getMeanMicros( COMMIT );
+  }
+  public double getMeanPackMicros(){
+    return getMeanMicros( PACK );
+  }
+  public double getMeanSyncMicros(){
+    return getMeanMicros( SYNC );
+  }
+  public long getSyncMillis(){
+    return nanos[ SYNC ].sum() / 1000000;
+  }
+  public long getSeeks(){
+    return seeks.sum();
+  }
+  public long getBytesRead(){
+    return bytesRead.sum();
+  }
+  public long getBytesWritten(){
+    return bytesWritten.sum();
+  }
+  public double getFragmentation(){
+    try{
+      return ps.getFragmentation();
+    }catch( IOException e ){
+      return 0;
+    }
+  }
+  public long getIndexBlockSize(){
+    return ps.getIndexBlockSize();
+  }
+  public long getFileLength(){
+    return ps.getFileLength();
+  }
+  public long getJournalLength(){
+    return ps.getJournalLength();
+  }
+  public long getCacheHits(){
+    return ps.getCacheHits();
+  }
+  public long getCacheMisses(){
+    return ps.getCacheMisses();
+  }
+  public String getHistograms(){
+    StringBuffer sb = new StringBuffer();
+    long[] h;
+    int i, j;
+    for( i = 0; i < NAMES.length; i++ ){
+      h = getHistogram( i );
+      sb.append( NAMES[i] + ":" );
+      for( j = 0; j < CLASSES; j++ )
+        if( h[j] > 0 )
+          sb.append( " <" + (j == 0 ? 1 : 1L << j) + "us " + h[j] );
+      sb.append( "\n" );
+    }
+    return sb.toString();
+  }
+  public long percentileMicros( String operation, double percent ){
+    int i;
+    for( i = 0; i < NAMES.length; i++ )
+      if( NAMES[i].equals( operation ) )
+        return getPercentileMicros( i, percent );
+    throw new IllegalArgumentException( "no such operation: " + operation );
+  }
+  public void reset(){
+    int i, j;
+    for( i = 0; i < NAMES.length; i++ ){
+      counts[i].reset();
+      nanos[i].reset();
+      for( j = 0; j < CLASSES; j++ )
+        histograms[i][j].reset();
+    }
+    seeks.reset();
+    bytesRead.reset();
+    bytesWritten.reset();
+  }
+}
@@ -0,0 +1,40 @@
+package tools.persistence;
+
+/** what PersistentStoreStats shows through JMX.  Latencies are in
+ * microseconds, and the counts are since the store was opened, or the
+ * last reset().
+ */
+public interface PersistentStoreStatsMBean{
+  public long getLoads();
+  public long getStores();
+  public long getDeletes();
+  public long getCommits();
+  public long getPacks();
+  public long getSyncs();
+  public double getMeanLoadMicros();
+  public double getMeanStoreMicros();
+  public double getMeanDeleteMicros();
+  public double getMeanCommitMicros();
+  public double getMeanPackMicros();
+  public double getMeanSyncMicros();
+  public long getSyncMillis();
+  public long getSeeks();
+  public long getBytesRead();
+  public long getBytesWritten();
+  public double getFragmentation();
+  public long getIndexBlockSize();
+  public long getFileLength();
+  public long getJournalLength();
+  public long getCacheHits();
+  public long getCacheMisses();
+  /** every operation's latencies, one line each, in power of two
+   * classes
+   */
+  public String getHistograms();
+  /** the latency, to within a power of two, that percent of operation's
+   * took no longer than.  operation is "load", "store", "delete",
+   * "commit", "pack" or "sync".
+   */
+  public long percentileMicros( String operation, double percent );
+  public void reset();
+}
@@ -0,0 +1,14 @@
+package tools.persistence;
+
+/** A KeyIndex whose keys the PersistentStore keeps in order, in a
+ * B+tree, so getIDsInRange() and getIDsWithPrefix() only look at the
+ * keys they return, rather than at every key in the index.<br>
+ *
+ * Keys are compared byte by byte, as unsigned bytes, and a key comes
+ * before any longer key that starts with it.  So strings in UTF-8 sort
+ * by code point, and a prefix of a string is a prefix of its bytes.
+ * To sort ints, give their four bytes high byte first, with the sign
+ * bit flipped.
+ */
+public interface RangeIndex extends KeyIndex{
+}
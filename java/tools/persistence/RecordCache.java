@@ -0,0 +1,81 @@
+package tools.persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/** holds the bytes of recently read records for a PersistentStore,
+ * keyed by where they are in the file, up to a budget of bytes, and
+ * drops the least recently used first when it is over.<br>
+ *
+ * Keying by location rather than id means the store only has to tell
+ * us when it writes or frees a location.  A committed record is never
+ * overwritten, so a rollback, which only puts ids back at committed
+ * locations, can't leave anything stale in here.<br>
+ *
+ * Readers share it, so everything is synchronized.  A budget of 0
+ * turns it off, and then nothing is kept or counted.
+ */
+class RecordCache{
+  private long budget;
+  private long used;
+  private long hits;
+  private long misses;
+  // Long location -> byte[] record, least recently used first
+  private LinkedHashMap map;
+
+  RecordCache( long budget ){
+    this.budget = budget;
+    map = new LinkedHashMap( 16, 0.75f, true );
+  }
+  synchronized byte[] get( long location ){
+    if( budget == 0 )
+      return null;
+    byte[] bs = (byte[])map.get( Long.valueOf( location ) );
+    if( bs == null )
+      misses++;
+    else
+      hits++;
+    return bs;
+  }
+  // the array is kept, not copied, so don't change it afterwards.
+  synchronized void put( long location, byte[] bs ){
+    remove( location );
+    if( bs.length > budget )
+      return;
+    map.put( Long.valueOf( location ), bs );
+    used += bs.length;
+    shrink();
+  }
+  synchronized void remove( long location ){
+    byte[] bs = (byte[])map.remove( Long.valueOf( location ) );
+    if( bs != null )
+      used -= bs.length;
+  }
+  synchronized void clear(){
+    map.clear();
+    used = 0;
+  }
+  synchronized void setBudget( long budget ){
+    this.budget = budget;
+    shrink();
+  }
+  synchronized long getBudget(){
+    return budget;
+  }
+  synchronized long getUsed(){
+    return used;
+  }
+  synchronized long getHits(){
+    return hits;
+  }
+  synchronized long getMisses(){
+    return misses;
+  }
+  private void shrink(){
+    Iterator it = map.values().iterator();
+    while( used > budget && it.hasNext() ){
+      used -= ((byte[])it.next()).length;
+      it.remove();
+    }
+  }
+}
@@ -0,0 +1,521 @@
+package tools.persistence;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** spreads ids over several PersistentStores, in &lt;file&gt;.0,
+ * &lt;file&gt;.1 and so on, so that each has its own file, index block
+ * and journal, and they can be written, committed and packed at the
+ * same time.  Ids go to a shard by a hash of the id, or, if the store
+ * is made with bounds, by range: shard i has the ids below bounds[i]
+ * that no earlier shard has, and the last shard has the rest.  Which
+ * one was used, and how many shards there are, is kept in
+ * &lt;file&gt;.shards, and opening it any other way fails.<br>
+ *
+ * A commit has to be all or nothing across the shards, but each one
+ * only commits itself.  So commit() first gets what every changed
+ * shard would put in its journal, and logs all of them as one batch in
+ * &lt;file&gt;.manifest, which is a Journal; that batch being whole is
+ * what makes the commit happen.  Only then do the shards commit, at
+ * once, and the batch is cleared.  If we crash in between, the next
+ * open appends each logged batch to its shard's journal before opening
+ * it.  Replaying a batch over a shard that has it already changes
+ * nothing, so it doesn't matter how far the shards got.<br>
+ *
+ * It is safe to use from several threads, as the shards are.  Stores
+ * and deletes run at the same time as each other, and commit() and
+ * rollback() wait for them.  pack( i ) only holds up shard i.
+ */
+public class ShardedPersistentStore{
+  static final String MANIFEST_SUFFIX = ".manifest";
+  static final String SHARDS_SUFFIX = ".shards";
+  // what starts a .shards file, then the shard count and bounds
+  private static final int SHARDS_MAGIC = 0xFE534844;
+
+  private PersistentStore[] shards;
+  // null when ids are hashed
+  private int[] bounds;
+  private Journal manifest;
+  // one per shard: read for changing it, write for committing it, or
+  // anything else that has to see it still.  Always taken in order,
+  // lowest shard first, so nobody waits on someone waiting on them.
+  private ReentrantReadWriteLock[] locks;
+  // runs forEachShard()'s jobs, one thread per shard.  They spend most
+  // of their time forcing files, which would starve the common pool.
+  private ThreadPoolExecutor shardExecutor;
+
+  /** count shards, with ids hashed among them.
+   */
+  public ShardedPersistentStore( File filename, int count, Index[] hashers,
+      KeyIndex[] keyIndexes, Streamable s, int mode ) throws IOException{
+    this( filename, count, null, hashers, keyIndexes, s, mode );
+  }
+  /** bounds.length + 1 shards, with ids split among them by range.
+   * bounds must go up.
+   */
+  public ShardedPersistentStore( File filename, int[] bounds,
+      Index[] hashers, KeyIndex[] keyIndexes, Streamable s, int mode )
+    throws IOException{
+    this( filename, bounds.length + 1, bounds.clone(),
+        hashers, keyIndexes, s, mode );
+  }
+  private ShardedPersistentStore( File filename, int count, int[] bounds,
+      Index[] hashers, KeyIndex[] keyIndexes, Streamable s, int mode )
+    throws IOException{
+    int i;
+    if( count < 1 )
+      throw new IllegalArgumentException( "no shards" );
+    for( i = 1; bounds != null && i < bounds.length; i++ )
+      if( bounds[i] <= bounds[i-1] )
+        throw new IllegalArgumentException( "bounds must go up" );
+    this.bounds = bounds;
+    checkShards( new File( filename.getPath() + SHARDS_SUFFIX ), count );
+    manifest = new Journal( new File( filename.getPath() + MANIFEST_SUFFIX ) );
+    recover( filename );
+    locks = new ReentrantReadWriteLock[ count ];
+    for( i = 0; i < count; i++ )
+      locks[i] = new ReentrantReadWriteLock();
+    shards = new PersistentStore[ count ];
+    try{
+      for( i = 0; i < count; i++ )
+        shards[i] = new PersistentStore( shardFile( filename, i ),
+            hashers, keyIndexes, s, mode );
+    }catch( IOException e ){
+      for( i = 0; i < count && shards[i] != null; i++ )
+        shards[i].close();
+      manifest.close();
+      throw e;
+    }
+  }
+  private static File shardFile( File filename, int i ){
+    return new File( filename.getPath() + "." + i );
+  }
+  // writes the layout if this is a new store, and checks it otherwise
+  private void checkShards( File f, int count ) throws IOException{
+    int i;
+    if( ! f.exists() ){
+      DataOutputStream os = new DataOutputStream(
+          new BufferedOutputStream( new FileOutputStream( f ) ) );
+      try{
+        os.writeInt( SHARDS_MAGIC );
+        os.writeInt( count );
+        os.writeInt( bounds == null ? -1 : bounds.length );
+        for( i = 0; bounds != null && i < bounds.length; i++ )
+          os.writeInt( bounds[i] );
+      }finally{
+        os.close();
+      }
+      return;
+    }
+    DataInputStream is = new DataInputStream(
+        new BufferedInputStream( new FileInputStream( f ) ) );
+    try{
+      if( is.readInt() != SHARDS_MAGIC )
+        throw new IOException( f + " isn't a shard layout" );
+      int stored = is.readInt();
+      if( stored != count )
+        throw new IOException( f + " has " + stored + " shards, not "
+            + count );
+      int n = is.readInt();
+      if( (n < 0) != (bounds == null) )
+        throw new IOException( f + " splits ids by "
+            + (n < 0 ? "hash" : "range") );
+      for( i = 0; i < n; i++ )
+        if( is.readInt() != bounds[i] )
+          throw new IOException( f + " has different bounds" );
+    }finally{
+      is.close();
+    }
+  }
+  // finishes a commit that was logged, but that we crashed during.
+  // Each batch is [int shards]([int shard][int length][delta])*.
+  private void recover( File filename ) throws IOException{
+    byte[][] batches = manifest.readBatches();
+    int b, i, n, shard;
+    DataInputStream is;
+    byte[] delta;
+    for( b = 0; b < batches.length; b++ ){
+      is = new DataInputStream( new ByteArrayInputStream( batches[b] ) );
+      n = is.readInt();
+      for( i = 0; i < n; i++ ){
+        shard = is.readInt();
+        delta = new byte[ is.readInt() ];
+        is.readFully( delta );
+        Journal j = new Journal( new File( shardFile( filename, shard )
+              .getPath() + PersistentStore.JOURNAL_SUFFIX ) );
+        try{
+          j.append( delta );
+        }finally{
+          j.close();
+        }
+      }
+    }
+    if( batches.length > 0 )
+      manifest.clear();
+  }
+  /** which shard id is in.
+   */
+  public int shardOf( int id ){
+    if( bounds != null ){
+      int i = 0;
+      while( i < bounds.length && id >= bounds[i] )
+        i++;
+      return i;
+    }
+    // ids are mostly handed out in order, so they are mixed up first,
+    // or every shard would get runs of them
+    int h = id * 0x9E3779B9;
+    return (int)((h ^ (h >>> 16)) & 0x7FFFFFFFL) % shards.length;
+  }
+  public int getShardCount(){
+    return shards.length;
+  }
+  /** the shard itself, for things like a PersistentStoreCompactor.
+   * Commit only through here, or a commit may be only half made.
+   */
+  public PersistentStore getShard( int i ){
+    return shards[i];
+  }
+
+  public void store( Storable o ) throws IOException{
+    int i = shardOf( o.getID() );
+    locks[i].readLock().lock();
+    try{
+      shards[i].store( o );
+    }finally{
+      locks[i].readLock().unlock();
+    }
+  }
+  /** storeAll() on each shard, with its share of storables, all at
+   * once.
+   */
+  public void storeAll( Collection storables ) throws IOException{
+    final List[] split = new List[ shards.length ];
+    Iterator it = storables.iterator();
+    Storable o;
+    int i;
+    while( it.hasNext() ){
+      o = (Storable)it.next();
+      i = shardOf( o.getID() );
+      if( split[i] == null )
+        split[i] = new ArrayList();
+      split[i].add( o );
+    }
+    for( i = 0; i < shards.length; i++ )
+      if( split[i] != null )
+        locks[i].readLock().lock();
+    try{
+      forEachShard( new ShardJob(){
+        void run( int i ) throws IOException{
+          if( split[i] != null )
+            shards[i].storeAll( split[i] );
+        } } );
+    }finally{
+      for( i = 0; i < shards.length; i++ )
+        if( split[i] != null )
+          locks[i].readLock().unlock();
+    }
+  }
+  public void deleteStorable( int id ) throws IOException{
+    int i = shardOf( id );
+    locks[i].readLock().lock();
+    try{
+      shards[i].deleteStorable( id );
+    }finally{
+      locks[i].readLock().unlock();
+    }
+  }
+  public void loadStorable( int id, Storable o ) throws IOException{
+    shards[ shardOf( id ) ].loadStorable( id, o );
+  }
+  public void retrieve( Storable o ) throws IOException{
+    loadStorable( o.getID(), o );
+  }
+  /** commits every shard, or, if we crash, none of them, as the class
+   * comment says.
+   */
+  public void commit() throws IOException{
+    lockAll();
+    try{
+      final byte[][] deltas = new byte[ shards.length ][];
+      forEachShard( new ShardJob(){
+        void run( int i ) throws IOException{
+          deltas[i] = shards[i].prepareCommit();
+        } } );
+      int i, n = 0;
+      for( i = 0; i < deltas.length; i++ )
+        if( deltas[i] != null )
+          n++;
+      if( n == 0 )
+        return;
+      // one shard needs no manifest; its own journal is atomic enough
+      if( n > 1 ){
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream( baos );
+        os.writeInt( n );
+        for( i = 0; i < deltas.length; i++ )
+          if( deltas[i] != null ){
+            os.writeInt( i );
+            os.writeInt( deltas[i].length );
+            os.write( deltas[i] );
+          }
+        manifest.append( baos.toByteArray() );
+      }
+      // the manifest can only go once every part is on disk, whatever
+      // the shards' durability policy
+      final boolean logged = n > 1;
+      forEachShard( new ShardJob(){
+        void run( int i ) throws IOException{
+          if( deltas[i] == null )
+            return;
+          if( logged )
+            shards[i].flush();
+          else
+            shards[i].commit();
+        } } );
+      if( logged )
+        manifest.clear();
+    }finally{
+      unlockAll();
+    }
+  }
+  public void rollback(){
+    lockAll();
+    try{
+      int i;
+      for( i = 0; i < shards.length; i++ )
+        shards[i].rollback();
+    }finally{
+      unlockAll();
+    }
+  }
+  /** sets every shard's durability policy, as
+   * PersistentStore.setDurability().  Commits that touch more than one
+   * shard are forced anyway, since they are logged in the manifest
+   * until they are.
+   */
+  public void setDurability( final int policy, final long millis, 
+      final int commits ) throws IOException{
+    forEachShard( new ShardJob(){
+      void run( int i ) throws IOException{
+        shards[i].setDurability( policy, millis, commits );
+      } } );
+  }
+  public void flush() throws IOException{
+    lockAll();
+    try{
+      commit();
+      forEachShard( new ShardJob(){
+        void run( int i ) throws IOException{
+          shards[i].flush();
+        } } );
+    }finally{
+      unlockAll();
+    }
+  }
+  /** packs every shard, each on its own thread.  It commits first.
+   */
+  public void pack() throws IOException{
+    lockAll();
+    try{
+      commit();
+      forEachShard( new ShardJob(){
+        void run( int i ) throws IOException{
+          shards[i].pack();
+        } } );
+    }finally{
+      unlockAll();
+    }
+  }
+  /** packs shard i alone, while the others carry on.  It commits
+   * first, since the shard would commit its own part otherwise.
+   */
+  public void pack( int i ) throws IOException{
+    int j;
+    lockAll();
+    try{
+      commit();
+    }finally{
+      // nothing in another shard needs shard i, so only it waits
+      for( j = shards.length - 1; j >= 0; j-- )
+        if( j != i )
+          locks[j].writeLock().unlock();
+    }
+    try{
+      shards[i].pack();
+    }finally{
+      locks[i].writeLock().unlock();
+    }
+  }
+  public void close() throws IOException{
+    lockAll();
+    try{
+      forEachShard( new ShardJob(){
+        void run( int i ) throws IOException{
+          shards[i].close();
+        } } );
+    }finally{
+      manifest.close();
+      shardExecutor().shutdown();
+      unlockAll();
+    }
+  }
+
+  public int getMaxID(){
+    int max = Integer.MIN_VALUE;
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      max = Math.max( max, shards[i].getMaxID() );
+    return max;
+  }
+  public int[] getIDs(){
+    int[][] ids = new int[ shards.length ][];
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      ids[i] = shards[i].getIDs();
+    return concat( ids );
+  }
+  public int[] getIDs( int[] userIndexCodes ){
+    boolean[] b = new boolean[ userIndexCodes.length ];
+    java.util.Arrays.fill( b, true );
+    return getIDs( userIndexCodes, b );
+  }
+  public int[] getIDs( int[] userIndexCodes, boolean[] useThisCode ){
+    int[][] ids = new int[ shards.length ][];
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      ids[i] = shards[i].getIDs( userIndexCodes, useThisCode );
+    return concat( ids );
+  }
+  public int[] getIDs( int[] userIndexCodes, boolean[] useThisCode,
+      byte[][] keys ){
+    int[][] ids = new int[ shards.length ][];
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      ids[i] = shards[i].getIDs( userIndexCodes, useThisCode, keys );
+    return concat( ids );
+  }
+  public int[] getIDsInRange( int keyIndex, byte[] from, byte[] to ){
+    int[][] ids = new int[ shards.length ][];
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      ids[i] = shards[i].getIDsInRange( keyIndex, from, to );
+    return concat( ids );
+  }
+  public int[] getIDsWithPrefix( int keyIndex, byte[] prefix ){
+    int[][] ids = new int[ shards.length ][];
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      ids[i] = shards[i].getIDsWithPrefix( keyIndex, prefix );
+    return concat( ids );
+  }
+  /** the ids from from, inclusive, to to, exclusive, in order.  With
+   * ranges, only the shards that overlap them are asked.
+   */
+  public int[] getIDsBetween( int from, int to ){
+    int[][] ids = new int[ shards.length ][];
+    int i;
+    for( i = 0; i < shards.length; i++ )
+      ids[i] = bounds != null && ! overlaps( i, from, to )
+        ? new int[0] : shards[i].getIDsBetween( from, to );
+    int[] all = concat( ids );
+    // range shards are in order already
+    if( bounds == null )
+      java.util.Arrays.sort( all );
+    return all;
+  }
+  private boolean overlaps( int shard, int from, int to ){
+    return ( shard == 0 || to > bounds[ shard - 1 ] )
+      && ( shard == bounds.length || from < bounds[ shard ] );
+  }
+  public String getReport(){
+    StringBuffer sb = new StringBuffer( "ShardedPersistentStoreReport\n" );
+    int i;
+    sb.append( shards.length + " shards, split by "
+        + (bounds == null ? "hash" : "range") + "\n" );
+    for( i = 0; i < shards.length; i++ ){
+      sb.append( "shard " + i + " follows:\n" );
+      sb.append( shards[i].getReport() );
+    }
+    return sb.toString();
+  }
+
+  private void lockAll(){
+    int i;
+    for( i = 0; i < locks.length; i++ )
+      locks[i].writeLock().lock();
+  }
+  private void unlockAll(){
+    int i;
+    for( i = locks.length - 1; i >= 0; i-- )
+      locks[i].writeLock().unlock();
+  }
+  // the shards' ids, which are all different, in one array
+  private static int[] concat( int[][] ids ){
+    int i, n = 0;
+    for( i = 0; i < ids.length; i++ )
+      n += ids[i].length;
+    int[] all = new int[ n ];
+    for( n = 0, i = 0; i < ids.length; i++ ){
+      System.arraycopy( ids[i], 0, all, n, ids[i].length );
+      n += ids[i].length;
+    }
+    return all;
+  }
+  private abstract static class ShardJob{
+    abstract void run( int i ) throws IOException;
+  }
+  private synchronized ThreadPoolExecutor shardExecutor(){
+    if( shardExecutor == null ){
+      shardExecutor = new ThreadPoolExecutor( shards.length, shards.length,
+          30, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+          new ThreadFactory(){
+            public Thread newThread( Runnable r ){
+              Thread t = new Thread( r, "ShardedPersistentStore shard" );
+              t.setDaemon( true );
+              return t;
+            } } );
+      shardExecutor.allowCoreThreadTimeOut( true );
+    }
+    return shardExecutor;
+  }
+  // runs job for every shard, each on its own thread, and throws the
+  // first thing any of them threw, once they have all finished.
+  private void forEachShard( final ShardJob job ) throws IOException{
+    List tasks = new ArrayList( shards.length );
+    int i;
+    for( i = 0; i < shards.length; i++ ){
+      final int shard = i;
+      tasks.add( new Callable(){
+        public Object call() throws IOException{
+          job.run( shard );
+          return null;
+        } } );
+    }
+    try{
+      List futures = shardExecutor().invokeAll( tasks );
+      for( i = 0; i < futures.size(); i++ )
+        ((Future)futures.get( i )).get();
+    }catch( InterruptedException e ){
+      throw new InterruptedIOException( "interrupted while working on shards" );
+    }catch( ExecutionException e ){
+      Throwable t = e.getCause();
+      if( t instanceof IOException )
+        throw (IOException)t;
+      if( t instanceof RuntimeException )
+        throw (RuntimeException)t;
+      throw new IOException( t.toString() );
+    }
+  }
+}